@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark;
+
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import com.lipisoft.toyshark.socket.PacketRing;
+import com.lipisoft.toyshark.util.PacketBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Egress stage of the VPN interface. Any thread may write; packets go into a lock-free
+ * multi-producer queue and a single thread drains it in batches into the underlying writer, one
+ * write call per packet as the interface requires. So packets are never interleaved, packets of
+ * one flow leave in the order they were written, and the threads producing them never wait for
+ * the interface.
+ * <p>
+ * Writing blocks only while the queue is full. Data is copied, except a PacketBuffer which is
+ * retained, so callers may reuse their arrays and buffers right away. Errors of the interface are
+ * logged, not reported to the writing thread. Once shut down, writing fails with an IOException.
+ */
+class BatchedClientPacketWriter implements IClientPacketWriter {
+	private static final String TAG = "BatchedClientPacketWriter";
+	private static final int QUEUE_CAPACITY = 1024;
+	private static final int MAX_BATCH = 64;
+	private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@NonNull private final IClientPacketWriter sink;
+	@NonNull private final PacketRing queue = new PacketRing(QUEUE_CAPACITY, PacketRing.OverflowPolicy.BLOCK);
+	private volatile boolean shutdown = false;
+	private Thread thread;
+
+	//metrics, updated by the writer thread only
+	@NonNull private final AtomicLong writtenPackets = new AtomicLong();
+	@NonNull private final AtomicLong batches = new AtomicLong();
+	@NonNull private final AtomicLong writeNanos = new AtomicLong();
+	private volatile long maxWriteNanos = 0;
+	private volatile int maxQueueDepth = 0;
+
+	/**
+	 * @param sink writer of the VPN interface, called from one thread only
+	 */
+	BatchedClientPacketWriter(@NonNull IClientPacketWriter sink) {
+		this.sink = sink;
+	}
+
+	synchronized void start() {
+		if (thread != null || shutdown) {
+			return;
+		}
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "TunWriter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * stop the writer thread once queued packets are written. Not reversible, further writes fail
+	 * and writers waiting for room in the queue give up.
+	 */
+	synchronized void shutdown() {
+		shutdown = true;
+		queue.close();
+		if (thread != null) {
+			//no interrupt, it would close the interface's channel in the middle of a write
+			LockSupport.unpark(thread);
+			thread = null;
+		}
+	}
+
+	@Override
+	public void write(byte[] data) throws IOException {
+		write(data, 0, data.length);
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int count) throws IOException {
+		final byte[] packet = new byte[count];
+		System.arraycopy(data, offset, packet, 0, count);
+		offer(PacketBuffer.wrap(packet));
+	}
+
+	/**
+	 * the caller may reuse the buffer as soon as this returns, so the packet is copied
+	 */
+	@Override
+	public void write(ByteBuffer data) throws IOException {
+		final byte[] packet = new byte[data.remaining()];
+		data.duplicate().get(packet);
+		offer(PacketBuffer.wrap(packet));
+	}
+
+	@Override
+	public void write(@NonNull PacketBuffer packet) throws IOException {
+		offer(packet.retain());
+	}
+
+	private void offer(@NonNull PacketBuffer packet) throws IOException {
+		//with the blocking policy the ring drops nothing, so only a closed ring refuses it
+		if (!queue.offer(packet)) {
+			throw new IOException("writer to VPN interface is shut down");
+		}
+	}
+
+	/**
+	 * @return packets waiting to be written
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public long getWrittenPackets() {
+		return writtenPackets.get();
+	}
+
+	/**
+	 * @return average number of packets written per wake up of the writer thread
+	 */
+	public double getAverageBatchSize() {
+		final long count = batches.get();
+		return count == 0 ? 0 : (double) writtenPackets.get() / count;
+	}
+
+	/**
+	 * @return average time of one write to the VPN interface in nano sec
+	 */
+	public long getAverageWriteNanos() {
+		final long count = writtenPackets.get();
+		return count == 0 ? 0 : writeNanos.get() / count;
+	}
+
+	public long getMaxWriteNanos() {
+		return maxWriteNanos;
+	}
+
+	private void drain() {
+		final ArrayList<PacketBuffer> batch = new ArrayList<>(MAX_BATCH);
+		while (true) {
+			final int depth = queue.size();
+			if (depth > maxQueueDepth) {
+				maxQueueDepth = depth;
+			}
+			if (queue.drainTo(batch, MAX_BATCH) == 0) {
+				if (shutdown) {
+					return;
+				}
+				queue.await(IDLE_WAIT_NANOS);
+				continue;
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				final PacketBuffer packet = batch.get(i);
+				final long start = System.nanoTime();
+				try {
+					sink.write(packet.view());
+				} catch (IOException e) {
+					Log.e(TAG, "Failed to write packet to client: " + e.getMessage());
+				} finally {
+					packet.release();
+				}
+				final long elapsed = System.nanoTime() - start;
+				writeNanos.addAndGet(elapsed);
+				if (elapsed > maxWriteNanos) {
+					maxWriteNanos = elapsed;
+				}
+			}
+			writtenPackets.addAndGet(batch.size());
+			batches.incrementAndGet();
+			batch.clear();
+		}
+	}
+}
@@ -16,8 +16,14 @@
 
 package com.lipisoft.toyshark;
 
+import androidx.annotation.NonNull;
+
+import com.lipisoft.toyshark.util.PacketBuffer;
+
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * write packet data back to VPN client stream. This class is thread safe.
@@ -26,9 +32,11 @@ import java.io.IOException;
  */
 class ClientPacketWriterImpl implements IClientPacketWriter {
 	private FileOutputStream clientWriter;
+	private FileChannel clientChannel;
 
 	ClientPacketWriterImpl(FileOutputStream clientWriter){
 		this.clientWriter = clientWriter;
+		this.clientChannel = clientWriter.getChannel();
 	}
 
 	@Override
@@ -40,4 +48,14 @@ class ClientPacketWriterImpl implements IClientPacketWriter {
 	public synchronized void write(byte[] data, int offset, int count) throws IOException {
 		clientWriter.write(data, offset, count);
 	}
+
+	@Override
+	public synchronized void write(ByteBuffer data) throws IOException {
+		clientChannel.write(data);
+	}
+
+	@Override
+	public void write(@NonNull PacketBuffer packet) throws IOException {
+		write(packet.view());
+	}
 }
@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark;
+
+import com.lipisoft.toyshark.util.PacketUtil;
+
+/**
+ * Primitive flow key for a session. A flow (protocol, source ip:port, destination ip:port)
+ * is 104 bits long, so it is packed into two longs instead of being formatted as String:
+ * <ul>
+ * <li>address key: source IP in the high 32 bits, destination IP in the low 32 bits</li>
+ * <li>port key: protocol in bits 32-39, source port in bits 16-31, destination port in bits 0-15</li>
+ * </ul>
+ * Building and hashing a key does not allocate anything.
+ */
+public final class FlowKey {
+	public static final byte TCP = 6;
+	public static final byte UDP = 17;
+
+	private FlowKey() {
+	}
+
+	/**
+	 * pack source and destination IP address
+	 * @param sourceIp Source IP Address
+	 * @param destinationIp Destination IP Address
+	 * @return address key
+	 */
+	public static long addressKey(int sourceIp, int destinationIp) {
+		return ((long) sourceIp << 32) | (destinationIp & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * pack protocol, source and destination port
+	 * @param protocol IP protocol number, either {@link #TCP} or {@link #UDP}
+	 * @param sourcePort Source Port
+	 * @param destinationPort Destination Port
+	 * @return port key
+	 */
+	public static long portKey(byte protocol, int sourcePort, int destinationPort) {
+		return ((long) (protocol & 0xFF) << 32) | ((long) (sourcePort & 0xFFFF) << 16)
+				| (destinationPort & 0xFFFF);
+	}
+
+	/**
+	 * spread bits of both keys over an int, so that flows which only differ
+	 * in source port still land in different buckets.
+	 * @param addressKey address key
+	 * @param portKey port key
+	 * @return hash value
+	 */
+	public static int hash(long addressKey, long portKey) {
+		long h = addressKey * 0x9E3779B97F4A7C15L ^ portKey * 0xC2B2AE3D27D4EB4FL;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	public static byte protocol(long portKey) {
+		return (byte) (portKey >>> 32);
+	}
+
+	/**
+	 * human readable form of a key, for logging only
+	 * @param addressKey address key
+	 * @param portKey port key
+	 * @return String such as 10.120.0.1:41234-8.8.8.8:53
+	 */
+	public static String toString(long addressKey, long portKey) {
+		return PacketUtil.intToIPAddress((int) (addressKey >>> 32)) + ":" + ((portKey >>> 16) & 0xFFFF) +
+				"-" + PacketUtil.intToIPAddress((int) addressKey) + ":" + (portKey & 0xFFFF);
+	}
+}
@@ -15,7 +15,12 @@
 */
 package com.lipisoft.toyshark;
 
+import androidx.annotation.NonNull;
+
+import com.lipisoft.toyshark.util.PacketBuffer;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * 
@@ -25,4 +30,14 @@ import java.io.IOException;
 public interface IClientPacketWriter {
 	void write(byte[] data) throws IOException;
 	void write(byte[] data, int offset, int count) throws IOException;
+	/**
+	 * write one packet from its position to its limit
+	 * @param data packet
+	 */
+	void write(ByteBuffer data) throws IOException;
+	/**
+	 * write one packet; the writer retains it as long as it needs it, the caller keeps its own reference
+	 * @param packet packet
+	 */
+	void write(@NonNull PacketBuffer packet) throws IOException;
 }
@@ -19,10 +19,16 @@ package com.lipisoft.toyshark;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.lipisoft.toyshark.network.ip.IPPacketFactory;
 import com.lipisoft.toyshark.network.ip.IPv4Header;
 import com.lipisoft.toyshark.transport.ITransportHeader;
+import com.lipisoft.toyshark.transport.tcp.PacketHeaderException;
 import com.lipisoft.toyshark.transport.tcp.TCPHeader;
+import com.lipisoft.toyshark.transport.tcp.TCPPacketFactory;
 import com.lipisoft.toyshark.transport.udp.UDPHeader;
+import com.lipisoft.toyshark.util.PacketBuffer;
+
+import java.nio.ByteBuffer;
 
 /**
  * Data structure that encapsulate both IPv4Header and TCPHeader
@@ -30,10 +36,19 @@ import com.lipisoft.toyshark.transport.udp.UDPHeader;
  * Date: May 27, 2014
  */
 public class Packet {
-	@NonNull private final IPv4Header ipHeader;
-	@NonNull private final ITransportHeader transportHeader;
+	//parsed on first use for packets built by the proxy itself, see Packet(byte[])
+	@Nullable private IPv4Header ipHeader;
+	@Nullable private ITransportHeader transportHeader;
 	@NonNull private final byte[] buffer;
 
+	/**
+	 * copy packet data out of a pooled buffer. Packets are kept for the packet list as long as
+	 * the service runs, so they must not hold on to the pool's buffers.
+	 */
+	public Packet(@NonNull IPv4Header ipHeader, @NonNull ITransportHeader transportHeader, @NonNull PacketBuffer data) {
+		this(ipHeader, transportHeader, data.toByteArray());
+	}
+
 //	public Packet(IPv4Header ipHeader, ITransportHeader transportHeader, IApplication application, byte[] data) {
 	public Packet(@NonNull IPv4Header ipHeader, @NonNull ITransportHeader transportHeader, @NonNull byte[] data) {
 		this.ipHeader = ipHeader;
@@ -47,25 +62,50 @@ public class Packet {
 		buffer = data;
 	}
 
+	/**
+	 * a TCP segment built by the proxy, which is known to be well formed. Its headers are parsed
+	 * only when the packet list shows it, not on the thread that sent it.
+	 * @param data whole packet, owned by this packet from now on
+	 */
+	public Packet(@NonNull byte[] data) {
+		buffer = data;
+	}
+
+	private synchronized void parseHeaders() {
+		if (ipHeader != null) {
+			return;
+		}
+		final ByteBuffer stream = ByteBuffer.wrap(buffer);
+		try {
+			final IPv4Header ip = IPPacketFactory.createIPv4Header(stream);
+			transportHeader = TCPPacketFactory.createTCPHeader(stream);
+			ipHeader = ip;
+		} catch (PacketHeaderException e) {
+			throw new IllegalStateException("Packet built by the proxy is malformed: " + e.getMessage());
+		}
+	}
+
 	public byte getProtocol() {
-		return ipHeader.getProtocol();
+		return getIpHeader().getProtocol();
 	}
 
 	@NonNull
 	public ITransportHeader getTransportHeader() {
+		parseHeaders();
 		return transportHeader;
 	}
 
 	public int getSourcePort() {
-		return transportHeader.getSourcePort();
+		return getTransportHeader().getSourcePort();
 	}
 
 	public int getDestinationPort() {
-		return transportHeader.getDestinationPort();
+		return getTransportHeader().getDestinationPort();
 	}
 
 	@NonNull
 	public IPv4Header getIpHeader() {
+		parseHeaders();
 		return ipHeader;
 	}
 
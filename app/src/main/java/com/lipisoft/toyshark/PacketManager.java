@@ -7,6 +7,7 @@ import androidx.annotation.NonNull;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public enum PacketManager {
     INSTANCE;
@@ -14,11 +15,16 @@ public enum PacketManager {
     public static final int PACKET = 0;
     @NonNull private final List<Packet> list = new ArrayList<>();
     private PacketListAdapter adapter;
+    //a PACKET message is queued and not handled yet
+    @NonNull private final AtomicBoolean updatePending = new AtomicBoolean();
+    //segments the proxy sends to client are listed too
+    private volatile boolean listingSentSegments = true;
     @NonNull private final Handler handler = new Handler(Looper.getMainLooper()) {
         @Override
         public void handleMessage(Message msg) {
             if (msg != null) {
                 if (msg.what == PacketManager.PACKET) {
+                    updatePending.set(false);
                     adapter.notifyDataSetChanged();
                 }
             }
@@ -30,6 +36,30 @@ public enum PacketManager {
         return list.add(packet);
     }
 
+    /**
+     * add a packet and update the list view. Packets added before the view got to it are shown
+     * with one update, so a burst of packets does not queue a message each.
+     * @param packet packet to list
+     */
+    public void publish(@NonNull Packet packet) {
+        add(packet);
+        if (updatePending.compareAndSet(false, true)) {
+            handler.obtainMessage(PACKET).sendToTarget();
+        }
+    }
+
+    public boolean isListingSentSegments() {
+        return listingSentSegments;
+    }
+
+    /**
+     * @param listing false to leave data the proxy sends to client out of the list, which saves
+     *                a copy of every segment on the sending thread
+     */
+    public void setListingSentSegments(boolean listing) {
+        listingSentSegments = listing;
+    }
+
     @NonNull public List<Packet> getList() {
         return list;
     }
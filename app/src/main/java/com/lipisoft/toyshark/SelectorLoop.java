@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark;
+
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A Selector run by one thread. Only that thread registers channels with it. Other threads put
+ * a new session in a lock-free queue and wake the selector, and the thread registers it in
+ * {@link #registerPending()} between two selects. So creating a session never waits for select()
+ * to return, and select() never waits for a lock.
+ */
+public final class SelectorLoop {
+	private static final String TAG = "SelectorLoop";
+
+	@NonNull private final Selector selector;
+	@NonNull private final ConcurrentLinkedQueue<Registration> registrations = new ConcurrentLinkedQueue<>();
+	//thread running this loop, null while nobody selects
+	private volatile Thread thread;
+
+	SelectorLoop() throws IOException {
+		selector = Selector.open();
+	}
+
+	@NonNull
+	public Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * register the channel of a session, attaching the session to its key. While no thread
+	 * runs this loop the channel is registered right away.
+	 * @param session session whose channel is set
+	 * @param operations initial interest set
+	 */
+	void register(@NonNull Session session, int operations) throws ClosedChannelException {
+		if (thread == null) {
+			session.setSelectionKey(session.getChannel().register(selector, operations, session));
+			return;
+		}
+		registrations.offer(new Registration(session, operations));
+		selector.wakeup();
+	}
+
+	/**
+	 * the current thread runs this loop from now on
+	 */
+	public void attach() {
+		thread = Thread.currentThread();
+	}
+
+	/**
+	 * the current thread stops running this loop, pending registrations are completed
+	 */
+	public void detach() {
+		thread = null;
+		registerPending();
+	}
+
+	public int select() throws IOException {
+		return selector.select();
+	}
+
+	@NonNull
+	public Set<SelectionKey> selectedKeys() {
+		return selector.selectedKeys();
+	}
+
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * register channels queued by other threads, called by the thread running this loop
+	 */
+	public void registerPending() {
+		Registration registration;
+		while ((registration = registrations.poll()) != null) {
+			final Session session = registration.session;
+			try {
+				session.setSelectionKey(session.getChannel().register(selector, registration.operations, session));
+			} catch (ClosedChannelException e) {
+				//closed before it was registered
+				Log.d(TAG, "channel closed before registration: "
+						+ FlowKey.toString(session.getAddressKey(), session.getPortKey()));
+				continue;
+			}
+			//data from client may have been buffered meanwhile
+			SessionManager.INSTANCE.requestUplinkWrite(session);
+		}
+	}
+
+	private static final class Registration {
+		@NonNull final Session session;
+		final int operations;
+
+		Registration(@NonNull Session session, int operations) {
+			this.session = session;
+			this.operations = operations;
+		}
+	}
+}
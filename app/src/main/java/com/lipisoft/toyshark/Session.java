@@ -16,17 +16,25 @@
 
 package com.lipisoft.toyshark;
 
-import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.lipisoft.toyshark.network.ip.IPv4Header;
 import com.lipisoft.toyshark.transport.tcp.TCPHeader;
+import com.lipisoft.toyshark.transport.tcp.TCPReassemblyBuffer;
+import com.lipisoft.toyshark.transport.tcp.TCPResponseTemplate;
+import com.lipisoft.toyshark.transport.tcp.TCPSendWindow;
 import com.lipisoft.toyshark.transport.udp.UDPHeader;
+import com.lipisoft.toyshark.util.ChunkedByteQueue;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * store information about a socket connection from a VPN client.
@@ -36,65 +44,72 @@ import java.nio.channels.spi.AbstractSelectableChannel;
  */
 public class Session {
 	private static  final String TAG = "Session";
+	//default limit of bytes buffered in each direction
+	public static final int DEFAULT_BUFFER_LIMIT = 1024 * 1024;
+	//window advertised to client is not scaled, so it never sends more than this beyond our ACK
+	private static final int REASSEMBLY_LIMIT = 64 * 1024;
 
-	private AbstractSelectableChannel channel;
+	private volatile AbstractSelectableChannel channel;
 	
 	private int destIp = 0;
 	private int destPort = 0;
 	
 	private int sourceIp = 0;
 	private int sourcePort = 0;
+
+	//TCP or UDP
+	private final byte protocol;
+
+	//primitive flow key, see FlowKey
+	private final long addressKey;
+	private final long portKey;
 	
-	//sequence received from client
-	private long recSequence = 0;
-	
-	//track ack we sent to client and waiting for ack back from client
-	private long sendUnack = 0;
-	private boolean isacked = false;//last packet was acked yet?
-	
-	//the next ack to send to client
-	private long sendNext = 0;
-	private int sendWindow = 0; //window = windowsize x windowscale
-	private int sendWindowSize = 0;
-	private int sendWindowScale = 0;
+	//sequence received from client, read by the sender and timer threads too
+	private volatile long recSequence = 0;
 	
-	//track how many byte of data has been sent since last ACK from client
-	private volatile int sendAmountSinceLastAck = 0;
+	//segments sent to client and not yet acknowledged, and client's receive window
+	@NonNull private final TCPSendWindow sendWindow = new TCPSendWindow();
 	
 	//sent by client during SYN inside tcp options
 	private int maxSegmentSize = 0;
 	
 	//indicate that 3-way handshake has been completed or not
-	private boolean isConnected = false;
+	private volatile boolean isConnected = false;
 	
 	//receiving buffer for storing data from remote host
-	private ByteArrayOutputStream receivingStream;
+	@NonNull private final ChunkedByteQueue receivingQueue = new ChunkedByteQueue(DEFAULT_BUFFER_LIMIT);
 	
 	//sending buffer for storing data from vpn client to be send to destination host
-	private ByteArrayOutputStream sendingStream;
+	@NonNull private final ChunkedByteQueue sendingQueue = new ChunkedByteQueue(DEFAULT_BUFFER_LIMIT);
+
+	//data from vpn client received ahead of a missing segment
+	@NonNull private final TCPReassemblyBuffer reassemblyBuffer = new TCPReassemblyBuffer(REASSEMBLY_LIMIT);
 	
-	private boolean hasReceivedLastSegment = false;
+	//remote server closed its side, FIN is sent to client once the receiving buffer is drained
+	private volatile boolean hasReceivedLastSegment = false;
 	
 	//last packet received from client
 	private IPv4Header lastIpHeader;
 	private TCPHeader lastTcpHeader;
 	private UDPHeader lastUdpHeader;
 
+	//wire form of the headers sent back to client, created from client's SYN
+	private TCPResponseTemplate responseTemplate;
+
 	//true when connection is about to be close
 	private boolean closingConnection = false;
 	
 	//indicate data from client is ready for sending to destination
-	private boolean isDataForSendingReady = false;
-	
-	//store data for retransmission
-	private byte[] unackData = null;
+	private volatile boolean isDataForSendingReady = false;
+
+	//time in milliseconds the oldest byte not yet written to destination was buffered, 0 if none
+	private volatile long pendingSince = 0;
+	//a timer will check again whether buffered data is due for writing
+	@NonNull private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
 	
 	//in ACK packet from client, if the previous packet was corrupted, client will send flag in options field
 	private boolean packetCorrupted = false;
 	
-	//track how many time a packet has been retransmitted => avoid loop
-	private int resendPacketCounter = 0;
-	
 	private int timestampSender = 0;
 	private int timestampReplyto = 0;
 	
@@ -103,46 +118,39 @@ public class Session {
 	//timestamp when FIN as been acked, this is used to removed session after n minute
 //	private long ackedToFinTime = 0;
 	
-	//indicate that this session is currently being worked on by some SocketDataWorker already
-	private volatile boolean isBusyRead = false;
-	private volatile boolean isBusyWrite = false;
+	//threads doing blocking I/O for this session wait here for room in the receiving buffer
+	@NonNull private final Object ioMonitor = new Object();
+
+	//socket operations waiting for this session's thread, the session is queued while not 0
+	@NonNull private final AtomicInteger pendingOperations = new AtomicInteger(0);
+	
+	//time in milli sec of the last packet in either direction
+	private volatile long lastActive = 0;
+	//next session in the same slot of the expiry wheel, guarded by the wheel
+	private Session wheelNext = null;
+
+	//the connect to the remote server has neither completed nor failed yet
+	@NonNull private final AtomicBoolean connectPending = new AtomicBoolean(false);
+	//fails the connect once it takes too long, cancelled when the connect ends first
+	@NonNull private final AtomicReference<ScheduledFuture<?>> connectTimeout = new AtomicReference<>();
+	//SYN-ACK held back until the remote server accepts the connection
+	@NonNull private final AtomicReference<byte[]> pendingSynAck = new AtomicReference<>();
 	
 	//closing session and aborting connection, will be done by background task
 	private volatile boolean abortingConnection = false;
 	
-	private SelectionKey selectionkey = null;
+	private volatile SelectionKey selectionkey = null;
 	
 	public long connectionStartTime = 0;
 	
-	Session(int sourceIp, int sourcePort, int destinationIp, int destinationPort){
-		receivingStream = new ByteArrayOutputStream();
-		sendingStream = new ByteArrayOutputStream();
+	Session(int sourceIp, int sourcePort, int destinationIp, int destinationPort, byte protocol){
 		this.sourceIp = sourceIp;
 		this.sourcePort = sourcePort;
 		this.destIp = destinationIp;
 		this.destPort = destinationPort;
-	}
-
-	/*
-	 * track how many byte sent to client since last ACK to avoid overloading
-	 * @param amount Amount
-	 */
-//	public void trackAmountSentSinceLastAck(int amount){
-//		synchronized(syncSendAmount){
-//			sendAmountSinceLastAck += amount;
-//		}
-//	}
-
-	/**
-	 * decrease value of sendAmountSinceLastAck so that client's window is not full
-	 * @param amount Amount
-	 */
-	synchronized void decreaseAmountSentSinceLastAck(long amount){
-		sendAmountSinceLastAck -= amount;
-		if(sendAmountSinceLastAck < 0){
-			Log.e(TAG, "Amount data to be decreased is over than its window.");
-			sendAmountSinceLastAck = 0;
-		}
+		this.protocol = protocol;
+		this.addressKey = FlowKey.addressKey(sourceIp, destinationIp);
+		this.portKey = FlowKey.portKey(protocol, sourcePort, destinationPort);
 	}
 
 	/**
@@ -150,43 +158,34 @@ public class Session {
 	 * @return boolean
 	 */
 	public boolean isClientWindowFull(){
-		return (sendWindow > 0 && sendAmountSinceLastAck >= sendWindow) ||
-				(sendWindow == 0 && sendAmountSinceLastAck > 65535);
+		return sendWindow.isFull();
 	}
 
 	/**
-	 * append more data
+	 * append more data, as much as the receiving buffer can hold
 	 * @param data Data
+	 * @return number of bytes added
 	 */
-	public synchronized void addReceivedData(byte[] data){
-		try {
-			receivingStream.write(data);
-		} catch (IOException e) {
-			Log.e(TAG, e.toString());
-		}
+	public int addReceivedData(byte[] data){
+		return receivingQueue.write(data, 0, data.length);
 	}
 
-//	public void resetReceivingData(){
-//		synchronized(syncReceive){
-//			receivingStream.reset();
-//		}
-//	}
+	/**
+	 * buffer of data received from remote host and not yet sent to vpn client.
+	 * Socket reads go straight into it and segments are built from its head without copying it out.
+	 * @return ChunkedByteQueue
+	 */
+	@NonNull
+	public ChunkedByteQueue getReceivingQueue() {
+		return receivingQueue;
+	}
 
 	/**
-	 * get all data received in the buffer and empty it.
+	 * remove up to maxSize bytes of received data.
 	 * @return byte[]
 	 */
-	public synchronized byte[] getReceivedData(int maxSize){
-		byte[] data = receivingStream.toByteArray();
-		receivingStream.reset();
-		if(data.length > maxSize){
-			byte[] small = new byte[maxSize];
-			System.arraycopy(data, 0, small, 0, maxSize);
-			int len = data.length - maxSize;
-			receivingStream.write(data, maxSize, len);
-			data = small;
-		}
-		return data;
+	public byte[] getReceivedData(int maxSize){
+		return receivingQueue.read(maxSize);
 	}
 
 	/**
@@ -194,72 +193,106 @@ public class Session {
 	 * @return boolean
 	 */
 	public boolean hasReceivedData(){
-		return receivingStream.size() > 0;
+		return !receivingQueue.isEmpty();
 	}
 
-//	public int getReceivedDataSize(){
-//		synchronized(syncReceive){
-//			return receivingStream.size();
-//		}
-//	}
-
 	/**
 	 * set data to be sent to destination server
-	 * @param data Data to be sent
-	 * @return boolean Success or not
+	 * @param data Data to be sent, its position is not changed
+	 * @return number of bytes accepted, less than data.remaining() when the sending buffer is full
 	 */
-	synchronized int setSendingData(ByteBuffer data) {
-		final int remaining = data.remaining();
-		sendingStream.write(data.array(), data.position(), data.remaining());
-		return remaining;
+	int setSendingData(ByteBuffer data) {
+		return sendingQueue.write(data);
 	}
 
 	int getSendingDataSize(){
-		return sendingStream.size();
+		return sendingQueue.size();
+	}
+
+	/**
+	 * buffer of data from vpn client not yet written to destination server
+	 * @return ChunkedByteQueue
+	 */
+	@NonNull
+	public ChunkedByteQueue getSendingQueue() {
+		return sendingQueue;
 	}
 
 	/**
 	 * dequeue data for sending to server
 	 * @return byte[]
 	 */
-	public synchronized byte[] getSendingData(){
-		byte[] data = sendingStream.toByteArray();
-		sendingStream.reset();
-		return data;
+	public byte[] getSendingData(){
+		return sendingQueue.read(Integer.MAX_VALUE);
 	}
 	/**
 	 * buffer contains data for sending to destination server
 	 * @return boolean
 	 */
 	public boolean hasDataToSend(){
-		return sendingStream.size() > 0;
+		return !sendingQueue.isEmpty();
 	}
 
-	public int getDestIp() {
-		return destIp;
+	/**
+	 * data from vpn client held until the segments in front of it arrive
+	 * @return TCPReassemblyBuffer
+	 */
+	@NonNull
+	public TCPReassemblyBuffer getReassemblyBuffer() {
+		return reassemblyBuffer;
 	}
 
-	public int getDestPort() {
-		return destPort;
+	/**
+	 * limit memory used by this session's buffers
+	 * @param maxBytes maximum bytes queued in each direction
+	 */
+	void setBufferLimit(int maxBytes) {
+		receivingQueue.setCapacity(maxBytes);
+		sendingQueue.setCapacity(maxBytes);
+		reassemblyBuffer.setCapacity(Math.min(maxBytes, REASSEMBLY_LIMIT));
+	}
+
+	/**
+	 * @return bytes buffered in either direction, including segments held out of order and
+	 * packets kept for retransmission
+	 */
+	int getBufferedBytes() {
+		return receivingQueue.size() + sendingQueue.size() + reassemblyBuffer.size()
+				+ sendWindow.getHeldBytes();
 	}
 
-	long getSendUnack() {
-		return sendUnack;
+	/**
+	 * give buffered data back to the pool, called when the session is closed
+	 */
+	void releaseBuffers() {
+		receivingQueue.clear();
+		sendingQueue.clear();
+		reassemblyBuffer.clear();
+		sendWindow.clear();
 	}
 
-	void setSendUnack(long sendUnack) {
-		this.sendUnack = sendUnack;
+	public int getDestIp() {
+		return destIp;
+	}
+
+	public int getDestPort() {
+		return destPort;
 	}
 
 	public long getSendNext() {
-		return sendNext;
+		return sendWindow.getSendNext();
 	}
 
 	public void setSendNext(long sendNext) {
-		this.sendNext = sendNext;
+		sendWindow.setSendNext(sendNext);
 	}
 
-	int getSendWindow() {
+	/**
+	 * data sent to client and not yet acknowledged
+	 * @return TCPSendWindow
+	 */
+	@NonNull
+	public TCPSendWindow getSendWindow() {
 		return sendWindow;
 	}
 
@@ -279,14 +312,6 @@ public class Session {
 		this.isConnected = isConnected;
 	}
 
-//	public ByteArrayOutputStream getReceivingStream() {
-//		return receivingStream;
-//	}
-
-//	public ByteArrayOutputStream getSendingStream() {
-//		return sendingStream;
-//	}
-
 	public int getSourceIp() {
 		return sourceIp;
 	}
@@ -295,26 +320,16 @@ public class Session {
 		return sourcePort;
 	}
 
-//	public int getSendWindowSize() {
-//		return sendWindowSize;
-//	}
-
-	void setSendWindowSizeAndScale(int sendWindowSize, int sendWindowScale) {
-		this.sendWindowSize = sendWindowSize;
-		this.sendWindowScale = sendWindowScale;
-		this.sendWindow = sendWindowSize * sendWindowScale;
+	public byte getProtocol() {
+		return protocol;
 	}
 
-	int getSendWindowScale() {
-		return sendWindowScale;
+	public long getAddressKey() {
+		return addressKey;
 	}
 
-//	public boolean isAcked() {
-//		return isacked;
-//	}
-
-	void setAcked(boolean isacked) {
-		this.isacked = isacked;
+	public long getPortKey() {
+		return portKey;
 	}
 
 	public long getRecSequence() {
@@ -322,7 +337,7 @@ public class Session {
 	}
 
 	void setRecSequence(long recSequence) {
-		this.recSequence = recSequence;
+		this.recSequence = recSequence & 0xFFFFFFFFL;
 	}
 
 //	public SocketChannel getSocketChannel() {
@@ -373,6 +388,13 @@ public class Session {
 	synchronized void setLastUdpHeader(UDPHeader lastUdpHeader) {
 		this.lastUdpHeader = lastUdpHeader;
 	}
+	@Nullable
+	public TCPResponseTemplate getResponseTemplate() {
+		return responseTemplate;
+	}
+	void setResponseTemplate(@Nullable TCPResponseTemplate responseTemplate) {
+		this.responseTemplate = responseTemplate;
+	}
 	boolean isClosingConnection() {
 		return closingConnection;
 	}
@@ -385,25 +407,63 @@ public class Session {
 	void setDataForSendingReady(boolean isDataForSendingReady) {
 		this.isDataForSendingReady = isDataForSendingReady;
 	}
-//	public byte[] getUnackData() {
-//		return unackData;
-//	}
-	public void setUnackData(byte[] unackData) {
-		this.unackData = unackData;
+
+	/**
+	 * decide whether data from client should be written to destination now, without waiting for
+	 * PSH. Like Nagle's algorithm, a small amount is held back until more arrives or the oldest
+	 * byte has waited long enough, so a bulk upload is written in large pieces.
+	 * @param coalesceBytes buffered bytes that are written right away
+	 * @param maxDelay milliseconds the oldest buffered byte may wait
+	 * @param now current time in milliseconds
+	 * @return true if PSH was received or either bound is reached
+	 */
+	public boolean isDataForSendingReady(int coalesceBytes, long maxDelay, long now) {
+		if (isDataForSendingReady) {
+			return true;
+		}
+		long since = pendingSince;
+		if (since == 0) {
+			//data added while a writer was flushing, its waiting time starts now
+			since = now;
+			pendingSince = now;
+		}
+		return sendingQueue.size() >= coalesceBytes || now - since >= maxDelay;
+	}
+
+	/**
+	 * data from client was added to the sending buffer
+	 * @param now current time in milliseconds
+	 */
+	void onDataBuffered(long now) {
+		if (pendingSince == 0) {
+			pendingSince = now;
+		}
+	}
+
+	/**
+	 * @return true if the caller should schedule the flush check, false if one is already scheduled
+	 */
+	boolean scheduleFlush() {
+		return flushScheduled.compareAndSet(false, true);
+	}
+
+	void onFlushTimer() {
+		flushScheduled.set(false);
+	}
+
+	/**
+	 * the sending buffer was written out completely, so following data is coalesced again
+	 */
+	public void onDataFlushed() {
+		pendingSince = 0;
+		isDataForSendingReady = false;
 	}
-	
 //	public boolean isPacketCorrupted() {
 //		return packetCorrupted;
 //	}
 	void setPacketCorrupted(boolean packetCorrupted) {
 		this.packetCorrupted = packetCorrupted;
 	}
-//	public int getResendPacketCounter() {
-//		return resendPacketCounter;
-//	}
-	public void setResendPacketCounter(int resendPacketCounter) {
-		this.resendPacketCounter = resendPacketCounter;
-	}
 	public int getTimestampSender() {
 		return timestampSender;
 	}
@@ -429,17 +489,106 @@ public class Session {
 //		this.ackedToFinTime = ackedToFinTime;
 //	}
 	
-	public boolean isBusyRead() {
-		return isBusyRead;
+	/**
+	 * for sessions in blocking mode, which have no selector: wait until the receiving buffer has
+	 * room for data from the remote server
+	 * @param timeout longest wait in milliseconds
+	 * @return true if there is room
+	 */
+	public boolean awaitReceivingRoom(long timeout) throws InterruptedException {
+		synchronized (ioMonitor) {
+			if (receivingQueue.available() == 0) {
+				ioMonitor.wait(timeout);
+			}
+			return receivingQueue.available() > 0;
+		}
+	}
+
+	/**
+	 * add socket operations to be run by this session's thread
+	 * @param operations SelectionKey.OP_READ and/or SelectionKey.OP_WRITE
+	 * @return true if nothing was pending, so the session must be queued
+	 */
+	public boolean addPendingOperations(int operations) {
+		while (true) {
+			final int pending = pendingOperations.get();
+			if (pendingOperations.compareAndSet(pending, pending | operations)) {
+				return pending == 0;
+			}
+		}
+	}
+
+	/**
+	 * @return pending socket operations, which are cleared
+	 */
+	public int takePendingOperations() {
+		return pendingOperations.getAndSet(0);
+	}
+
+	/**
+	 * record activity, which postpones expiry
+	 * @param now current time in milli sec
+	 */
+	public void touch(long now) {
+		lastActive = now;
+	}
+
+	long getLastActive() {
+		return lastActive;
+	}
+
+	/**
+	 * @return true if either side has finished or the connection is being aborted
+	 */
+	boolean isHalfClosed() {
+		return closingConnection || ackedToFin || hasReceivedLastSegment || abortingConnection;
+	}
+
+	Session getWheelNext() {
+		return wheelNext;
+	}
+
+	void setWheelNext(Session wheelNext) {
+		this.wheelNext = wheelNext;
 	}
-	public void setBusyread(boolean isbusyread) {
-		this.isBusyRead = isbusyread;
+
+	void markConnectPending() {
+		connectPending.set(true);
 	}
-	public boolean isBusywrite() {
-		return isBusyWrite;
+
+	/**
+	 * @return true if the connect was pending, false if it was cleared already
+	 */
+	boolean clearConnectPending() {
+		return connectPending.compareAndSet(true, false);
 	}
-	public void setBusywrite(boolean isbusywrite) {
-		this.isBusyWrite = isbusywrite;
+
+	public boolean isConnectPending() {
+		return connectPending.get();
+	}
+
+	void setConnectTimeout(@Nullable ScheduledFuture<?> timeout) {
+		connectTimeout.set(timeout);
+	}
+
+	/**
+	 * @return connect timeout not taken yet, which is cleared, or null
+	 */
+	@Nullable
+	ScheduledFuture<?> takeConnectTimeout() {
+		return connectTimeout.getAndSet(null);
+	}
+
+	void setPendingSynAck(@Nullable byte[] synAck) {
+		pendingSynAck.set(synAck);
+	}
+
+	/**
+	 * @return SYN-ACK not sent to client yet, which is cleared, or null
+	 */
+	@Nullable
+	byte[] takePendingSynAck() {
+		return pendingSynAck.getAndSet(null);
 	}
 	public boolean isAbortingConnection() {
 		return abortingConnection;
@@ -453,4 +602,39 @@ public class Session {
 	void setSelectionKey(SelectionKey selectionkey) {
 		this.selectionkey = selectionkey;
 	}
+
+	/**
+	 * add or remove an operation from the interest set of this session's SelectionKey. The selector
+	 * is woken up when an operation is added, so it does not wait for another event to select it.
+	 * @param operation e.g. SelectionKey.OP_READ
+	 * @param enable true to add, false to remove
+	 */
+	public void setInterest(int operation, boolean enable) {
+		final SelectionKey key = selectionkey;
+		if (key == null && enable && operation == SelectionKey.OP_READ) {
+			//blocking mode, wake the thread waiting in awaitReceivingRoom
+			synchronized (ioMonitor) {
+				ioMonitor.notifyAll();
+			}
+			return;
+		}
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		try {
+			synchronized (key) {
+				final int ops = key.interestOps();
+				final int newOps = enable ? ops | operation : ops & ~operation;
+				if (newOps == ops) {
+					return;
+				}
+				key.interestOps(newOps);
+			}
+		} catch (CancelledKeyException e) {
+			return;
+		}
+		if (enable) {
+			key.selector().wakeup();
+		}
+	}
 }
@@ -18,16 +18,22 @@ package com.lipisoft.toyshark;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.spi.AbstractSelectableChannel;
 
 import com.lipisoft.toyshark.network.ip.IPPacketFactory;
 import com.lipisoft.toyshark.network.ip.IPv4Header;
 import com.lipisoft.toyshark.socket.SocketData;
+import com.lipisoft.toyshark.socket.TCPSender;
 import com.lipisoft.toyshark.transport.tcp.PacketHeaderException;
 import com.lipisoft.toyshark.transport.tcp.TCPHeader;
 import com.lipisoft.toyshark.transport.tcp.TCPPacketFactory;
+import com.lipisoft.toyshark.transport.tcp.TCPReassemblyBuffer;
+import com.lipisoft.toyshark.transport.tcp.TCPResponseTemplate;
+import com.lipisoft.toyshark.transport.tcp.TCPSendWindow;
 import com.lipisoft.toyshark.transport.ITransportHeader;
 import com.lipisoft.toyshark.transport.udp.UDPHeader;
 import com.lipisoft.toyshark.transport.udp.UDPPacketFactory;
+import com.lipisoft.toyshark.util.PacketBuffer;
 import com.lipisoft.toyshark.util.PacketUtil;
 
 import androidx.annotation.NonNull;
@@ -44,6 +50,8 @@ class SessionHandler {
 	private static final SessionHandler handler = new SessionHandler();
 	private IClientPacketWriter writer;
 	private SocketData packetData;
+	//SACK blocks of the ACK being built, packets from client are handled by one thread
+	private final long[] sackBlocks = new long[8];
 
 	public static SessionHandler getInstance(){
 		return handler;
@@ -58,7 +66,7 @@ class SessionHandler {
 	}
 
 	private void handleUDPPacket(ByteBuffer clientPacketData, IPv4Header ipHeader, UDPHeader udpheader){
-		Session session = SessionManager.INSTANCE.getSession(ipHeader.getDestinationIP(), udpheader.getDestinationPort(),
+		Session session = SessionManager.INSTANCE.getSession(FlowKey.UDP, ipHeader.getDestinationIP(), udpheader.getDestinationPort(),
 				ipHeader.getSourceIP(), udpheader.getSourcePort());
 
 		if(session == null){
@@ -74,6 +82,7 @@ class SessionHandler {
 		session.setLastUdpHeader(udpheader);
 		int len = SessionManager.INSTANCE.addClientData(clientPacketData, session);
 		session.setDataForSendingReady(true);
+		SessionManager.INSTANCE.requestUplinkWrite(session);
 		Log.d(TAG,"added UDP data for bg worker to send: "+len);
 		SessionManager.INSTANCE.keepSessionAlive(session);
 	}
@@ -91,8 +100,7 @@ class SessionHandler {
 			//set windows size and scale, set reply time in options
 			replySynAck(ipHeader,tcpheader);
 		} else if(tcpheader.isACK()) {
-			String key = SessionManager.INSTANCE.createKey(destinationIP, destinationPort, sourceIP, sourcePort);
-			Session session = SessionManager.INSTANCE.getSessionByKey(key);
+			Session session = SessionManager.INSTANCE.getSession(FlowKey.TCP, destinationIP, destinationPort, sourceIP, sourcePort);
 
 			if(session == null) {
 				if (tcpheader.isFIN()) {
@@ -101,7 +109,8 @@ class SessionHandler {
 					sendRstPacket(ipHeader, tcpheader, dataLength);
 				}
 				else {
-					Log.e(TAG,"**** ==> Session not found: " + key);
+					Log.e(TAG,"**** ==> Session not found: " +
+							SessionManager.INSTANCE.createKey(destinationIP, destinationPort, sourceIP, sourcePort));
 				}
 				return;
 			}
@@ -111,13 +120,42 @@ class SessionHandler {
 
 			//any data from client?
 			if(dataLength > 0) {
-				//accumulate data from client
-				if(session.getRecSequence() == 0 || tcpheader.getSequenceNumber() >= session.getRecSequence()) {
-					int addedLength = SessionManager.INSTANCE.addClientData(clientPacketData, session);
+				//data segments carry the client's latest ACK and window too
+				TCPSender.getInstance().acknowledge(session, tcpheader.getAckNumber(), tcpheader.getWindowSize(),
+						tcpheader.getSackBlocks(), false);
+				//accumulate data from client, sequence numbers compare modulo 2^32
+				ByteBuffer data = clientPacketData;
+				int offset = (int) (tcpheader.getSequenceNumber() - session.getRecSequence());
+				if(offset < 0 && offset + dataLength > 0) {
+					//retransmission that also carries bytes already acknowledged, keep only the new ones
+					data = clientPacketData.duplicate();
+					data.position(data.position() - offset);
+					offset = 0;
+				}
+				if(offset == 0) {
+					int addedLength = SessionManager.INSTANCE.addClientData(data, session);
+					if(addedLength == data.remaining()) {
+						//this may fill the gap in front of segments received out of order
+						addedLength += session.getReassemblyBuffer().drainTo(
+								session.getRecSequence() + addedLength, session.getSendingQueue());
+					}
+					if(addedLength > 0) {
+						session.onDataBuffered(System.nanoTime() / 1000000);
+						if(!tcpheader.isPSH()) {
+							SessionManager.INSTANCE.requestUplinkWrite(session);
+						}
+					}
 					//send ack to client only if new data was added
 					sendAck(ipHeader, tcpheader, addedLength, session);
+				} else if(offset > 0) {
+					//an earlier segment is missing, hold this one and tell client what we have
+					final TCPResponseTemplate template = session.getResponseTemplate();
+					session.getReassemblyBuffer().add(tcpheader.getSequenceNumber(), data, session.getRecSequence(),
+							template != null ? template.getWindow() : tcpheader.getWindowSize() & 0xFFFF);
+					sendAck(ipHeader, tcpheader, 0, session);
 				} else {
-					sendAckForDisorder(ipHeader, tcpheader, dataLength);
+					//duplicate of data already acknowledged, the ACK may have been lost
+					sendAck(ipHeader, tcpheader, 0, session);
 				}
 			} else {
 				//an ack from client for previously sent data
@@ -127,8 +165,13 @@ class SessionHandler {
 					sendFinAck(ipHeader, tcpheader, session);
 				}else if(session.isAckedToFin() && !tcpheader.isFIN()){
 					//the last ACK from client after FIN-ACK flag was sent
-					SessionManager.INSTANCE.closeSession(destinationIP, destinationPort, sourceIP, sourcePort);
+					SessionManager.INSTANCE.closeSession(FlowKey.TCP, destinationIP, destinationPort, sourceIP, sourcePort);
 					Log.d(TAG,"got last ACK after FIN, session is now closed.");
+				}else if(session.getSendWindow().isFinAcknowledged() && !tcpheader.isFIN()){
+					//remote server has closed and client has received everything up to its FIN
+					SessionManager.INSTANCE.closeSession(session);
+					Log.d(TAG,"client acknowledged FIN from remote server, session is now closed.");
+					return;
 				}
 			}
 			//received the last segment of data from vpn client
@@ -137,10 +180,13 @@ class SessionHandler {
 				//Background thread will send packet to client
 				pushDataToDestination(session, tcpheader);
 			} else if(tcpheader.isFIN()){
-				//fin from vpn client is the last packet
-				//ack it
-				Log.d(TAG,"FIN from vpn client, will ack it.");
-				ackFinAck(ipHeader, tcpheader, session);
+				//fin from vpn client is the last packet, but only once everything before it arrived
+				if((int) (tcpheader.getSequenceNumber() + dataLength - session.getRecSequence()) == 0) {
+					Log.d(TAG,"FIN from vpn client, will ack it.");
+					ackFinAck(ipHeader, tcpheader, session);
+				} else {
+					Log.d(TAG,"FIN from vpn client ahead of missing data, wait for retransmission.");
+				}
 			} else if(tcpheader.isRST()){
 				resetConnection(ipHeader, tcpheader);
 			}
@@ -150,7 +196,7 @@ class SessionHandler {
 			}
 		} else if(tcpheader.isFIN()){
 			//case client sent FIN without ACK
-			Session session = SessionManager.INSTANCE.getSession(destinationIP, destinationPort, sourceIP, sourcePort);
+			Session session = SessionManager.INSTANCE.getSession(FlowKey.TCP, destinationIP, destinationPort, sourceIP, sourcePort);
 			if(session == null)
 				ackFinAck(ipHeader, tcpheader, null);
 			else
@@ -160,7 +206,11 @@ class SessionHandler {
 			resetConnection(ipHeader, tcpheader);
 		} else {
 			Log.d(TAG,"unknown TCP flag");
-			String str1 = PacketUtil.getOutput(ipHeader, tcpheader, clientPacketData.array());
+			final ByteBuffer rawPacket = clientPacketData.duplicate();
+			rawPacket.rewind();
+			final byte[] packetData = new byte[rawPacket.remaining()];
+			rawPacket.get(packetData);
+			String str1 = PacketUtil.getOutput(ipHeader, tcpheader, packetData);
 			Log.d(TAG,">>>>>>>> Received from client <<<<<<<<<<");
 			Log.d(TAG,str1);
 			Log.d(TAG,">>>>>>>>>>>>>>>>>>>end receiving from client>>>>>>>>>>>>>>>>>>>>>");
@@ -168,14 +218,13 @@ class SessionHandler {
 	}
 
 	/**
-	 * handle each packet from each vpn client
-	 * @param stream ByteBuffer to be read
+	 * handle each packet from each vpn client. The packet is shared, not copied, with the capture
+	 * queue and the packet list; both retain it, so the caller may release it after this returns.
+	 * @param rawPacket packet read from VPN interface, position 0 and limit at the end of the packet
 	 */
-	void handlePacket(@NonNull ByteBuffer stream) throws PacketHeaderException {
-		final byte[] rawPacket = new byte[stream.limit()];
-		stream.get(rawPacket, 0, stream.limit());
+	void handlePacket(@NonNull PacketBuffer rawPacket) throws PacketHeaderException {
 		packetData.addData(rawPacket);
-		stream.rewind();
+		final ByteBuffer stream = rawPacket.getBuffer();
 
 		final IPv4Header ipHeader = IPPacketFactory.createIPv4Header(stream);
 
@@ -189,7 +238,7 @@ class SessionHandler {
 			return;
 		}
 
-		final Packet packet = new Packet(ipHeader, transportHeader, stream.array());
+		final Packet packet = new Packet(ipHeader, transportHeader, rawPacket);
 		PacketManager.INSTANCE.add(packet);
 		PacketManager.INSTANCE.getHandler().obtainMessage(PacketManager.PACKET).sendToTarget();
 
@@ -227,14 +276,15 @@ class SessionHandler {
 	}
 
 	private void ackFinAck(IPv4Header ip, TCPHeader tcp, Session session){
-		long ack = tcp.getSequenceNumber() + 1;
+		//FIN may carry data, which is already acknowledged in the session
+		long ack = session != null ? session.getRecSequence() + 1 : tcp.getSequenceNumber() + 1;
 		long seq = tcp.getAckNumber();
 		byte[] data = TCPPacketFactory.createFinAckData(ip, tcp, ack, seq, true, true);
 		try {
 			writer.write(data);
 			packetData.addData(data);
 			if(session != null){
-				session.getSelectionKey().cancel();
+				//closing the channel also cancels its key, which may not be registered yet
 				SessionManager.INSTANCE.closeSession(session);
 				Log.d(TAG,"ACK to client's FIN and close session => "+PacketUtil.intToIPAddress(ip.getDestinationIP())+":"+tcp.getDestinationPort()
 						+"-"+PacketUtil.intToIPAddress(ip.getSourceIP())+":"+tcp.getSourcePort());
@@ -285,6 +335,7 @@ class SessionHandler {
 		session.setDataForSendingReady(true);
 		session.setTimestampReplyto(tcp.getTimeStampSender());
 		session.setTimestampSender((int)System.currentTimeMillis());
+		SessionManager.INSTANCE.requestUplinkWrite(session);
 
 		Log.d(TAG,"set data ready for sending to dest, bg will do it. data size: "
                 + session.getSendingDataSize());
@@ -301,30 +352,39 @@ class SessionHandler {
 		long acknumber = session.getRecSequence() + acceptedDataLength;
 		Log.d(TAG,"sent ack, ack# "+session.getRecSequence()+" + "+acceptedDataLength+" = "+acknumber);
 		session.setRecSequence(acknumber);
-		byte[] data = TCPPacketFactory.createResponseAckData(ipheader, tcpheader, acknumber);
-		try {
-			writer.write(data);
-			packetData.addData(data);
-		} catch (IOException e) {
-			Log.e(TAG,"Failed to send ACK packet: " + e.getMessage());
+		final TCPResponseTemplate template = session.getResponseTemplate();
+		if (template == null) {
+			byte[] data = TCPPacketFactory.createResponseAckData(ipheader, tcpheader, acknumber);
+			try {
+				writer.write(data);
+				packetData.addData(data);
+			} catch (IOException e) {
+				Log.e(TAG,"Failed to send ACK packet: " + e.getMessage());
+			}
+			return;
 		}
-	}
-
-	private void sendAckForDisorder(IPv4Header ipHeader, TCPHeader tcpheader, int acceptedDataLength) {
-		long ackNumber = tcpheader.getSequenceNumber() + acceptedDataLength;
-		Log.d(TAG,"sent ack, ack# " + tcpheader.getSequenceNumber() +
-				" + " + acceptedDataLength + " = " + ackNumber);
-		byte[] data = TCPPacketFactory.createResponseAckData(ipHeader, tcpheader, ackNumber);
+		//client must not send more than the sending buffer can take
+		template.setWindow(session.getSendingQueue().available());
+		//report data held out of order, so client retransmits only the holes
+		final TCPReassemblyBuffer reassemblyBuffer = session.getReassemblyBuffer();
+		final int sackBlockCount = template.isSackPermitted() && !reassemblyBuffer.isEmpty()
+				? reassemblyBuffer.getSackBlocks(sackBlocks, template.getMaxSackBlocks()) : 0;
+		final PacketBuffer packet = template.createPacket(SessionManager.INSTANCE.getResponsePool(),
+				TCPResponseTemplate.ACK, session.getSendNext(), acknumber,
+				(int) System.currentTimeMillis(), tcpheader.getTimeStampSender(),
+				sackBlocks, sackBlockCount, null, 0, 0);
 		try {
-			writer.write(data);
-			packetData.addData(data);
+			writer.write(packet);
+			packetData.addData(packet, PacketBuffer.DIRECTION_INBOUND);
 		} catch (IOException e) {
 			Log.e(TAG,"Failed to send ACK packet: " + e.getMessage());
+		} finally {
+			packet.release();
 		}
 	}
 
 	/**
-	 * acknowledge a packet and adjust the receiving window to avoid congestion.
+	 * acknowledge data sent to client, take its new window and send more data if the window allows.
 	 * @param tcpHeader TCP Header
 	 * @param session Session
 	 */
@@ -334,34 +394,32 @@ class SessionHandler {
 		if(isCorrupted){
 			Log.e(TAG,"prev packet was corrupted, last ack# " + tcpHeader.getAckNumber());
 		}
-		if(tcpHeader.getAckNumber() > session.getSendUnack() ||
-				tcpHeader.getAckNumber() == session.getSendNext()){
-			session.setAcked(true);
-			//Log.d(TAG,"Accepted ack from client, ack# "+tcpheader.getAckNumber());
-			
-			if(tcpHeader.getWindowSize() > 0){
-				session.setSendWindowSizeAndScale(tcpHeader.getWindowSize(), session.getSendWindowScale());
-			}
-			session.setSendUnack(tcpHeader.getAckNumber());
-			session.setRecSequence(tcpHeader.getSequenceNumber());
-			session.setTimestampReplyto(tcpHeader.getTimeStampSender());
-			session.setTimestampSender((int) System.currentTimeMillis());
-		} else {
+		final int result = TCPSender.getInstance().acknowledge(session, tcpHeader.getAckNumber(),
+				tcpHeader.getWindowSize(), tcpHeader.getSackBlocks(), !tcpHeader.isFIN());
+		if(result == TCPSendWindow.ACK_IGNORED && (tcpHeader.getAckNumber() & 0xFFFFFFFFL) != session.getSendNext()){
 			Log.d(TAG,"Not Accepting ack# "+tcpHeader.getAckNumber() +" , it should be: "+session.getSendNext());
-			Log.d(TAG,"Prev sendUnack: "+session.getSendUnack());
-			session.setAcked(false);
+			Log.d(TAG,"Prev sendUnack: "+session.getSendWindow().getSendUnack());
+			return;
 		}
+		session.setTimestampReplyto(tcpHeader.getTimeStampSender());
+		session.setTimestampSender((int) System.currentTimeMillis());
 	}
 	/**
-	 * set connection as aborting so that background worker will close it.
+	 * set connection as aborting so that background worker will close it. A thread blocked in
+	 * reading a blocking channel does not see the flag, so such a session is closed right away,
+	 * which makes the read throw.
 	 * @param ip IP
 	 * @param tcp TCP
 	 */
 	private void resetConnection(IPv4Header ip, TCPHeader tcp){
-		Session session = SessionManager.INSTANCE.getSession(ip.getDestinationIP(), tcp.getDestinationPort(),
+		Session session = SessionManager.INSTANCE.getSession(FlowKey.TCP, ip.getDestinationIP(), tcp.getDestinationPort(),
 				ip.getSourceIP(), tcp.getSourcePort());
 		if(session != null){
 			session.setAbortingConnection(true);
+			final AbstractSelectableChannel channel = session.getChannel();
+			if (channel != null && channel.isBlocking()) {
+				SessionManager.INSTANCE.closeSession(session);
+			}
 		}
 	}
 
@@ -372,31 +430,95 @@ class SessionHandler {
 	 */
 	private void replySynAck(IPv4Header ip, TCPHeader tcp){
 		ip.setIdentification(0);
+		if (SessionManager.INSTANCE.getSession(FlowKey.TCP, ip.getDestinationIP(), tcp.getDestinationPort(),
+				ip.getSourceIP(), tcp.getSourcePort()) == null) {
+			if (SessionManager.INSTANCE.isConnectLimitReached()) {
+				//fail fast rather than queue behind connects that may never complete
+				Log.d(TAG,"Too many pending connects, reset client");
+				sendRstPacket(ip, tcp, 1);
+				return;
+			}
+			if (!SessionManager.INSTANCE.admitSession()) {
+				//out of sessions or buffer memory
+				sendRstPacket(ip, tcp, 1);
+				return;
+			}
+		}
 		Packet packet = TCPPacketFactory.createSynAckPacketData(ip, tcp);
 		
 		TCPHeader tcpheader = (TCPHeader) packet.getTransportHeader();
 		
-		Session session = SessionManager.INSTANCE.createNewSession(ip.getDestinationIP(),
+		Session session = SessionManager.INSTANCE.createPendingSession(ip.getDestinationIP(),
 				tcp.getDestinationPort(), ip.getSourceIP(), tcp.getSourcePort());
 		if(session == null)
 			return;
 		
-		int windowScaleFactor = (int) Math.pow(2, tcpheader.getWindowScale());
-		//Log.d(TAG,"window scale: Math.power(2,"+tcpheader.getWindowScale()+") is "+windowScaleFactor);
-		session.setSendWindowSizeAndScale(tcpheader.getWindowSize(), windowScaleFactor);
-		Log.d(TAG,"send-window size: " + session.getSendWindow());
+		//window of the SYN is not scaled, client's window scale applies from its next segment on
+		session.getSendWindow().start(tcpheader.getSequenceNumber() + 1, tcp.getWindowSize(), tcp.getWindowScale());
+		Log.d(TAG,"send-window size: " + session.getSendWindow().getWindow());
 		session.setMaxSegmentSize(tcpheader.getMaxSegmentSize());
-		session.setSendUnack(tcpheader.getSequenceNumber());
-		session.setSendNext(tcpheader.getSequenceNumber() + 1);
 		//client initial sequence has been incremented by 1 and set to ack
 		session.setRecSequence(tcpheader.getAckNumber());
+		session.setResponseTemplate(TCPResponseTemplate.create(ip, tcp));
+		//the SYN is answered by RST if the connect fails before client sends anything else
+		session.setLastIpHeader(ip);
+		session.setLastTcpHeader(tcp);
+
+		final byte[] synAck = packet.getBuffer();
+		final boolean deferred = SessionManager.INSTANCE.isDeferredSynAck();
+		if (deferred) {
+			session.setPendingSynAck(synAck);
+		}
+
+		//the socket is set up by another thread, packets of other sessions need not wait for it
+		if (!SessionManager.INSTANCE.connectAsync(session)) {
+			sendRstPacket(ip, tcp, 1);
+			return;
+		}
+		if (deferred) {
+			Log.d(TAG,"SYN-ACK deferred until connected to remote server");
+			return;
+		}
 
 		try {
-			writer.write(packet.getBuffer());
-			packetData.addData(packet.getBuffer());
+			writer.write(synAck);
+			packetData.addData(synAck);
 			Log.d(TAG,"Send SYN-ACK to client");
 		} catch (IOException e) {
 			Log.e(TAG,"Error sending data to client: "+e.getMessage());
 		}
 	}
+
+	/**
+	 * send the SYN-ACK held back until the remote server accepted the connection, if any
+	 * @param session TCP session
+	 */
+	void sendPendingSynAck(@NonNull Session session) {
+		final byte[] synAck = session.takePendingSynAck();
+		if (synAck == null) {
+			return;
+		}
+		try {
+			writer.write(synAck);
+			packetData.addData(synAck);
+			Log.d(TAG,"Send deferred SYN-ACK to client");
+		} catch (IOException e) {
+			Log.e(TAG,"Error sending data to client: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * reset client after the connect to the remote server failed. If client got the SYN-ACK but
+	 * has not answered yet, there is no sequence number to reset it with; its next segment is reset.
+	 * @param session TCP session
+	 */
+	void resetClient(@NonNull Session session) {
+		final boolean synAckPending = session.takePendingSynAck() != null;
+		final IPv4Header ip = session.getLastIpHeader();
+		final TCPHeader tcp = session.getLastTcpHeader();
+		if (ip == null || tcp == null || (tcp.isSYN() && !synAckPending)) {
+			return;
+		}
+		sendRstPacket(ip, tcp, tcp.isSYN() ? 1 : 0);
+	}
 }//end class
@@ -20,9 +20,13 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.util.Log;
 
-import com.lipisoft.toyshark.socket.DataConst;
-import com.lipisoft.toyshark.socket.SocketNIODataService;
-import com.lipisoft.toyshark.socket.SocketProtector;
+import com.lipisoft.toyshark.socket.BlockingSocketService;
+import com.lipisoft.toyshark.socket.ProtectedChannelPool;
+import com.lipisoft.toyshark.transport.tcp.TCPReassemblyBuffer;
+import com.lipisoft.toyshark.transport.tcp.TCPResponseTemplate;
+import com.lipisoft.toyshark.transport.tcp.TCPSendWindow;
+import com.lipisoft.toyshark.util.ChunkedByteQueue;
+import com.lipisoft.toyshark.util.PacketBufferPool;
 import com.lipisoft.toyshark.util.PacketUtil;
 
 import java.io.IOException;
@@ -33,12 +37,21 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
-import java.util.Collection;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manage in-memory storage for VPN client session.
@@ -49,20 +62,503 @@ public enum SessionManager {
 	INSTANCE;
 
 	private final String TAG = "SessionManager";
-	private final Map<String, Session> table = new ConcurrentHashMap<>();
-	private SocketProtector protector = SocketProtector.getInstance();
-	private Selector selector;
+	//largest segment to client: payload is cut from the head chunk of a session's receiving buffer
+	private static final int RESPONSE_BUFFER_SIZE = ChunkedByteQueue.CHUNK_SIZE + TCPResponseTemplate.MAX_HEADER_LENGTH;
+	private static final int MAX_POOLED_RESPONSES = 128;
+	//one selector per core by default, more rarely pays off on a phone
+	private static final int MAX_DEFAULT_SELECTORS = 4;
+	//new TCP sessions waiting for their socket, more are refused
+	private static final int MAX_PENDING_SETUPS = 1024;
+	public static final int DEFAULT_UPLINK_COALESCE_BYTES = 8 * 1024;
+	public static final int DEFAULT_UPLINK_FLUSH_DELAY = 5;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	//idle time in milli sec after which a session is closed
+	public static final int DEFAULT_UDP_IDLE_TIMEOUT = 60 * 1000;
+	public static final int DEFAULT_TCP_IDLE_TIMEOUT = 30 * 60 * 1000;
+	public static final int DEFAULT_TCP_HALF_CLOSED_TIMEOUT = 60 * 1000;
+	//well below the usual limit of 1024 file descriptors per process
+	public static final int DEFAULT_MAX_SESSIONS = 512;
+	public static final long DEFAULT_MAX_BUFFERED_BYTES = 32 * 1024 * 1024;
+	//sessions active more recently than this are not evicted to admit a new one, in milli sec
+	private static final int MIN_EVICTABLE_IDLE = 5000;
+	//a new session over the byte budget scans the sessions at most this often, in milli sec
+	private static final int MIN_BUDGET_SCAN_INTERVAL = 100;
+	//the expiry wheel turns once per second and covers about 8.5 minutes per turn
+	private static final int EXPIRY_TICK = 1000;
+	private static final int EXPIRY_SLOTS = 512;
+	public static final int DEFAULT_MAX_PENDING_CONNECTS = 256;
+	private final SessionTable table = new SessionTable();
+	//buffers of packets generated for VPN client from session templates
+	private final PacketBufferPool responsePool = new PacketBufferPool(RESPONSE_BUFFER_SIZE, MAX_POOLED_RESPONSES);
+	//each session's channel is registered with one of these, chosen by flow hash
+	private volatile SelectorLoop[] selectorLoops = new SelectorLoop[0];
+	//bytes a session may buffer in each direction
+	private volatile int sessionBufferLimit = Session.DEFAULT_BUFFER_LIMIT;
+	//data from client is written to destination without waiting for PSH
+	private volatile boolean streamingUplink = true;
+	private volatile int uplinkCoalesceBytes = DEFAULT_UPLINK_COALESCE_BYTES;
+	private volatile int uplinkFlushDelay = DEFAULT_UPLINK_FLUSH_DELAY;
+	//TCP sessions created from now on use a blocking socket on a thread of their own
+	private volatile boolean blockingTcp = false;
+	//creates, protects and connects sockets of new TCP sessions off the VPN interface thread
+	private final ThreadPoolExecutor setupExecutor;
+	//checks sessions holding back a small amount of data from client once it is due, and
+	//connects taking too long
+	private final ScheduledThreadPoolExecutor timer;
+	//SYN-ACK is sent to client only once the remote server accepted the connection
+	private volatile boolean deferSynAck = false;
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int maxPendingConnects = DEFAULT_MAX_PENDING_CONNECTS;
+	//sessions whose connect has neither completed nor failed yet
+	private final AtomicInteger pendingConnects = new AtomicInteger();
+	//closes sessions idle for too long
+	private final SessionTimingWheel expiryWheel = new SessionTimingWheel(EXPIRY_SLOTS, EXPIRY_TICK, now());
+	private volatile int udpIdleTimeout = DEFAULT_UDP_IDLE_TIMEOUT;
+	private volatile int tcpIdleTimeout = DEFAULT_TCP_IDLE_TIMEOUT;
+	private volatile int tcpHalfClosedTimeout = DEFAULT_TCP_HALF_CLOSED_TIMEOUT;
+	private final AtomicLong reapedUdpSessions = new AtomicLong();
+	private final AtomicLong reapedTcpSessions = new AtomicLong();
+	private final AtomicLong reapedHalfClosedSessions = new AtomicLong();
+	//global budget of all sessions
+	private volatile int maxSessions = DEFAULT_MAX_SESSIONS;
+	private volatile long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+	private final AtomicLong evictedSessions = new AtomicLong();
+	private final AtomicLong rejectedSessions = new AtomicLong();
+	//while over the budget, new sessions are rejected without a scan of all sessions until then.
+	//No session can become evictable earlier: the least recently active one found by the last
+	//scan was active too recently, and activity only moves forward.
+	private volatile long nextEvictionScan = 0;
+	private volatile long nextBudgetScan = 0;
 
 	SessionManager() {
+		timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(@NonNull Runnable runnable) {
+				final Thread thread = new Thread(runnable, "SessionTimer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		setupExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_PENDING_SETUPS), new ThreadFactory() {
+			@Override
+			public Thread newThread(@NonNull Runnable runnable) {
+				final Thread thread = new Thread(runnable, "SessionSetup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					expireIdleSessions(now());
+					enforceMemoryBudget();
+				} catch (RuntimeException e) {
+					//an exception would cancel the schedule
+					Log.e(TAG, "Failed to expire sessions: " + e.toString());
+				}
+			}
+		}, EXPIRY_TICK, EXPIRY_TICK, TimeUnit.MILLISECONDS);
+		setSelectorCount(Math.min(MAX_DEFAULT_SELECTORS, Runtime.getRuntime().availableProcessors()));
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * choose how long sessions may stay idle, in either direction, before they are closed
+	 * @param udp milli sec for UDP sessions
+	 * @param tcp milli sec for established TCP sessions
+	 * @param tcpHalfClosed milli sec for TCP sessions one side has finished or which are aborting
+	 */
+	public void setIdleTimeouts(int udp, int tcp, int tcpHalfClosed) {
+		udpIdleTimeout = Math.max(EXPIRY_TICK, udp);
+		tcpIdleTimeout = Math.max(EXPIRY_TICK, tcp);
+		tcpHalfClosedTimeout = Math.max(EXPIRY_TICK, tcpHalfClosed);
+	}
+
+	public long getReapedUdpSessions() {
+		return reapedUdpSessions.get();
+	}
+
+	public long getReapedTcpSessions() {
+		return reapedTcpSessions.get();
+	}
+
+	public long getReapedHalfClosedSessions() {
+		return reapedHalfClosedSessions.get();
+	}
+
+	/**
+	 * close sessions whose idle timeout has passed
+	 * @param now current time in milli sec
+	 */
+	void expireIdleSessions(long now) {
+		expiryWheel.advance(now, new SessionTimingWheel.Callback() {
+			@Override
+			public long onDue(@NonNull Session session, long now) {
+				if (table.get(session.getAddressKey(), session.getPortKey()) != session) {
+					//closed meanwhile
+					return 0;
+				}
+				final boolean tcp = session.getProtocol() == FlowKey.TCP;
+				final boolean halfClosed = tcp && session.isHalfClosed();
+				final long deadline = session.getLastActive()
+						+ (!tcp ? udpIdleTimeout : halfClosed ? tcpHalfClosedTimeout : tcpIdleTimeout);
+				if (deadline > now) {
+					return deadline;
+				}
+				Log.d(TAG, "expired idle session: " + FlowKey.toString(session.getAddressKey(), session.getPortKey()));
+				if (tcp) {
+					//client may still be there, tell it the connection is gone
+					SessionHandler.getInstance().resetClient(session);
+					(halfClosed ? reapedHalfClosedSessions : reapedTcpSessions).incrementAndGet();
+				} else {
+					reapedUdpSessions.incrementAndGet();
+				}
+				session.setAbortingConnection(true);
+				closeSession(session);
+				return 0;
+			}
+		});
+	}
+
+	/**
+	 * limit what all sessions together may use. Beyond the session count, least recently active
+	 * sessions are evicted to admit new ones, or new ones are rejected if all are in use. Beyond the
+	 * buffered bytes, new sessions are rejected and least recently active sessions holding buffers
+	 * are evicted. Evicted TCP sessions are reset.
+	 * @param sessions maximum number of sessions
+	 * @param bufferedBytes maximum bytes buffered by all sessions
+	 */
+	public void setBudget(int sessions, long bufferedBytes) {
+		maxSessions = Math.max(1, sessions);
+		maxBufferedBytes = Math.max(ChunkedByteQueue.CHUNK_SIZE, bufferedBytes);
+	}
+
+	public int getSessionCount() {
+		return table.size();
+	}
+
+	/**
+	 * @return bytes of buffers held by all sessions: queue chunks, segments from clients held out
+	 * of order and packets kept for retransmission to clients
+	 */
+	public long getBufferedBytes() {
+		return ChunkedByteQueue.getBytesInUse() + TCPReassemblyBuffer.getBytesInUse()
+				+ TCPSendWindow.getBytesInUse();
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	public long getMaxBufferedBytes() {
+		return maxBufferedBytes;
+	}
+
+	public long getEvictedSessions() {
+		return evictedSessions.get();
+	}
+
+	public long getRejectedSessions() {
+		return rejectedSessions.get();
+	}
+
+	/**
+	 * make room for a new session within the budget
+	 * @return false if the new session must be rejected
+	 */
+	public boolean admitSession() {
+		final long now = now();
+		if (getBufferedBytes() > maxBufferedBytes && now >= nextBudgetScan) {
+			nextBudgetScan = now + MIN_BUDGET_SCAN_INTERVAL;
+			enforceMemoryBudget();
+		}
+		if (getBufferedBytes() <= maxBufferedBytes) {
+			if (table.size() < maxSessions) {
+				return true;
+			}
+			if (now >= nextEvictionScan) {
+				evictIdleSessions(now);
+			}
+			if (table.size() < maxSessions) {
+				return true;
+			}
+		}
+		rejectedSessions.incrementAndGet();
+		Log.d(TAG, "session budget exhausted, new session rejected");
+		return false;
+	}
+
+	/**
+	 * evict a few least recently active sessions, so not every new session pays for sorting them
+	 * all, and remember when the next one can become evictable
+	 * @param now current time in milli sec
+	 */
+	private void evictIdleSessions(long now) {
+		final long idleSince = now - MIN_EVICTABLE_IDLE;
+		final int count = Math.max(1, maxSessions / 32);
+		int evicted = 0;
+		long next = 0;
+		for (Session session : sessionsByActivity()) {
+			if (evicted == count) {
+				break;
+			}
+			final long lastActive = session.getLastActive();
+			if (lastActive > idleSince) {
+				next = lastActive + MIN_EVICTABLE_IDLE;
+				break;
+			}
+			evict(session);
+			evicted++;
+		}
+		nextEvictionScan = next;
+	}
+
+	/**
+	 * evict least recently active sessions holding buffers until their bytes are within the budget
+	 */
+	private void enforceMemoryBudget() {
+		final long limit = maxBufferedBytes;
+		if (getBufferedBytes() <= limit) {
+			return;
+		}
+		//leave some room, so the next new session does not have to evict again
+		final long target = limit - limit / 10;
+		for (Session session : sessionsByActivity()) {
+			if (getBufferedBytes() <= target) {
+				break;
+			}
+			if (session.getBufferedBytes() > 0) {
+				evict(session);
+			}
+		}
+	}
+
+	/**
+	 * @return all sessions, the least recently active first. This is a slow path, only taken
+	 * when the budget is exhausted.
+	 */
+	@NonNull
+	private List<Session> sessionsByActivity() {
+		final ArrayList<Session> sessions = new ArrayList<>(table.size());
+		table.collect(sessions);
+		//sort by a snapshot, activity changes while sorting
+		final long[] lastActive = new long[sessions.size()];
+		final Integer[] order = new Integer[sessions.size()];
+		for (int i = 0; i < order.length; i++) {
+			lastActive[i] = sessions.get(i).getLastActive();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				final long left = lastActive[a];
+				final long right = lastActive[b];
+				return left < right ? -1 : (left == right ? 0 : 1);
+			}
+		});
+		final ArrayList<Session> sorted = new ArrayList<>(order.length);
+		for (Integer index : order) {
+			sorted.add(sessions.get(index));
+		}
+		return sorted;
+	}
+
+	private void evict(@NonNull Session session) {
+		Log.d(TAG, "evicted session: " + FlowKey.toString(session.getAddressKey(), session.getPortKey()));
+		session.setAbortingConnection(true);
+		SessionHandler.getInstance().resetClient(session);
+		closeSession(session);
+		evictedSessions.incrementAndGet();
+	}
+
+	/**
+	 * start tracking a session for expiry
+	 */
+	private void scheduleExpiry(@NonNull Session session) {
+		final long now = now();
+		session.touch(now);
+		expiryWheel.schedule(session, now + (session.getProtocol() == FlowKey.TCP ? tcpIdleTimeout : udpIdleTimeout));
+	}
+
+	/**
+	 * choose how many selector threads watch the sockets. Call it only while SocketNIODataService
+	 * is not running, since sessions registered with the previous selectors are not moved.
+	 * @param count number of selectors, at least 1
+	 */
+	public void setSelectorCount(int count) {
+		final SelectorLoop[] loops = new SelectorLoop[Math.max(1, count)];
 		try {
-			selector = Selector.open();
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new SelectorLoop();
+			}
 		} catch (IOException e) {
 			Log.e(TAG,"Failed to create Socket Selector");
+			return;
+		}
+		selectorLoops = loops;
+	}
+
+	/**
+	 * choose how sockets of new TCP sessions are served: by the selectors of SocketNIODataService,
+	 * or each by a pooled thread doing blocking I/O, see {@link BlockingSocketService}
+	 * @param enabled true for blocking I/O
+	 */
+	public void setBlockingTcp(boolean enabled) {
+		blockingTcp = enabled;
+	}
+
+	/**
+	 * choose when client gets the SYN-ACK of a new TCP session: right away, with data buffered until
+	 * the remote server is connected, or only once it is connected. Deferred, a refused or
+	 * unreachable server is reported to client by a RST in place of the SYN-ACK.
+	 * @param enabled true to send SYN-ACK after connecting
+	 */
+	public void setDeferredSynAck(boolean enabled) {
+		deferSynAck = enabled;
+	}
+
+	public boolean isDeferredSynAck() {
+		return deferSynAck;
+	}
+
+	/**
+	 * limit connects to remote servers, so failing destinations do not tie up buffers and threads
+	 * @param timeout milli sec a connect may take before the session is reset
+	 * @param maxPending connects in progress at most, SYN beyond that are reset
+	 */
+	public void setConnectLimits(int timeout, int maxPending) {
+		connectTimeout = Math.max(1, timeout);
+		maxPendingConnects = Math.max(1, maxPending);
+	}
+
+	/**
+	 * @return true if no more connects may be started now
+	 */
+	public boolean isConnectLimitReached() {
+		return pendingConnects.get() >= maxPendingConnects;
+	}
+
+	public int getPendingConnects() {
+		return pendingConnects.get();
+	}
+
+	/**
+	 * the remote server of a TCP session accepted the connection
+	 * @param session TCP session
+	 */
+	public void onConnected(@NonNull Session session) {
+		if (!endConnect(session)) {
+			//timed out or closed meanwhile
+			return;
+		}
+		SessionHandler.getInstance().sendPendingSynAck(session);
+	}
+
+	/**
+	 * the connect to the remote server of a TCP session failed or timed out, reset client and
+	 * close the session. Only the first of a timeout and a failed connect does so.
+	 * @param session TCP session
+	 */
+	public void onConnectFailed(@NonNull Session session) {
+		if (!endConnect(session)) {
+			return;
+		}
+		session.setAbortingConnection(true);
+		SessionHandler.getInstance().resetClient(session);
+		closeSession(session);
+	}
+
+	@NonNull
+	public SelectorLoop[] getSelectorLoops() {
+		return selectorLoops;
+	}
+
+	@NonNull
+	private SelectorLoop selectorLoopOf(long addressKey, long portKey) {
+		final SelectorLoop[] loops = selectorLoops;
+		return loops[(FlowKey.hash(addressKey, portKey) & 0x7FFFFFFF) % loops.length];
+	}
+
+	/**
+	 * cap memory of sessions created from now on. When a session's buffer is full, data from
+	 * client is not acknowledged and the remote socket is not read until the buffer drains.
+	 * @param maxBytes maximum bytes buffered in each direction of a session
+	 */
+	public void setSessionBufferLimit(int maxBytes) {
+		sessionBufferLimit = maxBytes;
+	}
+
+	/**
+	 * choose when data from client is written to destination. When streaming, it is written once
+	 * coalesceBytes are buffered or the oldest byte waited maxDelayMillis, PSH or not. Otherwise
+	 * nothing is written before the client's first PSH.
+	 * @param enabled stream data without waiting for PSH
+	 * @param coalesceBytes buffered bytes that are written right away
+	 * @param maxDelayMillis longest time a buffered byte waits
+	 */
+	public void setStreamingUplink(boolean enabled, int coalesceBytes, int maxDelayMillis) {
+		uplinkCoalesceBytes = coalesceBytes;
+		uplinkFlushDelay = maxDelayMillis;
+		streamingUplink = enabled;
+	}
+
+	public boolean isStreamingUplink() {
+		return streamingUplink;
+	}
+
+	/**
+	 * @param session TCP or UDP session
+	 * @param now current time in milliseconds
+	 * @return true if data buffered from client should be written to destination now
+	 */
+	public boolean isUplinkReady(@NonNull Session session, long now) {
+		if (!streamingUplink) {
+			return session.isDataForSendingReady();
 		}
+		return session.isDataForSendingReady(uplinkCoalesceBytes, uplinkFlushDelay, now);
 	}
 
-	public Selector getSelector(){
-		return selector;
+	/**
+	 * have data buffered from client written to destination. The session's channel is selected
+	 * for writing only while data is due, so the selector does not spin on writable sockets; data
+	 * held back for coalescing is checked again by a timer.
+	 * @param session TCP or UDP session
+	 */
+	public void requestUplinkWrite(@NonNull final Session session) {
+		if (!session.hasDataToSend() || session.isAbortingConnection()) {
+			return;
+		}
+		if (isUplinkReady(session, System.nanoTime() / 1000000)) {
+			final AbstractSelectableChannel channel = session.getChannel();
+			if (channel != null && channel.isBlocking()) {
+				BlockingSocketService.getInstance().requestWrite(session);
+			} else {
+				session.setInterest(SelectionKey.OP_WRITE, true);
+			}
+		} else if (streamingUplink && session.scheduleFlush()) {
+			try {
+				timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						session.onFlushTimer();
+						requestUplinkWrite(session);
+					}
+				}, uplinkFlushDelay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				session.onFlushTimer();
+				Log.e(TAG, "Failed to schedule uplink flush: " + e.getMessage());
+			}
+		}
+	}
+
+	@NonNull
+	public PacketBufferPool getResponsePool() {
+		return responsePool;
 	}
 
 	/**
@@ -71,9 +567,8 @@ public enum SessionManager {
 	 */
 	public void keepSessionAlive(Session session) {
 		if(session != null){
-			String key = createKey(session.getDestIp(), session.getDestPort(),
-					session.getSourceIp(), session.getSourcePort());
-			table.put(key, session);
+			session.touch(now());
+			table.put(session.getAddressKey(), session.getPortKey(), session);
 		}
 	}
 
@@ -89,30 +584,29 @@ public enum SessionManager {
 		return session.setSendingData(buffer);
 	}
 
-	public Session getSession(int ip, int port, int srcIp, int srcPort) {
-		String key = createKey(ip, port, srcIp, srcPort);
-
-		return getSessionByKey(key);
+	@Nullable
+	public Session getSession(byte protocol, int ip, int port, int srcIp, int srcPort) {
+		return table.get(FlowKey.addressKey(srcIp, ip), FlowKey.portKey(protocol, srcPort, port));
 	}
 
 	@Nullable
-	public Session getSessionByKey(String key) {
-		if(table.containsKey(key)){
-			return table.get(key);
-		}
-
-		return null;
+	public Session getSessionByKey(long addressKey, long portKey) {
+		return table.get(addressKey, portKey);
 	}
 
+	/**
+	 * find session of a channel through the attachment of its SelectionKey
+	 * @param channel channel registered by createNewSession or createNewUDPSession
+	 * @return Session or null if the channel is not registered
+	 */
+	@Nullable
 	public Session getSessionByChannel(AbstractSelectableChannel channel) {
-		Collection<Session> sessions = table.values();
-
-		for (Session session: sessions) {
-			if (channel == session.getChannel()) {
-				return session;
+		for (SelectorLoop loop : selectorLoops) {
+			final SelectionKey key = channel.keyFor(loop.getSelector());
+			if (key != null) {
+				return (Session) key.attachment();
 			}
 		}
-
 		return null;
 	}
 
@@ -131,16 +625,19 @@ public enum SessionManager {
 
 	/**
 	 * remove session from memory, then close socket connection.
+	 * @param protocol TCP or UDP
 	 * @param ip Destination IP Address
 	 * @param port Destination Port
 	 * @param srcIp Source IP Address
 	 * @param srcPort Source Port
 	 */
-	public void closeSession(int ip, int port, int srcIp, int srcPort){
-		String key = createKey(ip, port, srcIp, srcPort);
-		Session session = table.remove(key);
+	public void closeSession(byte protocol, int ip, int port, int srcIp, int srcPort){
+		Session session = table.remove(FlowKey.addressKey(srcIp, ip),
+				FlowKey.portKey(protocol, srcPort, port));
 
 		if(session != null){
+			endConnect(session);
+			session.releaseBuffers();
 			final AbstractSelectableChannel channel = session.getChannel();
 			try {
 				if (channel != null) {
@@ -149,15 +646,14 @@ public enum SessionManager {
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-			Log.d(TAG,"closed session -> " + key);
+			Log.d(TAG,"closed session -> " + createKey(ip, port, srcIp, srcPort));
 		}
 	}
 
 	public void closeSession(@NonNull Session session){
-		String key = createKey(session.getDestIp(),
-				session.getDestPort(), session.getSourceIp(),
-				session.getSourcePort());
-		table.remove(key);
+		table.remove(session.getAddressKey(), session.getPortKey());
+		endConnect(session);
+		session.releaseBuffers();
 
 		try {
 			AbstractSelectableChannel channel = session.getChannel();
@@ -167,30 +663,33 @@ public enum SessionManager {
 		} catch (IOException e) {
 			Log.e(TAG, e.toString());
 		}
-		Log.d(TAG,"closed session -> " + key);
+		Log.d(TAG,"closed session -> " + createKey(session.getDestIp(),
+				session.getDestPort(), session.getSourceIp(), session.getSourcePort()));
 	}
 
 	@Nullable
 	public Session createNewUDPSession(int ip, int port, int srcIp, int srcPort){
-		String keys = createKey(ip, port, srcIp, srcPort);
-
-		if (table.containsKey(keys))
-			return table.get(keys);
+		final long addressKey = FlowKey.addressKey(srcIp, ip);
+		final long portKey = FlowKey.portKey(FlowKey.UDP, srcPort, port);
+		Session existing = table.get(addressKey, portKey);
+		if (existing != null)
+			return existing;
+		if (!admitSession()) {
+			return null;
+		}
 
-		Session session = new Session(srcIp, srcPort, ip, port);
+		Session session = new Session(srcIp, srcPort, ip, port, FlowKey.UDP);
+		session.setBufferLimit(sessionBufferLimit);
 
 		DatagramChannel channel;
 
 		try {
-			channel = DatagramChannel.open();
-			channel.socket().setSoTimeout(0);
-			channel.configureBlocking(false);
-
+			//already configured and protected
+			channel = ProtectedChannelPool.getInstance().takeDatagramChannel();
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
 		}
-		protector.protect(channel.socket());
 
 		//initiate connection to reduce latency
 		String ips = PacketUtil.intToIPAddress(ip);
@@ -204,77 +703,199 @@ public enum SessionManager {
 			session.setConnected(channel.isConnected());
 		} catch(IOException e) {
 			e.printStackTrace();
+			closeChannel(channel);
 			return null;
 		}
 
+		session.setChannel(channel);
+
 		try {
-			synchronized(SocketNIODataService.syncSelector2) {
-				selector.wakeup();
-				synchronized(SocketNIODataService.syncSelector) {
-					SelectionKey selectionKey;
-					if (channel.isConnected()) {
-						selectionKey = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-					} else {
-						selectionKey = channel.register(selector, SelectionKey.OP_CONNECT | SelectionKey.OP_READ |
-								SelectionKey.OP_WRITE);
-					}
-					session.setSelectionKey(selectionKey);
-					Log.d(TAG,"Registered udp selector successfully");
-				}
-			}
+			//OP_WRITE is added only while data is waiting to be written
+			selectorLoopOf(addressKey, portKey).register(session, channel.isConnected()
+					? SelectionKey.OP_READ : SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
 		} catch (ClosedChannelException e) {
 			e.printStackTrace();
 			Log.e(TAG,"failed to register udp channel with selector: "+ e.getMessage());
+			closeChannel(channel);
 			return null;
 		}
 
-		session.setChannel(channel);
-
-		if (table.containsKey(keys)) {
-			try {
-				channel.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-				return null;
-			}
-		} else {
-			table.put(keys, session);
+		existing = table.putIfAbsent(addressKey, portKey, session);
+		if (existing != null) {
+			closeChannel(channel);
+			return existing;
 		}
+		scheduleExpiry(session);
 		Log.d(TAG,"new UDP session successfully created.");
 		return session;
 	}
 
+	/**
+	 * create a TCP session and connect to the remote server, on the calling thread
+	 * @return the session, or null if it exists already or its socket could not be set up
+	 */
 	@Nullable
 	public Session createNewSession(int ip, int port, int srcIp, int srcPort){
-		String key = createKey(ip, port, srcIp, srcPort);
-		if (table.containsKey(key)) {
+		final Session session = createSession(ip, port, srcIp, srcPort);
+		if (session == null) {
+			return null;
+		}
+		beginConnect(session);
+		if (!openChannel(session)) {
+			closeSession(session);
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * create a TCP session without socket. Call {@link #connectAsync(Session)} once it is set up.
+	 * Data the client sends meanwhile is buffered in the session, up to its buffer limit.
+	 * @return the session, or null if it exists already
+	 */
+	@Nullable
+	public Session createPendingSession(int ip, int port, int srcIp, int srcPort){
+		return createSession(ip, port, srcIp, srcPort);
+	}
+
+	/**
+	 * leave creating, protecting and connecting the socket of a session to the setup thread, so a
+	 * burst of new connections does not hold up packets of existing ones. If the socket cannot be
+	 * set up the session is closed, and the client is reset on its next segment.
+	 * @param session session from {@link #createPendingSession(int, int, int, int)}
+	 * @return false if too many sessions are waiting for setup, the session is closed then
+	 */
+	public boolean connectAsync(@NonNull final Session session) {
+		beginConnect(session);
+		try {
+			setupExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (!openChannel(session)) {
+						onConnectFailed(session);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Log.e(TAG, "Too many sessions waiting for setup: " + e.getMessage());
+			closeSession(session);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * count the connect of a session as pending until {@link #endConnect(Session)}, and fail it
+	 * once it takes longer than the connect timeout
+	 * @param session TCP session
+	 */
+	private void beginConnect(@NonNull final Session session) {
+		session.markConnectPending();
+		pendingConnects.incrementAndGet();
+		final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (session.isConnectPending()) {
+					Log.d(TAG, "connect timed out: " + FlowKey.toString(session.getAddressKey(), session.getPortKey()));
+				}
+				onConnectFailed(session);
+			}
+		}, connectTimeout, TimeUnit.MILLISECONDS);
+		session.setConnectTimeout(timeout);
+		if (!session.isConnectPending()) {
+			//ended before the timeout was stored
+			cancelConnectTimeout(session);
+		}
+	}
+
+	/**
+	 * end a pending connect, whether it succeeded, failed, timed out or the session was closed.
+	 * Only one caller gets true, so a connect cannot fail twice.
+	 * @param session TCP session
+	 * @return false if the connect was not pending anymore
+	 */
+	private boolean endConnect(@NonNull Session session) {
+		if (!session.clearConnectPending()) {
+			return false;
+		}
+		pendingConnects.decrementAndGet();
+		cancelConnectTimeout(session);
+		return true;
+	}
+
+	private void cancelConnectTimeout(@NonNull Session session) {
+		final ScheduledFuture<?> timeout = session.takeConnectTimeout();
+		if (timeout != null) {
+			timeout.cancel(false);
+			//a cancelled task stays queued and keeps the session reachable until it is due
+			timer.remove((Runnable) timeout);
+		}
+	}
+
+	/**
+	 * add a TCP session without socket to the table
+	 * @return the session, or null if it exists already
+	 */
+	@Nullable
+	private Session createSession(int ip, int port, int srcIp, int srcPort) {
+		final long addressKey = FlowKey.addressKey(srcIp, ip);
+		final long portKey = FlowKey.portKey(FlowKey.TCP, srcPort, port);
+		final Session session = new Session(srcIp, srcPort, ip, port, FlowKey.TCP);
+		session.setBufferLimit(sessionBufferLimit);
+		if (table.putIfAbsent(addressKey, portKey, session) != null) {
 			Log.e(TAG, "Session was already created.");
 			return null;
 		}
+		scheduleExpiry(session);
+		return session;
+	}
 
-		Session session = new Session(srcIp, srcPort, ip, port);
+	/**
+	 * create, protect and connect the socket of a TCP session, then register it with a selector
+	 * or hand it to a blocking I/O thread
+	 * @param session session in the table
+	 * @return false if the socket could not be set up
+	 */
+	private boolean openChannel(@NonNull Session session) {
+		final int ip = session.getDestIp();
+		final int port = session.getDestPort();
+		final boolean blocking = blockingTcp;
 
 		SocketChannel channel;
 		try {
-			channel = SocketChannel.open();
-			channel.socket().setKeepAlive(true);
-			channel.socket().setTcpNoDelay(true);
-			channel.socket().setSoTimeout(0);
-			channel.socket().setReceiveBufferSize(DataConst.MAX_RECEIVE_BUFFER_SIZE);
-			channel.configureBlocking(false);
+			//already configured and protected
+			channel = ProtectedChannelPool.getInstance().takeSocketChannel();
 		}catch(SocketException e){
 			Log.e(TAG, e.toString());
-			return null;
+			return false;
 		} catch (IOException e) {
 			Log.e(TAG,"Failed to create SocketChannel: "+ e.getMessage());
-			return null;
+			return false;
+		}
+		if (blocking) {
+			try {
+				channel.configureBlocking(true);
+			} catch (IOException e) {
+				Log.e(TAG,"Failed to make SocketChannel blocking: "+ e.getMessage());
+				closeChannel(channel);
+				return false;
+			}
 		}
 		String ips = PacketUtil.intToIPAddress(ip);
-		Log.d(TAG,"created new SocketChannel for " + key);
+		Log.d(TAG,"got protected SocketChannel for " + createKey(ip, port, session.getSourceIp(), session.getSourcePort()));
 
-		protector.protect(channel.socket());
+		session.setChannel(channel);
+		if (table.get(session.getAddressKey(), session.getPortKey()) != session) {
+			//closed meanwhile, closeSession may have missed the channel
+			closeChannel(channel);
+			return true;
+		}
 
-		Log.d(TAG,"Protected new SocketChannel");
+		if (blocking) {
+			//the session's own thread connects
+			BlockingSocketService.getInstance().start(session);
+			return true;
+		}
 
 		//initiate connection to reduce latency
 		SocketAddress socketAddress = new InetSocketAddress(ips, port);
@@ -284,45 +905,41 @@ public enum SessionManager {
 			connected = channel.connect(socketAddress);
 		} catch(IOException e) {
 			Log.e(TAG, e.toString());
-			return null;
+			return false;
 		}
 
 		session.setConnected(connected);
 
-		//register for non-blocking operation
+		//register for non-blocking operation, the selector's thread completes it
 		try {
-			synchronized(SocketNIODataService.syncSelector2){
-				selector.wakeup();
-				synchronized(SocketNIODataService.syncSelector){
-					SelectionKey selectionKey = channel.register(selector,
-							SelectionKey.OP_CONNECT | SelectionKey.OP_READ |
-									SelectionKey.OP_WRITE);
-					session.setSelectionKey(selectionKey);
-					Log.d(TAG,"Registered tcp selector successfully");
-				}
-			}
+			//OP_WRITE is added only while data is waiting to be written
+			selectorLoopOf(session.getAddressKey(), session.getPortKey()).register(session, connected
+					? SelectionKey.OP_READ : SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
 		} catch (ClosedChannelException e) {
 			e.printStackTrace();
 			Log.e(TAG,"failed to register tcp channel with selector: " + e.getMessage());
-			return null;
+			return false;
 		}
+		if (connected) {
+			onConnected(session);
+		}
+		return true;
+	}
 
-		session.setChannel(channel);
-
-		if (table.containsKey(key)) {
-			try {
-				channel.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			return null;
-		} else {
-			table.put(key, session);
+	/**
+	 * close a channel no session owns, e.g. one taken from the pool for a session that failed
+	 */
+	private static void closeChannel(@NonNull AbstractSelectableChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		return session;
 	}
+
 	/**
-	 * create session key based on destination ip+port and source ip+port
+	 * create readable session name based on destination ip+port and source ip+port.
+	 * It allocates, so use it for logging only; sessions are looked up by {@link FlowKey}.
 	 * @param ip Destination IP Address
 	 * @param port Destination Port
 	 * @param srcIp Source IP Address
@@ -0,0 +1,217 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+
+/**
+ * Session table keyed by {@link FlowKey}. The table is split into stripes, each one an
+ * open-addressing (linear probing) hash table guarded by its own lock, so lookups from
+ * the tun reader and from the socket workers rarely contend and never allocate.
+ */
+class SessionTable {
+	private static final int STRIPE_COUNT = 16;
+	private static final int STRIPE_SHIFT = 28;
+	private static final int INITIAL_STRIPE_CAPACITY = 32;
+
+	@NonNull private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+	SessionTable() {
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			stripes[i] = new Stripe(INITIAL_STRIPE_CAPACITY);
+		}
+	}
+
+	@Nullable
+	Session get(long addressKey, long portKey) {
+		final int hash = FlowKey.hash(addressKey, portKey);
+		return stripeOf(hash).get(addressKey, portKey, hash);
+	}
+
+	/**
+	 * insert or replace a session
+	 * @return previous session with the same key
+	 */
+	@Nullable
+	Session put(long addressKey, long portKey, @NonNull Session session) {
+		final int hash = FlowKey.hash(addressKey, portKey);
+		return stripeOf(hash).put(addressKey, portKey, hash, session, false);
+	}
+
+	/**
+	 * insert a session only if no session has the same key
+	 * @return session already in the table, or null if the given session was inserted
+	 */
+	@Nullable
+	Session putIfAbsent(long addressKey, long portKey, @NonNull Session session) {
+		final int hash = FlowKey.hash(addressKey, portKey);
+		return stripeOf(hash).put(addressKey, portKey, hash, session, true);
+	}
+
+	@Nullable
+	Session remove(long addressKey, long portKey) {
+		final int hash = FlowKey.hash(addressKey, portKey);
+		return stripeOf(hash).remove(addressKey, portKey, hash);
+	}
+
+	int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	/**
+	 * copy all sessions into a given collection. This is a slow path, it is not used per packet.
+	 * @param out collection to be filled
+	 */
+	void collect(@NonNull Collection<? super Session> out) {
+		for (Stripe stripe : stripes) {
+			stripe.collect(out);
+		}
+	}
+
+	@NonNull
+	private Stripe stripeOf(int hash) {
+		return stripes[(hash >>> STRIPE_SHIFT) & (STRIPE_COUNT - 1)];
+	}
+
+	private static final class Stripe {
+		private long[] addressKeys;
+		private long[] portKeys;
+		private Session[] values;
+		private int mask;
+		private int size = 0;
+
+		Stripe(int capacity) {
+			allocate(capacity);
+		}
+
+		private void allocate(int capacity) {
+			addressKeys = new long[capacity];
+			portKeys = new long[capacity];
+			values = new Session[capacity];
+			mask = capacity - 1;
+		}
+
+		synchronized Session get(long addressKey, long portKey, int hash) {
+			for (int i = hash & mask; ; i = (i + 1) & mask) {
+				final Session session = values[i];
+				if (session == null) {
+					return null;
+				}
+				if (addressKeys[i] == addressKey && portKeys[i] == portKey) {
+					return session;
+				}
+			}
+		}
+
+		synchronized Session put(long addressKey, long portKey, int hash, Session session, boolean onlyIfAbsent) {
+			int i = hash & mask;
+			for (; values[i] != null; i = (i + 1) & mask) {
+				if (addressKeys[i] == addressKey && portKeys[i] == portKey) {
+					final Session previous = values[i];
+					if (!onlyIfAbsent) {
+						values[i] = session;
+					}
+					return previous;
+				}
+			}
+			addressKeys[i] = addressKey;
+			portKeys[i] = portKey;
+			values[i] = session;
+			// keep load factor under 0.5 so probe sequences stay short
+			if (++size * 2 > values.length) {
+				grow();
+			}
+			return null;
+		}
+
+		synchronized Session remove(long addressKey, long portKey, int hash) {
+			int i = hash & mask;
+			for (; values[i] != null; i = (i + 1) & mask) {
+				if (addressKeys[i] == addressKey && portKeys[i] == portKey) {
+					final Session removed = values[i];
+					deleteSlot(i);
+					size--;
+					return removed;
+				}
+			}
+			return null;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized void collect(Collection<? super Session> out) {
+			for (Session session : values) {
+				if (session != null) {
+					out.add(session);
+				}
+			}
+		}
+
+		/**
+		 * backward shift deletion: move later entries of the same probe sequence into the hole,
+		 * so no tombstone is needed and lookups still stop at the first empty slot.
+		 */
+		private void deleteSlot(int hole) {
+			int j = hole;
+			while (true) {
+				j = (j + 1) & mask;
+				if (values[j] == null) {
+					break;
+				}
+				final int home = FlowKey.hash(addressKeys[j], portKeys[j]) & mask;
+				// entry at j may be moved to hole only if its home slot is not within (hole, j]
+				final boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+				if (movable) {
+					addressKeys[hole] = addressKeys[j];
+					portKeys[hole] = portKeys[j];
+					values[hole] = values[j];
+					hole = j;
+				}
+			}
+			values[hole] = null;
+			addressKeys[hole] = 0;
+			portKeys[hole] = 0;
+		}
+
+		private void grow() {
+			final long[] oldAddressKeys = addressKeys;
+			final long[] oldPortKeys = portKeys;
+			final Session[] oldValues = values;
+			allocate(oldValues.length * 2);
+			for (int i = 0; i < oldValues.length; i++) {
+				if (oldValues[i] != null) {
+					int j = FlowKey.hash(oldAddressKeys[i], oldPortKeys[i]) & mask;
+					while (values[j] != null) {
+						j = (j + 1) & mask;
+					}
+					addressKeys[j] = oldAddressKeys[i];
+					portKeys[j] = oldPortKeys[i];
+					values[j] = oldValues[i];
+				}
+			}
+		}
+	}
+}
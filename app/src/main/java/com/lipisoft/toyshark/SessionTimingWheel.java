@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Hashed timing wheel of session deadlines. Each slot holds a list of sessions linked through
+ * the sessions themselves, so scheduling takes constant time and allocates nothing. Packets do not
+ * touch the wheel: they only update the session's last activity. When a slot comes due, each of
+ * its sessions is either expired or moved to the slot of its new deadline, which is constant time
+ * per session as well. Deadlines further away than one turn of the wheel simply come by again.
+ */
+final class SessionTimingWheel {
+	@NonNull private final Session[] slots;
+	private final int mask;
+	private final long tickMillis;
+	private final long origin;
+	//last tick processed, guarded by this
+	private long tick = 0;
+
+	interface Callback {
+		/**
+		 * a session's slot came due
+		 * @param session session scheduled earlier
+		 * @param now current time in milli sec
+		 * @return next deadline in milli sec, or 0 to drop the session from the wheel
+		 */
+		long onDue(@NonNull Session session, long now);
+	}
+
+	/**
+	 * @param slotCount number of slots, rounded up to a power of 2
+	 * @param tickMillis time covered by one slot
+	 * @param now current time in milli sec
+	 */
+	SessionTimingWheel(int slotCount, long tickMillis, long now) {
+		int size = 1;
+		while (size < slotCount) {
+			size <<= 1;
+		}
+		slots = new Session[size];
+		mask = size - 1;
+		this.tickMillis = tickMillis;
+		origin = now;
+	}
+
+	/**
+	 * @param session session not in the wheel
+	 * @param deadline time in milli sec
+	 */
+	synchronized void schedule(@NonNull Session session, long deadline) {
+		//never into a slot already processed, it would wait a whole turn
+		final long due = Math.max(tick + 1, (deadline - origin + tickMillis - 1) / tickMillis);
+		final int slot = (int) (due & mask);
+		session.setWheelNext(slots[slot]);
+		slots[slot] = session;
+	}
+
+	/**
+	 * process every slot up to the current time
+	 * @param now current time in milli sec
+	 * @param callback decides what happens to each session found in those slots
+	 * @return number of sessions looked at
+	 */
+	int advance(long now, @NonNull Callback callback) {
+		final long target = (now - origin) / tickMillis;
+		int visited = 0;
+		while (true) {
+			Session session;
+			synchronized (this) {
+				if (tick >= target) {
+					return visited;
+				}
+				tick++;
+				final int slot = (int) (tick & mask);
+				session = slots[slot];
+				slots[slot] = null;
+			}
+			while (session != null) {
+				final Session next = session.getWheelNext();
+				session.setWheelNext(null);
+				final long deadline = callback.onDue(session, now);
+				if (deadline > 0) {
+					schedule(session, deadline);
+				}
+				session = next;
+				visited++;
+			}
+		}
+	}
+}
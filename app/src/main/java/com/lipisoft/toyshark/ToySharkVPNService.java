@@ -27,13 +27,22 @@ import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.lipisoft.toyshark.packetRebuild.BufferedPCapFileWriter;
+import com.lipisoft.toyshark.packetRebuild.CaptureFileWriter;
 import com.lipisoft.toyshark.packetRebuild.PCapFileWriter;
+import com.lipisoft.toyshark.packetRebuild.PCapNgFileWriter;
+import com.lipisoft.toyshark.packetRebuild.RotatingPCapFileWriter;
+import com.lipisoft.toyshark.socket.BlockingSocketService;
 import com.lipisoft.toyshark.socket.IProtectSocket;
 import com.lipisoft.toyshark.socket.IReceivePacket;
+import com.lipisoft.toyshark.socket.ProtectedChannelPool;
 import com.lipisoft.toyshark.socket.SocketDataPublisher;
 import com.lipisoft.toyshark.socket.SocketNIODataService;
 import com.lipisoft.toyshark.socket.SocketProtector;
+import com.lipisoft.toyshark.socket.TCPSender;
 import com.lipisoft.toyshark.transport.tcp.PacketHeaderException;
+import com.lipisoft.toyshark.util.PacketBuffer;
+import com.lipisoft.toyshark.util.PacketBufferPool;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -42,12 +51,18 @@ import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
 import java.util.Locale;
 
 public class ToySharkVPNService extends VpnService implements Handler.Callback,
 		Runnable, IProtectSocket, IReceivePacket{
 	private static final String TAG = "ToySharkVPNService";
 	private static final int MAX_PACKET_LEN = 1500;
+	//idle packet buffers kept for reuse by the VPN interface reader
+	private static final int MAX_POOLED_PACKETS = 256;
+	//stage packets in memory and write the pcap file in large chunks from a flush thread
+	private static final boolean BUFFERED_PCAP = true;
 
 	private Handler mHandler;
 	private Thread mThread;
@@ -57,8 +72,19 @@ public class ToySharkVPNService extends VpnService implements Handler.Callback,
 	private Thread dataServiceThread;
 	private SocketDataPublisher packetbgWriter;
 	private Thread packetQueueThread;
+	private BatchedClientPacketWriter tunWriter;
 	private File traceDir;
-	private PCapFileWriter pcapOutput;
+	// ring of memory mapped pcap files, used instead of a single file when pcapRingFiles > 0
+	private int pcapRingFiles;
+	// "pcapng" (default) or "pcap" for the legacy format with a stubbed Ethernet header
+	private String pcapFormat;
+	private int pcapRingFileSize;
+	private long pcapRingRotateMsec;
+	private CaptureFileWriter pcapOutput;
+	// views and timestamps of a captured batch, reused by the capture thread
+	private ByteBuffer[] captureViews = new ByteBuffer[SocketDataPublisher.MAX_BATCH_SIZE];
+	private long[] captureTimes = new long[SocketDataPublisher.MAX_BATCH_SIZE];
+	private int[] captureDirections = new int[SocketDataPublisher.MAX_BATCH_SIZE];
 	private FileOutputStream timeStream;
 
 	@Override
@@ -107,6 +133,13 @@ public class ToySharkVPNService extends VpnService implements Handler.Callback,
 	private void loadExtras(Intent intent) {
 		String traceDirStr = intent.getStringExtra("TRACE_DIR");
 		traceDir = new File(traceDirStr);
+		pcapFormat = intent.getStringExtra("PCAP_FORMAT");
+		pcapRingFiles = intent.getIntExtra("PCAP_RING_FILES", 0);
+		final long ringFileSize = intent.getIntExtra("PCAP_RING_FILE_MB", 64) * 1024L * 1024L;
+		pcapRingFileSize = (int) Math.max(RotatingPCapFileWriter.MIN_FILE_SIZE,
+				Math.min(RotatingPCapFileWriter.MAX_FILE_SIZE, ringFileSize));
+		pcapRingRotateMsec = intent.getIntExtra("PCAP_RING_ROTATE_SEC", 0) * 1000L;
+		PacketManager.INSTANCE.setListingSentSegments(intent.getBooleanExtra("LIST_SENT_SEGMENTS", true));
 	}
 
 	private void unregisterAnalyzerCloseCmdReceiver() {
@@ -170,27 +203,79 @@ public class ToySharkVPNService extends VpnService implements Handler.Callback,
 	 * called back from background thread when new packet arrived
 	 */
 	@Override
-	public void receive(byte[] packet) {
+	public void receive(PacketBuffer packet) {
 		if (pcapOutput != null) {
 			try {
-				pcapOutput.addPacket(packet, 0, packet.length, System.currentTimeMillis() * 1000000);
+				if (pcapOutput instanceof PCapNgFileWriter) {
+					((PCapNgFileWriter) pcapOutput).addPacket(packet.view(), packet.getCaptureTime(),
+							packet.getDirection());
+				} else {
+					pcapOutput.addPacket(packet.view(), packet.getCaptureTime());
+				}
 			} catch (IOException e) {
 				Log.e(TAG, "pcapOutput.addPacket IOException :" + e.getMessage());
 				e.printStackTrace();
 			}
 		}else{
-			Log.e(TAG, "overrun from capture: length:"+packet.length);
+			Log.e(TAG, "overrun from capture: length:"+packet.length());
 		}
 
 	}
 
+	/**
+	 * called back from background thread with every packet queued since its last wake up
+	 */
+	@Override
+	public void receive(List<PacketBuffer> packets) {
+		if (pcapOutput != null) {
+			final int count = packets.size();
+			if (captureViews.length < count) {
+				captureViews = new ByteBuffer[count];
+				captureTimes = new long[count];
+				captureDirections = new int[count];
+			}
+			for (int i = 0; i < count; i++) {
+				final PacketBuffer packet = packets.get(i);
+				captureViews[i] = packet.view();
+				captureTimes[i] = packet.getCaptureTime();
+				captureDirections[i] = packet.getDirection();
+			}
+			try {
+				if (pcapOutput instanceof PCapNgFileWriter) {
+					((PCapNgFileWriter) pcapOutput).addPackets(captureViews, captureTimes, captureDirections, count);
+				} else {
+					pcapOutput.addPackets(captureViews, captureTimes, count);
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "pcapOutput.addPackets IOException :" + e.getMessage());
+				e.printStackTrace();
+			}
+			for (int i = 0; i < count; i++) {
+				captureViews[i] = null;
+			}
+		}else{
+			Log.e(TAG, "overrun from capture: packets:" + packets.size());
+		}
+	}
+
 	/**
 	 * Close the packet trace file
 	 */
 	private void closePcapTrace() {
 		Log.i(TAG, "closePcapTrace()");
 		if (pcapOutput != null) {
-			pcapOutput.close();
+			if (pcapOutput instanceof BufferedPCapFileWriter) {
+				final BufferedPCapFileWriter writer = (BufferedPCapFileWriter) pcapOutput;
+				Log.i(TAG, "pcap packets: " + writer.getPacketCount() + ", bytes written: " + writer.getBytesWritten()
+						+ ", writes: " + writer.getWriteCount()
+						+ ", write throughput: " + (long) writer.getWriteThroughput() + " B/s"
+						+ ", capture throughput: " + (long) writer.getCaptureThroughput() + " B/s");
+			}
+			try {
+				pcapOutput.close();
+			} catch (IOException e) {
+				Log.e(TAG, "pcapOutput.close IOException :" + e.getMessage());
+			}
 			pcapOutput = null;
 			Log.i(TAG, "closePcapTrace() closed");
 		}
@@ -213,6 +298,11 @@ public class ToySharkVPNService extends VpnService implements Handler.Callback,
 		if (packetbgWriter != null)
 			packetbgWriter.setShuttingDown(true);
 
+		if (tunWriter != null)
+			tunWriter.shutdown();
+
+		ProtectedChannelPool.getInstance().shutdown();
+
 		//	closeTraceFiles();
 
 		if(dataServiceThread != null){
@@ -302,10 +392,25 @@ public class ToySharkVPNService extends VpnService implements Handler.Callback,
 			if (!traceDir.mkdirs())
 				Log.e(TAG, "CANNOT make " + traceDir.toString());
 
+		if (pcapRingFiles > 0) {
+			pcapOutput = new RotatingPCapFileWriter(traceDir, "ToyShark", pcapRingFiles,
+					pcapRingFileSize, pcapRingRotateMsec);
+			return;
+		}
+
+		if (!"pcap".equals(pcapFormat)) {
+			pcapOutput = new PCapNgFileWriter(new File(traceDir, "ToyShark.pcapng"), "vpn");
+			return;
+		}
+
 		// gen & open pcap file
-		String sFileName = "ToyShark.pcapng";
+		String sFileName = "ToyShark.pcap";
 		File pcapFile = new File(traceDir, sFileName);
-		pcapOutput = new PCapFileWriter(pcapFile);
+		if (BUFFERED_PCAP) {
+			pcapOutput = new BufferedPCapFileWriter(pcapFile);
+		} else {
+			pcapOutput = new PCapFileWriter(pcapFile);
+		}
 	}
 
 	/**
@@ -398,16 +503,24 @@ public class ToySharkVPNService extends VpnService implements Handler.Callback,
 
 		// Packets to be sent are queued in this input stream.
 		FileInputStream clientReader = new FileInputStream(mInterface.getFileDescriptor());
+		FileChannel clientChannel = clientReader.getChannel();
 
 		// Packets received need to be written to this output stream.
 		FileOutputStream clientWriter = new FileOutputStream(mInterface.getFileDescriptor());
 
-		// Allocate the buffer for a single packet.
-		ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_LEN);
-		IClientPacketWriter clientPacketWriter = new ClientPacketWriterImpl(clientWriter);
+		// Each packet is read into its own pooled buffer, which is shared with capture and packet list.
+		PacketBufferPool packetPool = new PacketBufferPool(MAX_PACKET_LEN, MAX_POOLED_PACKETS);
+		//all threads write to the interface through one queue drained by a single thread
+		tunWriter = new BatchedClientPacketWriter(new ClientPacketWriterImpl(clientWriter));
+		tunWriter.start();
+		IClientPacketWriter clientPacketWriter = tunWriter;
 
 		SessionHandler handler = SessionHandler.getInstance();
 		handler.setWriter(clientPacketWriter);
+		TCPSender.getInstance().setWriter(clientPacketWriter);
+		BlockingSocketService.getInstance().setWriter(clientPacketWriter);
+		//sockets of new sessions are opened and protected ahead of time
+		ProtectedChannelPool.getInstance().start();
 
 		//background task for non-blocking socket
 		dataService = new SocketNIODataService(clientPacketWriter);
@@ -420,25 +533,25 @@ public class ToySharkVPNService extends VpnService implements Handler.Callback,
 		packetQueueThread = new Thread(packetbgWriter);
 		packetQueueThread.start();
 
-		byte[] data;
 		int length;
 		serviceValid = true;
 		while (serviceValid) {
 			//read packet from vpn client
-			data = packet.array();
-			length = clientReader.read(data);
+			PacketBuffer packet = packetPool.acquire();
+			ByteBuffer data = packet.getBuffer();
+			length = clientChannel.read(data);
 			if (length > 0) {
 				//Log.d(TAG, "received packet from vpn client: "+length);
 				try {
-					packet.limit(length);
+					data.flip();
 
 					handler.handlePacket(packet);
 				} catch (PacketHeaderException e) {
 					Log.e(TAG,e.getMessage());
 				}
-
-				packet.clear();
+				packet.release();
 			} else {
+				packet.release();
 				try {
 					Thread.sleep(100);
 				} catch (InterruptedException e) {
@@ -0,0 +1,350 @@
+package com.lipisoft.toyshark.packetRebuild;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * High throughput writer of capture files in libcap format.<br>
+ * 
+ * Headers and packets are serialised into a direct staging buffer, and the buffer is
+ * written to the file channel in one large write when it reaches the flush threshold,
+ * or by a background thread when data has waited longer than the flush interval.
+ * Two staging buffers are used, so packets can be added while the other one is written.<br>
+ *
+ * Output is byte for byte the same as {@link PCapFileWriter}.
+ */
+public class BufferedPCapFileWriter implements CaptureFileWriter
+{
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	public static final int DEFAULT_FLUSH_THRESHOLD = 256 * 1024;
+
+	public static final long DEFAULT_FLUSH_INTERVAL_MSEC = 500;
+
+	private static final int ETHERNET_HDR_LEN = 14;
+
+	private static final int RECORD_HDR_LEN = PCapPacketHeader.HEADER_SIZE + ETHERNET_HDR_LEN;
+
+	private final FileOutputStream myOutStrm;
+
+	private final FileChannel myChannel;
+
+	private final byte[] myEthernetHeader = StubbedEthernetHeader.getEthernetHeader();
+
+	private final int myFlushThreshold;
+
+	private final long myFlushIntervalNano;
+
+	// guards myActive, which packets are added to
+	private final Object myBufferLock = new Object();
+
+	// serialises writes to the file, held while myStandby is written
+	private final Object myWriteLock = new Object();
+
+	private ByteBuffer myActive;
+
+	private ByteBuffer myStandby;
+
+	private final Thread myFlusher;
+
+	private volatile boolean _isopened = false;
+
+	private volatile long myLastFlushTime;
+
+	private long myLimit = PCapFileWriter.DEFAULT_LIMIT;
+
+	// total bytes accepted, written or not
+	private long myTotalBytes = 0;
+
+	// statistics of the writes to the file
+	private volatile long myBytesWritten = 0;
+
+	private volatile long myWriteCount = 0;
+
+	private volatile long myWriteNanos = 0;
+
+	private volatile long myPacketCount = 0;
+
+	private final long myStartTime;
+
+	/**
+	 * open new file with default buffer size and flush thresholds.
+	 * @param file
+	 * @throws IOException - on file creation failure.
+	 */
+	public BufferedPCapFileWriter(File file) throws IOException
+	{
+		this(file, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_THRESHOLD, DEFAULT_FLUSH_INTERVAL_MSEC);
+	}
+
+	/**
+	 * open new file
+	 * @param file
+	 * @param bufferSize - size of each staging buffer, must hold at least one max size packet
+	 * @param flushThreshold - buffered bytes that trigger a write
+	 * @param flushIntervalMsec - max time data waits in the buffer
+	 * @throws IOException - on file creation failure.
+	 */
+	public BufferedPCapFileWriter(File file, int bufferSize, int flushThreshold, long flushIntervalMsec) throws IOException
+	{
+		if (file == null) throw new IllegalArgumentException("Got null file object");
+		if (bufferSize < PCapFileWriter.MAX_PACKET_SIZE + RECORD_HDR_LEN)
+			throw new IllegalArgumentException("Buffer can not hold a packet of max size : " + bufferSize);
+
+		myFlushThreshold = Math.min(flushThreshold, bufferSize);
+		myFlushIntervalNano = flushIntervalMsec * 1000000L;
+		myActive = ByteBuffer.allocateDirect(bufferSize);
+		myStandby = ByteBuffer.allocateDirect(bufferSize);
+
+		myOutStrm = new FileOutputStream(file);
+		myChannel = myOutStrm.getChannel();
+		myActive.put(new PCapFileHeader().getAsByteArray());
+		myTotalBytes += PCapFileHeader.HEADER_SIZE;
+
+		myStartTime = System.nanoTime();
+		myLastFlushTime = myStartTime;
+		_isopened = true;
+
+		myFlusher = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				flushPeriodically();
+			}
+		}, "PCapFlusher");
+		myFlusher.setDaemon(true);
+		myFlusher.start();
+	}
+
+	/**
+	 * add packet to already opened cap.
+	 * @param thepkt
+	 * @param time - time in nano sec
+	 * @return true if packet added and false otherwise
+	 * @throws IOException
+	 */
+	public boolean addPacket(byte[] thepkt, long time) throws IOException
+	{
+		if (thepkt == null) return false;
+		return addPacket(ByteBuffer.wrap(thepkt), time);
+	}
+
+	/**
+	 * add packet to already opened cap. The packet is copied into the staging buffer.
+	 * @param thepkt packet from its position to its limit, the position is moved to the limit.
+	 * @param time timestamp in nano sec, 0 for the gap since the file was opened
+	 * @return true if packet added and false otherwise
+	 * @throws IOException
+	 */
+	public boolean addPacket(ByteBuffer thepkt, long time) throws IOException
+	{
+		if (thepkt == null || !_isopened) return false;
+
+		int length = thepkt.remaining();
+		if (length > PCapFileWriter.MAX_PACKET_SIZE)
+			throw new IOException("Got illeagl packet size : " + length);
+
+		if (time == 0)
+		{
+			time = System.nanoTime() - myStartTime;
+		}
+
+		boolean full;
+		while (true)
+		{
+			synchronized (myBufferLock)
+			{
+				if (myTotalBytes > myLimit) return false;
+
+				if (myActive.remaining() >= RECORD_HDR_LEN + length)
+				{
+					myActive.putInt((int) (time / 1000000000L));
+					myActive.putInt((int) ((time / 1000) % 1000000));
+					myActive.putInt(length + ETHERNET_HDR_LEN);
+					myActive.putInt(length + ETHERNET_HDR_LEN);
+					myActive.put(myEthernetHeader);
+					myActive.put(thepkt);
+					myTotalBytes += RECORD_HDR_LEN + length;
+					myPacketCount++;
+					full = myActive.position() >= myFlushThreshold;
+					break;
+				}
+			}
+			flush();
+		}
+		if (full)
+		{
+			flush();
+		}
+		return true;
+	}
+
+	/**
+	 * add many packets to already opened cap.
+	 * @param thepkts packets, each from its position to its limit
+	 * @param times timestamp of each packet in nano sec
+	 * @param count number of packets from the start of the arrays
+	 * @return true if all packets added and false otherwise
+	 * @throws IOException
+	 */
+	public boolean addPackets(ByteBuffer[] thepkts, long[] times, int count) throws IOException
+	{
+		if (thepkts == null) return false;
+
+		boolean added = true;
+		for (int i = 0; i < count; i++)
+		{
+			added &= addPacket(thepkts[i], times[i]);
+		}
+		return added;
+	}
+
+	/**
+	 * write all buffered data to the file.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException
+	{
+		synchronized (myWriteLock)
+		{
+			ByteBuffer toWrite;
+			synchronized (myBufferLock)
+			{
+				if (myActive.position() == 0) return;
+				toWrite = myActive;
+				myActive = myStandby;
+				myStandby = toWrite;
+			}
+
+			toWrite.flip();
+			long start = System.nanoTime();
+			long written = 0;
+			while (toWrite.hasRemaining())
+			{
+				written += myChannel.write(toWrite);
+			}
+			long end = System.nanoTime();
+			toWrite.clear();
+
+			myWriteNanos += end - start;
+			myBytesWritten += written;
+			myWriteCount++;
+			myLastFlushTime = end;
+		}
+	}
+
+	private void flushPeriodically()
+	{
+		long sleepMsec = Math.max(1, myFlushIntervalNano / 2000000L);
+		while (_isopened)
+		{
+			try
+			{
+				Thread.sleep(sleepMsec);
+			} catch (InterruptedException e)
+			{
+				break;
+			}
+			if (_isopened && System.nanoTime() - myLastFlushTime >= myFlushIntervalNano)
+			{
+				try
+				{
+					flush();
+				} catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * flush and close file.
+	 * not reversible
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		if (!_isopened) return;
+
+		_isopened = false;
+		myFlusher.interrupt();
+		try
+		{
+			flush();
+			myChannel.force(false);
+		} finally
+		{
+			myOutStrm.close();
+		}
+	}
+
+	/**
+	 * @return number of bytes accepted so far, including bytes still buffered.
+	 */
+	public long getTotalBytes()
+	{
+		synchronized (myBufferLock)
+		{
+			return myTotalBytes;
+		}
+	}
+
+	/**
+	 * @return number of bytes written to the file so far.
+	 */
+	public long getBytesWritten()
+	{
+		return myBytesWritten;
+	}
+
+	/**
+	 * @return number of packets accepted so far.
+	 */
+	public long getPacketCount()
+	{
+		return myPacketCount;
+	}
+
+	/**
+	 * @return number of writes to the file so far.
+	 */
+	public long getWriteCount()
+	{
+		return myWriteCount;
+	}
+
+	/**
+	 * @return bytes per second while actually writing, i.e. what the storage sustains.
+	 */
+	public double getWriteThroughput()
+	{
+		long nanos = myWriteNanos;
+		return nanos == 0 ? 0 : myBytesWritten * 1000000000.0 / nanos;
+	}
+
+	/**
+	 * @return bytes per second since the file was opened, i.e. the captured traffic rate.
+	 */
+	public double getCaptureThroughput()
+	{
+		long nanos = System.nanoTime() - myStartTime;
+		return nanos == 0 ? 0 : myBytesWritten * 1000000000.0 / nanos;
+	}
+
+	/**
+	 * set the cap max number of bytes.
+	 * @param theLimit
+	 */
+	public void setLimit(long theLimit)
+	{
+		synchronized (myBufferLock)
+		{
+			myLimit = theLimit;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.lipisoft.toyshark.packetRebuild;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for writing capture file.<br>
@@ -23,6 +24,25 @@ public interface CaptureFileWriter
 	 * @throws IOException
 	 */
 	public boolean addPacket(byte[] thepkt,long time) throws IOException;
+
+	/**
+	 * write packet held in a ByteBuffer to file, from its position to its limit.
+	 * @param thepkt - packet
+	 * @param time - time in nano seconds.
+	 * @return true for success.
+	 * @throws IOException
+	 */
+	public boolean addPacket(ByteBuffer thepkt, long time) throws IOException;
+
+	/**
+	 * write many packets to file at once.
+	 * @param thepkts - packets, each from its position to its limit
+	 * @param times - time of each packet in nano seconds.
+	 * @param count - number of packets from the start of the arrays
+	 * @return true for success.
+	 * @throws IOException
+	 */
+	public boolean addPackets(ByteBuffer[] thepkts, long[] times, int count) throws IOException;
 	
 	
 	/**
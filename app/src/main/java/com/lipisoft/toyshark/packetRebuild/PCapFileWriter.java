@@ -4,6 +4,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Class for creating capture files in libcap format.<br>
@@ -27,6 +31,12 @@ public class PCapFileWriter implements CaptureFileWriter
 	// the out stream
 	private OutputStream myOutStrm = null;
 
+	// channel over the out stream, used to write packets held in (direct) ByteBuffer
+	private WritableByteChannel myOutChannel = null;
+
+	// header, ethernet header and packet of each packet in a batch, reused between batches
+	private ByteBuffer[] myBatchBuffers = new ByteBuffer[0];
+
 	private boolean _isopened = false;
 
 	// used to calculate the packets time.
@@ -127,7 +137,9 @@ public class PCapFileWriter implements CaptureFileWriter
 	{
 		boolean putHdr = !file.exists() || !append;
 
-		myOutStrm = new FileOutputStream(file, append);
+		FileOutputStream fileOut = new FileOutputStream(file, append);
+		myOutStrm = fileOut;
+		myOutChannel = fileOut.getChannel();
 
 		// put hdr only if not appending or file not exits (new file).
 		if (putHdr)
@@ -143,6 +155,7 @@ public class PCapFileWriter implements CaptureFileWriter
 	private void init(OutputStream out) throws IOException
 	{
 		myOutStrm = out;
+		myOutChannel = Channels.newChannel(out);
 
 		// put hdr only if not appending or file not exits (new file).
 		PCapFileHeader hdr = new PCapFileHeader();
@@ -272,6 +285,120 @@ public class PCapFileWriter implements CaptureFileWriter
 	}
 
 
+	/**
+	 * add packet held in a ByteBuffer to already opened cap, without copying it to an array.
+	 * if close method was called earlier then will not add it.
+	 *
+	 * @param thepkt packet to store, from its position to its limit. The position is moved to the limit.
+	 * @param time timestamp in nano sec, 0 for the gap since the file was opened
+	 * @return true if packet added and false otherwise
+	 * @throws IOException
+	 */
+	public boolean addPacket(ByteBuffer thepkt, long time) throws IOException
+	{
+		if (thepkt == null || !_isopened || myTotalBytes > myLimit)
+			return false;
+
+		int length = thepkt.remaining();
+		if (length > MAX_PACKET_SIZE)
+			throw new IOException("Got illeagl packet size : " + length);
+
+		PCapPacketHeader hder = new PCapPacketHeader();
+
+		if (time == 0) {
+			time = getNanoTime() - myStartTime; // the gap since start in nano sec
+		}
+
+		hder.setTimeValMsec32Uint((time / 1000) % 1000000);
+		hder.setTimeValSec32Uint(time / 1000000000L);
+		hder.setPktlenUint32(length + ETHERNET_HDR_LEN);
+		hder.setCaplen32Uint(length + ETHERNET_HDR_LEN);
+
+		myOutStrm.write(hder.getAsByteArray());
+		myOutStrm.write(StubbedEthernetHeader.getEthernetHeader());
+		while (thepkt.hasRemaining())
+		{
+			myOutChannel.write(thepkt);
+		}
+
+		myTotalBytes += length + ETHERNET_HDR_LEN + PCapPacketHeader.HEADER_SIZE;
+
+		return true;
+	}
+
+	/**
+	 * add many packets with a single gathering write when the file supports it.
+	 * if close method was called earlier then will not add them.
+	 *
+	 * @param thepkts packets to store, each from its position to its limit
+	 * @param times timestamp of each packet in nano sec, 0 for the gap since the file was opened
+	 * @param count number of packets to store from the start of the arrays
+	 * @return true if packets added and false otherwise
+	 * @throws IOException
+	 */
+	public boolean addPackets(ByteBuffer[] thepkts, long[] times, int count) throws IOException
+	{
+		if (thepkts == null || !_isopened || myTotalBytes > myLimit)
+			return false;
+
+		if (myBatchBuffers.length < count * 3)
+		{
+			myBatchBuffers = new ByteBuffer[count * 3];
+		}
+
+		long total = 0;
+		for (int i = 0; i < count; i++)
+		{
+			int length = thepkts[i].remaining();
+			if (length > MAX_PACKET_SIZE)
+				throw new IOException("Got illeagl packet size : " + length);
+
+			long time = times[i];
+			if (time == 0) {
+				time = getNanoTime() - myStartTime; // the gap since start in nano sec
+			}
+
+			PCapPacketHeader hder = new PCapPacketHeader();
+			hder.setTimeValMsec32Uint((time / 1000) % 1000000);
+			hder.setTimeValSec32Uint(time / 1000000000L);
+			hder.setPktlenUint32(length + ETHERNET_HDR_LEN);
+			hder.setCaplen32Uint(length + ETHERNET_HDR_LEN);
+
+			myBatchBuffers[i * 3] = ByteBuffer.wrap(hder.getAsByteArray());
+			myBatchBuffers[i * 3 + 1] = ByteBuffer.wrap(StubbedEthernetHeader.getEthernetHeader());
+			myBatchBuffers[i * 3 + 2] = thepkts[i];
+			total += length + ETHERNET_HDR_LEN + PCapPacketHeader.HEADER_SIZE;
+		}
+
+		int buffers = count * 3;
+		if (myOutChannel instanceof GatheringByteChannel)
+		{
+			GatheringByteChannel gather = (GatheringByteChannel) myOutChannel;
+			while (buffers > 0 && myBatchBuffers[buffers - 1].hasRemaining())
+			{
+				gather.write(myBatchBuffers, 0, buffers);
+			}
+		}
+		else
+		{
+			for (int i = 0; i < buffers; i++)
+			{
+				while (myBatchBuffers[i].hasRemaining())
+				{
+					myOutChannel.write(myBatchBuffers[i]);
+				}
+			}
+		}
+		for (int i = 0; i < buffers; i++)
+		{
+			myBatchBuffers[i] = null;
+		}
+
+		myTotalBytes += total;
+
+		return true;
+	}
+
 	/**
 	 * close file.
 	 * not reversible
@@ -290,6 +417,7 @@ public class PCapFileWriter implements CaptureFileWriter
 			}
 			_isopened = false;
 			myOutStrm = null;
+			myOutChannel = null;
 		}
 	}
 
@@ -0,0 +1,318 @@
+package com.lipisoft.toyshark.packetRebuild;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writer of capture files in pcapng format.<br>
+ * 
+ * The file has one section with one interface of type LINKTYPE_RAW, so packets are
+ * stored as the raw IP packets of the VPN interface, without a stubbed Ethernet header.
+ * Each packet is an Enhanced Packet Block with a nano second timestamp and, when known,
+ * its direction in the epb_flags option.<br>
+ * 
+ * Blocks are built in one pre-allocated buffer, which is written to the file when the
+ * next block does not fit and at the end of each call, so a batch of packets is one write.
+ */
+public class PCapNgFileWriter implements CaptureFileWriter
+{
+	public static final int DIRECTION_UNKNOWN = 0;
+
+	public static final int DIRECTION_INBOUND = 1;
+
+	public static final int DIRECTION_OUTBOUND = 2;
+
+	public static final int LINKTYPE_RAW = 101;
+
+	private static final int SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+
+	private static final int INTERFACE_DESCRIPTION_BLOCK = 0x00000001;
+
+	private static final int ENHANCED_PACKET_BLOCK = 0x00000006;
+
+	private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+	private static final short OPT_ENDOFOPT = 0;
+
+	private static final short SHB_USERAPPL = 4;
+
+	private static final short IF_NAME = 2;
+
+	private static final short IF_TSRESOL = 9;
+
+	private static final short EPB_FLAGS = 2;
+
+	// block type, length, interface id, timestamp high and low, captured and original length
+	private static final int EPB_HEADER_LEN = 28;
+
+	private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	private final FileOutputStream myOutStrm;
+
+	private final FileChannel myChannel;
+
+	// blocks waiting to be written, only touched under the object lock
+	private final ByteBuffer myBlock;
+
+	private final long myStartTime;
+
+	private boolean _isopened = false;
+
+	private long myLimit = PCapFileWriter.DEFAULT_LIMIT;
+
+	private long myTotalBytes = 0;
+
+	/**
+	 * open new file and write the section header and interface description.
+	 * @param file
+	 * @param interfaceName - name of the captured interface, e.g. tun0
+	 * @throws IOException - on file creation failure.
+	 */
+	public PCapNgFileWriter(File file, String interfaceName) throws IOException
+	{
+		if (file == null) throw new IllegalArgumentException("Got null file object");
+
+		myBlock = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		myOutStrm = new FileOutputStream(file);
+		myChannel = myOutStrm.getChannel();
+		myStartTime = System.nanoTime();
+
+		putSectionHeader("ToyShark");
+		putInterfaceDescription(interfaceName);
+		writeBlocks();
+		_isopened = true;
+	}
+
+	/**
+	 * add packet of unknown direction.
+	 * @param thepkt
+	 * @param time - time in nano sec
+	 * @return true if packet added and false otherwise
+	 * @throws IOException
+	 */
+	public boolean addPacket(byte[] thepkt, long time) throws IOException
+	{
+		if (thepkt == null) return false;
+		return addPacket(ByteBuffer.wrap(thepkt), time, DIRECTION_UNKNOWN);
+	}
+
+	/**
+	 * add packet of unknown direction.
+	 * @param thepkt packet from its position to its limit, the position is moved to the limit.
+	 * @param time timestamp in nano sec since epoch, 0 for the gap since the file was opened
+	 * @return true if packet added and false otherwise
+	 * @throws IOException
+	 */
+	public boolean addPacket(ByteBuffer thepkt, long time) throws IOException
+	{
+		return addPacket(thepkt, time, DIRECTION_UNKNOWN);
+	}
+
+	/**
+	 * add packet.
+	 * @param thepkt packet from its position to its limit, the position is moved to the limit.
+	 * @param time timestamp in nano sec since epoch, 0 for the gap since the file was opened
+	 * @param direction one of DIRECTION_UNKNOWN, DIRECTION_INBOUND, DIRECTION_OUTBOUND
+	 * @return true if packet added and false otherwise
+	 * @throws IOException
+	 */
+	public synchronized boolean addPacket(ByteBuffer thepkt, long time, int direction) throws IOException
+	{
+		if (!putPacket(thepkt, time, direction)) return false;
+		writeBlocks();
+		return true;
+	}
+
+	/**
+	 * add many packets of unknown direction.
+	 * @param thepkts packets, each from its position to its limit
+	 * @param times timestamp of each packet in nano sec
+	 * @param count number of packets from the start of the arrays
+	 * @return true if all packets added and false otherwise
+	 * @throws IOException
+	 */
+	public boolean addPackets(ByteBuffer[] thepkts, long[] times, int count) throws IOException
+	{
+		return addPackets(thepkts, times, null, count);
+	}
+
+	/**
+	 * add many packets at once, normally with a single write to the file.
+	 * @param thepkts packets, each from its position to its limit
+	 * @param times timestamp of each packet in nano sec
+	 * @param directions direction of each packet, or null if unknown
+	 * @param count number of packets from the start of the arrays
+	 * @return true if all packets added and false otherwise
+	 * @throws IOException
+	 */
+	public synchronized boolean addPackets(ByteBuffer[] thepkts, long[] times, int[] directions, int count) throws IOException
+	{
+		if (thepkts == null) return false;
+
+		boolean added = true;
+		for (int i = 0; i < count; i++)
+		{
+			added &= putPacket(thepkts[i], times[i], directions == null ? DIRECTION_UNKNOWN : directions[i]);
+		}
+		writeBlocks();
+		return added;
+	}
+
+	/**
+	 * build an Enhanced Packet Block in the block buffer.
+	 */
+	private boolean putPacket(ByteBuffer thepkt, long time, int direction) throws IOException
+	{
+		if (thepkt == null || !_isopened || myTotalBytes > myLimit) return false;
+
+		int length = thepkt.remaining();
+		if (length > PCapFileWriter.MAX_PACKET_SIZE)
+			throw new IOException("Got illeagl packet size : " + length);
+
+		int padding = (4 - (length & 3)) & 3;
+		int blockLength = EPB_HEADER_LEN + length + padding + 4;
+		if (direction != DIRECTION_UNKNOWN)
+		{
+			blockLength += 12;
+		}
+		if (myBlock.remaining() < blockLength)
+		{
+			writeBlocks();
+		}
+
+		if (time == 0)
+		{
+			time = System.nanoTime() - myStartTime;
+		}
+
+		myBlock.putInt(ENHANCED_PACKET_BLOCK);
+		myBlock.putInt(blockLength);
+		myBlock.putInt(0);
+		myBlock.putInt((int) (time >>> 32));
+		myBlock.putInt((int) time);
+		myBlock.putInt(length);
+		myBlock.putInt(length);
+		myBlock.put(thepkt);
+		for (int i = 0; i < padding; i++)
+		{
+			myBlock.put((byte) 0);
+		}
+		if (direction != DIRECTION_UNKNOWN)
+		{
+			myBlock.putShort(EPB_FLAGS);
+			myBlock.putShort((short) 4);
+			myBlock.putInt(direction & 3);
+			myBlock.putShort(OPT_ENDOFOPT);
+			myBlock.putShort((short) 0);
+		}
+		myBlock.putInt(blockLength);
+		myTotalBytes += blockLength;
+		return true;
+	}
+
+	private void putSectionHeader(String application)
+	{
+		byte[] appl = application.getBytes();
+		int optLength = 4 + pad(appl.length) + 4;
+		int blockLength = 28 + optLength;
+		myBlock.putInt(SECTION_HEADER_BLOCK);
+		myBlock.putInt(blockLength);
+		myBlock.putInt(BYTE_ORDER_MAGIC);
+		myBlock.putShort((short) 1);
+		myBlock.putShort((short) 0);
+		// section length is not known in advance
+		myBlock.putLong(-1L);
+		putOption(SHB_USERAPPL, appl);
+		myBlock.putShort(OPT_ENDOFOPT);
+		myBlock.putShort((short) 0);
+		myBlock.putInt(blockLength);
+		myTotalBytes += blockLength;
+	}
+
+	private void putInterfaceDescription(String interfaceName)
+	{
+		byte[] name = interfaceName == null ? new byte[0] : interfaceName.getBytes();
+		int optLength = (name.length > 0 ? 4 + pad(name.length) : 0) + 8 + 4;
+		int blockLength = 20 + optLength;
+		myBlock.putInt(INTERFACE_DESCRIPTION_BLOCK);
+		myBlock.putInt(blockLength);
+		myBlock.putShort((short) LINKTYPE_RAW);
+		myBlock.putShort((short) 0);
+		myBlock.putInt(0xffff);
+		if (name.length > 0)
+		{
+			putOption(IF_NAME, name);
+		}
+		// timestamps are in units of 10^-9 sec
+		putOption(IF_TSRESOL, new byte[] { 9 });
+		myBlock.putShort(OPT_ENDOFOPT);
+		myBlock.putShort((short) 0);
+		myBlock.putInt(blockLength);
+		myTotalBytes += blockLength;
+	}
+
+	private void putOption(short code, byte[] value)
+	{
+		myBlock.putShort(code);
+		myBlock.putShort((short) value.length);
+		myBlock.put(value);
+		for (int i = value.length; i < pad(value.length); i++)
+		{
+			myBlock.put((byte) 0);
+		}
+	}
+
+	private static int pad(int length)
+	{
+		return (length + 3) & ~3;
+	}
+
+	private void writeBlocks() throws IOException
+	{
+		myBlock.flip();
+		try
+		{
+			while (myBlock.hasRemaining())
+			{
+				myChannel.write(myBlock);
+			}
+		} finally
+		{
+			myBlock.clear();
+		}
+	}
+
+	/**
+	 * close file.
+	 * not reversible
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (!_isopened) return;
+
+		_isopened = false;
+		myOutStrm.close();
+	}
+
+	/**
+	 * @return number of bytes written so far.
+	 */
+	public synchronized long getTotalBytes()
+	{
+		return myTotalBytes;
+	}
+
+	/**
+	 * set the cap max number of bytes.
+	 * @param theLimit
+	 */
+	public synchronized void setLimit(long theLimit)
+	{
+		myLimit = theLimit;
+	}
+}
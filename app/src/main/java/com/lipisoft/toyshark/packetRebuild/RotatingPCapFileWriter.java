@@ -0,0 +1,263 @@
+package com.lipisoft.toyshark.packetRebuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writer of capture files in libcap format to a ring of fixed size files.<br>
+ * 
+ * Each file is mapped into memory and packets are copied into the mapping, so
+ * adding a packet does not issue a system call. When the next packet does not fit
+ * in the current file, or the file has been open longer than the rotation period,
+ * the file is truncated to its used size and the next file of the ring is opened,
+ * overwriting the oldest capture. Disk usage is bounded by files * file size.<br>
+ * 
+ * Files are named &lt;prefix&gt;-&lt;index&gt;.pcap, index from 0 to files-1.
+ */
+public class RotatingPCapFileWriter implements CaptureFileWriter
+{
+	private static final int ETHERNET_HDR_LEN = 14;
+
+	private static final int RECORD_HDR_LEN = PCapPacketHeader.HEADER_SIZE + ETHERNET_HDR_LEN;
+
+	public static final int MIN_FILE_SIZE = PCapFileHeader.HEADER_SIZE + RECORD_HDR_LEN + PCapFileWriter.MAX_PACKET_SIZE;
+
+	// a whole file is mapped at once, keep it well within the address space of a 32 bit process
+	public static final int MAX_FILE_SIZE = 1024 * 1024 * 1024;
+
+	private final File myDir;
+
+	private final String myPrefix;
+
+	private final int myFileCount;
+
+	private final int myFileSize;
+
+	private final long myRotateNano;
+
+	private final byte[] myFileHeader = new PCapFileHeader().getAsByteArray();
+
+	private final byte[] myEthernetHeader = StubbedEthernetHeader.getEthernetHeader();
+
+	private RandomAccessFile myFile;
+
+	private FileChannel myChannel;
+
+	private MappedByteBuffer myMap;
+
+	// index of the file currently written
+	private int myIndex = -1;
+
+	private long myFileOpenTime;
+
+	private final long myStartTime;
+
+	private boolean _isopened = false;
+
+	private long myTotalBytes = 0;
+
+	private long myRotations = 0;
+
+	/**
+	 * open the first file of the ring.
+	 * @param dir - directory of the ring files
+	 * @param prefix - file name prefix
+	 * @param files - number of files in the ring
+	 * @param fileSize - max size of each file in bytes
+	 * @param rotateMsec - max time a file is written before moving to the next one, 0 for size based rotation only
+	 * @throws IOException - on file creation failure.
+	 */
+	public RotatingPCapFileWriter(File dir, String prefix, int files, int fileSize, long rotateMsec) throws IOException
+	{
+		if (dir == null || prefix == null) throw new IllegalArgumentException("Got null file object");
+		if (files < 1) throw new IllegalArgumentException("Ring must have at least one file : " + files);
+		if (fileSize < MIN_FILE_SIZE)
+			throw new IllegalArgumentException("File can not hold a packet of max size : " + fileSize);
+		if (fileSize > MAX_FILE_SIZE)
+			throw new IllegalArgumentException("File is too large to be mapped : " + fileSize);
+
+		myDir = dir;
+		myPrefix = prefix;
+		myFileCount = files;
+		myFileSize = fileSize;
+		myRotateNano = rotateMsec * 1000000L;
+		myStartTime = System.nanoTime();
+		rotate();
+		_isopened = true;
+	}
+
+	/**
+	 * @param index - ring position
+	 * @return file of the given ring position
+	 */
+	public File getFile(int index)
+	{
+		return new File(myDir, myPrefix + "-" + index + ".pcap");
+	}
+
+	/**
+	 * add packet to the current file.
+	 * @param thepkt
+	 * @param time - time in nano sec
+	 * @return true if packet added and false otherwise
+	 * @throws IOException
+	 */
+	public boolean addPacket(byte[] thepkt, long time) throws IOException
+	{
+		if (thepkt == null) return false;
+		return addPacket(ByteBuffer.wrap(thepkt), time);
+	}
+
+	/**
+	 * add packet to the current file, moving to the next file of the ring when needed.
+	 * @param thepkt packet from its position to its limit, the position is moved to the limit.
+	 * @param time timestamp in nano sec, 0 for the gap since the ring was opened
+	 * @return true if packet added and false otherwise
+	 * @throws IOException
+	 */
+	public synchronized boolean addPacket(ByteBuffer thepkt, long time) throws IOException
+	{
+		if (thepkt == null || !_isopened) return false;
+
+		int length = thepkt.remaining();
+		if (length > PCapFileWriter.MAX_PACKET_SIZE)
+			throw new IOException("Got illeagl packet size : " + length);
+
+		if (myMap.remaining() < RECORD_HDR_LEN + length
+				|| (myRotateNano > 0 && System.nanoTime() - myFileOpenTime >= myRotateNano))
+		{
+			rotate();
+		}
+
+		if (time == 0)
+		{
+			time = System.nanoTime() - myStartTime;
+		}
+
+		myMap.putInt((int) (time / 1000000000L));
+		myMap.putInt((int) ((time / 1000) % 1000000));
+		myMap.putInt(length + ETHERNET_HDR_LEN);
+		myMap.putInt(length + ETHERNET_HDR_LEN);
+		myMap.put(myEthernetHeader);
+		myMap.put(thepkt);
+		myTotalBytes += RECORD_HDR_LEN + length;
+		return true;
+	}
+
+	/**
+	 * add many packets.
+	 * @param thepkts packets, each from its position to its limit
+	 * @param times timestamp of each packet in nano sec
+	 * @param count number of packets from the start of the arrays
+	 * @return true if all packets added and false otherwise
+	 * @throws IOException
+	 */
+	public synchronized boolean addPackets(ByteBuffer[] thepkts, long[] times, int count) throws IOException
+	{
+		if (thepkts == null) return false;
+
+		boolean added = true;
+		for (int i = 0; i < count; i++)
+		{
+			added &= addPacket(thepkts[i], times[i]);
+		}
+		return added;
+	}
+
+	/**
+	 * finish the current file and map the next file of the ring.
+	 * @throws IOException
+	 */
+	private void rotate() throws IOException
+	{
+		finishCurrent();
+
+		myIndex = (myIndex + 1) % myFileCount;
+		myFile = new RandomAccessFile(getFile(myIndex), "rw");
+		// overwrite whatever an earlier round of the ring left in this file
+		myFile.setLength(0);
+		myFile.setLength(myFileSize);
+		myChannel = myFile.getChannel();
+		myMap = myChannel.map(FileChannel.MapMode.READ_WRITE, 0, myFileSize);
+		myMap.put(myFileHeader);
+		myTotalBytes += PCapFileHeader.HEADER_SIZE;
+		myFileOpenTime = System.nanoTime();
+		myRotations++;
+	}
+
+	/**
+	 * flush the mapping and cut the unused tail of the current file,
+	 * so readers do not see it as zero length packets.<br>
+	 * 
+	 * Java can not unmap a buffer, the mapping goes away once it is collected. The only reference
+	 * to it is dropped before the file shrinks, so nothing can touch its pages beyond the new end
+	 * of the file, and the file is cut through a channel that was never mapped.
+	 * @throws IOException
+	 */
+	private void finishCurrent() throws IOException
+	{
+		if (myFile == null) return;
+
+		final int used = myMap.position();
+		try
+		{
+			myMap.force();
+		} finally
+		{
+			myMap = null;
+			myChannel = null;
+			myFile.close();
+			myFile = null;
+		}
+
+		RandomAccessFile file = new RandomAccessFile(getFile(myIndex), "rw");
+		try
+		{
+			file.getChannel().truncate(used);
+		} finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * finish the current file.
+	 * not reversible
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (!_isopened) return;
+
+		_isopened = false;
+		finishCurrent();
+	}
+
+	/**
+	 * @return number of bytes written to all files of the ring so far.
+	 */
+	public synchronized long getTotalBytes()
+	{
+		return myTotalBytes;
+	}
+
+	/**
+	 * @return number of files opened so far, including the first one.
+	 */
+	public synchronized long getRotations()
+	{
+		return myRotations;
+	}
+
+	/**
+	 * @return ring position of the file currently written.
+	 */
+	public synchronized int getCurrentIndex()
+	{
+		return myIndex;
+	}
+}
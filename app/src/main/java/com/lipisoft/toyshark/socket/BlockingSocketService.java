@@ -0,0 +1,227 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark.socket;
+
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import com.lipisoft.toyshark.FlowKey;
+import com.lipisoft.toyshark.IClientPacketWriter;
+import com.lipisoft.toyshark.Session;
+import com.lipisoft.toyshark.SessionManager;
+import com.lipisoft.toyshark.transport.tcp.TCPPacketFactory;
+import com.lipisoft.toyshark.util.ChunkedByteQueue;
+import com.lipisoft.toyshark.util.PacketUtil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Blocking I/O mode for TCP sessions, the alternative to the selectors of
+ * {@link SocketNIODataService}. Each session gets a pooled thread that connects, then blocks
+ * reading from the remote server and sends what it reads to the VPN client through
+ * {@link TCPSender}. Data from the client is written by another pooled thread, one write task
+ * per session at a time.
+ * <p>
+ * Socket calls are made outside the session's buffer locks, so a slow server never blocks the
+ * thread reading the VPN interface. The price is one thread per session plus a copy through a
+ * per-thread buffer in each direction. UDP sessions stay on the selectors.
+ */
+public final class BlockingSocketService {
+	private static final String TAG = "BlockingSocketService";
+	private static final BlockingSocketService instance = new BlockingSocketService();
+	//longest wait for room in the receiving buffer before checking the session is still open
+	private static final int ROOM_WAIT_TIMEOUT = 1000;
+
+	private volatile IClientPacketWriter writer;
+	@NonNull private final ExecutorService pool;
+	@NonNull private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(DataConst.MAX_RECEIVE_BUFFER_SIZE);
+		}
+	};
+
+	public static BlockingSocketService getInstance() {
+		return instance;
+	}
+
+	private BlockingSocketService() {
+		pool = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(@NonNull Runnable runnable) {
+				final Thread thread = new Thread(runnable, "BlockingSocket");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void setWriter(IClientPacketWriter writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * connect a session's blocking channel and read from it until the remote server closes
+	 * @param session TCP session whose channel is in blocking mode and not yet connected
+	 */
+	public void start(@NonNull final Session session) {
+		try {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					connectAndRead(session);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Log.e(TAG, "Failed to start session thread: " + e.getMessage());
+			SessionManager.INSTANCE.onConnectFailed(session);
+		}
+	}
+
+	/**
+	 * write data buffered from client to the remote server. Does nothing before the connection
+	 * is established, the reading thread requests the write then.
+	 * @param session TCP session started by {@link #start(Session)}
+	 */
+	public void requestWrite(@NonNull final Session session) {
+		if (!session.isConnected() || !session.addPendingOperations(SelectionKey.OP_WRITE)) {
+			//not connected yet, or a write task is already running for this session
+			return;
+		}
+		try {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					write(session);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			session.takePendingOperations();
+			Log.e(TAG, "Failed to start write task: " + e.getMessage());
+		}
+	}
+
+	private void connectAndRead(@NonNull Session session) {
+		final SocketChannel channel = (SocketChannel) session.getChannel();
+		final ChunkedByteQueue queue = session.getReceivingQueue();
+		final TCPSender sender = TCPSender.getInstance();
+		final ByteBuffer buffer = buffers.get();
+		try {
+			channel.connect(new InetSocketAddress(PacketUtil.intToIPAddress(session.getDestIp()),
+					session.getDestPort()));
+			session.setConnected(true);
+			Log.d(TAG,"connected to remote tcp server: " + FlowKey.toString(session.getAddressKey(), session.getPortKey()));
+			SessionManager.INSTANCE.onConnected(session);
+			//data from client may have been buffered while connecting
+			SessionManager.INSTANCE.requestUplinkWrite(session);
+
+			while (!session.isAbortingConnection()) {
+				if (!session.awaitReceivingRoom(ROOM_WAIT_TIMEOUT)) {
+					continue;
+				}
+				buffer.clear();
+				buffer.limit(Math.min(buffer.capacity(), queue.available()));
+				if (channel.read(buffer) < 0) {
+					Log.d(TAG,"End of data from remote server, will send FIN to client after buffered data");
+					session.setHasReceivedLastSegment(true);
+					sender.push(session);
+					break;
+				}
+				queue.write(buffer.array(), 0, buffer.position());
+				session.touch(System.nanoTime() / 1000000);
+				//send to vpn client as much as its window allows
+				sender.push(session);
+			}
+		} catch (AsynchronousCloseException e) {
+			//session was closed meanwhile
+		} catch (IOException e) {
+			Log.e(TAG,"Error on remote socket: " + e.getMessage());
+			if (session.isConnected()) {
+				abort(session, false);
+			} else {
+				SessionManager.INSTANCE.onConnectFailed(session);
+			}
+		} catch (InterruptedException e) {
+			abort(session, false);
+		}
+	}
+
+	private void write(@NonNull Session session) {
+		final SocketChannel channel = (SocketChannel) session.getChannel();
+		final ChunkedByteQueue queue = session.getSendingQueue();
+		final ByteBuffer buffer = buffers.get();
+		try {
+			while (true) {
+				//copy out first, the queue must not stay locked while the socket blocks
+				buffer.clear();
+				final int length = queue.read(buffer.array(), 0, buffer.capacity());
+				if (length > 0) {
+					buffer.limit(length);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					TCPSender.getInstance().updateWindow(session);
+					continue;
+				}
+				if (SessionManager.INSTANCE.isStreamingUplink()) {
+					session.onDataFlushed();
+				}
+				//data added after the queue was found empty is written by this task or a new one
+				session.takePendingOperations();
+				if (queue.isEmpty() || !session.addPendingOperations(SelectionKey.OP_WRITE)) {
+					break;
+				}
+			}
+		} catch (AsynchronousCloseException e) {
+			session.takePendingOperations();
+		} catch (IOException e) {
+			session.takePendingOperations();
+			Log.e(TAG,"Error writing to server: " + e.getMessage());
+			abort(session, true);
+		}
+	}
+
+	/**
+	 * close a session after an I/O error
+	 * @param session TCP session
+	 * @param reset true to reset the connection with the client
+	 */
+	private void abort(@NonNull Session session, boolean reset) {
+		session.setAbortingConnection(true);
+		final IClientPacketWriter writer = this.writer;
+		if (reset && writer != null && session.getLastIpHeader() != null && session.getLastTcpHeader() != null) {
+			final byte[] rstData = TCPPacketFactory.createRstData(
+					session.getLastIpHeader(), session.getLastTcpHeader(), 0);
+			try {
+				writer.write(rstData);
+				SocketData.getInstance().addData(rstData);
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to reset client: " + e.getMessage());
+			}
+		}
+		SessionManager.INSTANCE.closeSession(session);
+	}
+}
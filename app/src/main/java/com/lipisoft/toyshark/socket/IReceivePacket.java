@@ -1,5 +1,21 @@
 package com.lipisoft.toyshark.socket;
 
+import com.lipisoft.toyshark.util.PacketBuffer;
+
+import java.util.List;
+
 public interface IReceivePacket {
-	void receive(byte[] packet);
+	/**
+	 * called for each captured packet. The packet is shared and released after every
+	 * subscriber has received it, so retain it to keep it longer.
+	 * @param packet whole packet
+	 */
+	void receive(PacketBuffer packet);
+
+	/**
+	 * called with all packets taken from the queue in one wake up, oldest first.
+	 * Same ownership rule as {@link #receive(PacketBuffer)}; the list itself is reused after return.
+	 * @param packets captured packets
+	 */
+	void receive(List<PacketBuffer> packets);
 }
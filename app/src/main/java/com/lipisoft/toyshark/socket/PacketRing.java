@@ -0,0 +1,233 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.lipisoft.toyshark.socket;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.lipisoft.toyshark.util.PacketBuffer;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue of packets with pre-sized slots, nothing is allocated per packet.
+ * Many threads offer (VPN interface reader, socket workers), one thread polls (capture publisher).
+ * Each slot carries a sequence number telling whether it is free for the producer of a given
+ * position or filled for the consumer of it, so producers only race on a CAS of the tail.
+ */
+public class PacketRing {
+	/**
+	 * what to do with a packet offered while the ring is full
+	 */
+	public enum OverflowPolicy {
+		/** drop the packet being offered */
+		DROP_NEWEST,
+		/** drop the oldest queued packet to make room */
+		DROP_OLDEST,
+		/** wait until the consumer makes room */
+		BLOCK
+	}
+
+	private static final long BLOCK_PARK_NANOS = 50000L;
+
+	private final int mask;
+	@NonNull private final AtomicReferenceArray<PacketBuffer> slots;
+	@NonNull private final AtomicLongArray sequences;
+	@NonNull private final AtomicLong head = new AtomicLong();
+	@NonNull private final AtomicLong tail = new AtomicLong();
+	@NonNull private final AtomicLong dropped = new AtomicLong();
+	@NonNull private volatile OverflowPolicy overflowPolicy;
+	//consumer parked in await(), woken up by the next offer
+	@Nullable private volatile Thread waitingConsumer = null;
+	//offers fail once closed, producers waiting for room give up
+	private volatile boolean closed = false;
+
+	/**
+	 * @param capacity number of slots, rounded up to a power of two, at least 2. With a single slot
+	 * its sequence numbers could not tell a filled slot from a free one.
+	 * @param overflowPolicy policy when the ring is full
+	 */
+	public PacketRing(int capacity, @NonNull OverflowPolicy overflowPolicy) {
+		int size = 2;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		slots = new AtomicReferenceArray<>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * queue a packet. The ring takes over the caller's reference, so a dropped packet is released here.
+	 * @param packet packet to be queued
+	 * @return false if this packet was dropped, also when the ring is closed
+	 */
+	public boolean offer(@NonNull PacketBuffer packet) {
+		while (closed || !tryOffer(packet)) {
+			if (closed) {
+				packet.release();
+				return false;
+			}
+			switch (overflowPolicy) {
+				case DROP_NEWEST:
+					dropped.incrementAndGet();
+					packet.release();
+					return false;
+				case DROP_OLDEST:
+					final PacketBuffer oldest = poll();
+					if (oldest != null) {
+						dropped.incrementAndGet();
+						oldest.release();
+					}
+					break;
+				case BLOCK:
+					LockSupport.parkNanos(BLOCK_PARK_NANOS);
+					break;
+			}
+		}
+		return true;
+	}
+
+	private boolean tryOffer(@NonNull PacketBuffer packet) {
+		while (true) {
+			final long position = tail.get();
+			final int index = (int) position & mask;
+			final long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.set(index, packet);
+					//publish: slot is now readable by the consumer of this position
+					sequences.lazySet(index, position + 1);
+					final Thread consumer = waitingConsumer;
+					if (consumer != null) {
+						LockSupport.unpark(consumer);
+					}
+					return true;
+				}
+			} else if (difference < 0) {
+				//slot still holds the packet of the previous lap
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * take the oldest packet; the caller owns its reference and must release it.
+	 * Normally only the consumer calls this, producers do it too for {@link OverflowPolicy#DROP_OLDEST}.
+	 * @return PacketBuffer or null if the ring is empty
+	 */
+	@Nullable
+	public PacketBuffer poll() {
+		while (true) {
+			final long position = head.get();
+			final int index = (int) position & mask;
+			final long difference = sequences.get(index) - (position + 1);
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					final PacketBuffer packet = slots.get(index);
+					slots.lazySet(index, null);
+					//free the slot for the producer one lap later
+					sequences.lazySet(index, position + mask + 1);
+					return packet;
+				}
+			} else if (difference < 0) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * move up to maxCount packets into a list; the caller owns their references.
+	 * @param out list to append packets to
+	 * @param maxCount maximum number of packets to move
+	 * @return number of packets moved
+	 */
+	public int drainTo(@NonNull List<PacketBuffer> out, int maxCount) {
+		int count = 0;
+		while (count < maxCount) {
+			final PacketBuffer packet = poll();
+			if (packet == null) {
+				break;
+			}
+			out.add(packet);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * park the consumer until a packet is offered, the timeout elapses or the thread is interrupted.
+	 * Only the single consumer may call this.
+	 * @param timeoutNanos maximum time to wait
+	 */
+	public void await(long timeoutNanos) {
+		waitingConsumer = Thread.currentThread();
+		//check again after announcing, an offer before that would not have unparked us
+		if (isEmpty()) {
+			LockSupport.parkNanos(this, timeoutNanos);
+		}
+		waitingConsumer = null;
+	}
+
+	/**
+	 * refuse further offers, not reversible. Producers blocked for room return within one park
+	 * period. Queued packets can still be polled.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+
+	public int size() {
+		final long size = tail.get() - head.get();
+		return size < 0 ? 0 : (int) size;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return number of packets dropped because the ring was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	@NonNull
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(@NonNull OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark.socket;
+
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Channels opened, configured and protected from the VPN in advance, so a new session only has
+ * to connect. Opening a socket and protecting it through VpnService takes a system call and a
+ * binder call, both of which used to sit between the client's SYN and the connect.
+ * <p>
+ * While started, a background thread keeps each pool at about two refill periods of demand at
+ * the recent session creation rate, and closes idle channels beyond that. While stopped, or when
+ * a pool runs dry, channels are opened on the calling thread as before.
+ */
+public final class ProtectedChannelPool {
+	private static final String TAG = "ProtectedChannelPool";
+	private static final ProtectedChannelPool instance = new ProtectedChannelPool();
+	//time between two estimates of the creation rate, in milli sec
+	private static final long REFILL_PERIOD = 500;
+	private static final int MIN_SIZE = 2;
+	private static final int MAX_SIZE = 32;
+
+	@NonNull private final Pool<SocketChannel> tcp = new Pool<SocketChannel>("TCP") {
+		@NonNull
+		@Override
+		SocketChannel open() throws IOException {
+			final SocketChannel channel = SocketChannel.open();
+			try {
+				channel.socket().setKeepAlive(true);
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().setSoTimeout(0);
+				channel.socket().setReceiveBufferSize(DataConst.MAX_RECEIVE_BUFFER_SIZE);
+				channel.configureBlocking(false);
+				SocketProtector.getInstance().protect(channel.socket());
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			return channel;
+		}
+	};
+	@NonNull private final Pool<DatagramChannel> udp = new Pool<DatagramChannel>("UDP") {
+		@NonNull
+		@Override
+		DatagramChannel open() throws IOException {
+			final DatagramChannel channel = DatagramChannel.open();
+			try {
+				channel.socket().setSoTimeout(0);
+				channel.configureBlocking(false);
+				SocketProtector.getInstance().protect(channel.socket());
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			return channel;
+		}
+	};
+	//null while stopped
+	private volatile ScheduledThreadPoolExecutor refiller;
+	//open and protect time spared to sessions, in nano sec
+	@NonNull private final AtomicLong savedNanos = new AtomicLong();
+
+	public static ProtectedChannelPool getInstance() {
+		return instance;
+	}
+
+	private ProtectedChannelPool() {
+	}
+
+	/**
+	 * start filling the pools. SocketProtector must be set up by then.
+	 */
+	public synchronized void start() {
+		if (refiller != null) {
+			return;
+		}
+		final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(@NonNull Runnable runnable) {
+				final Thread thread = new Thread(runnable, "ChannelPoolRefill");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tcp.adjust();
+					udp.adjust();
+				} catch (RuntimeException e) {
+					//an exception would cancel the schedule
+					Log.e(TAG, "Failed to refill pools: " + e.toString());
+				}
+			}
+		}, 0, REFILL_PERIOD, TimeUnit.MILLISECONDS);
+		refiller = executor;
+	}
+
+	/**
+	 * stop filling the pools and close the idle channels
+	 */
+	public synchronized void shutdown() {
+		final ScheduledThreadPoolExecutor executor = refiller;
+		if (executor == null) {
+			return;
+		}
+		refiller = null;
+		executor.shutdownNow();
+		tcp.clear();
+		udp.clear();
+		Log.d(TAG, "hits: " + getHits() + ", misses: " + getMisses() + ", saved "
+				+ TimeUnit.NANOSECONDS.toMillis(getSavedNanos()) + " ms of session setup");
+	}
+
+	/**
+	 * @return a protected, unconnected, non-blocking TCP channel
+	 * @throws IOException if a new channel could not be opened
+	 */
+	@NonNull
+	public SocketChannel takeSocketChannel() throws IOException {
+		return tcp.take();
+	}
+
+	/**
+	 * @return a protected, unconnected, non-blocking UDP channel
+	 * @throws IOException if a new channel could not be opened
+	 */
+	@NonNull
+	public DatagramChannel takeDatagramChannel() throws IOException {
+		return udp.take();
+	}
+
+	/**
+	 * @return TCP channels waiting in the pool
+	 */
+	public int getIdleSocketChannels() {
+		return tcp.size.get();
+	}
+
+	/**
+	 * @return channels taken from a pool
+	 */
+	public long getHits() {
+		return tcp.hits.get() + udp.hits.get();
+	}
+
+	/**
+	 * @return channels opened on the calling thread because a pool was empty or stopped
+	 */
+	public long getMisses() {
+		return tcp.misses.get() + udp.misses.get();
+	}
+
+	/**
+	 * @return average time to open and protect a TCP channel in nano sec
+	 */
+	public long getAverageOpenNanos() {
+		return tcp.openNanos;
+	}
+
+	/**
+	 * @return time to open and protect channels that sessions got from a pool instead, in nano sec
+	 */
+	public long getSavedNanos() {
+		return savedNanos.get();
+	}
+
+	private abstract class Pool<T extends AbstractSelectableChannel> {
+		@NonNull private final String name;
+		@NonNull private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+		@NonNull final AtomicInteger size = new AtomicInteger();
+		//channels taken since the last estimate
+		@NonNull private final AtomicInteger taken = new AtomicInteger();
+		@NonNull private final AtomicBoolean refillRequested = new AtomicBoolean();
+		@NonNull final AtomicLong hits = new AtomicLong();
+		@NonNull final AtomicLong misses = new AtomicLong();
+		//moving average of open and protect time, in nano sec
+		volatile long openNanos = 0;
+		//moving average of channels taken per refill period, used by the refill thread only
+		private double rate = 0;
+		private volatile int target = MIN_SIZE;
+
+		Pool(@NonNull String name) {
+			this.name = name;
+		}
+
+		@NonNull
+		abstract T open() throws IOException;
+
+		@NonNull
+		T take() throws IOException {
+			taken.incrementAndGet();
+			T channel;
+			while ((channel = idle.poll()) != null) {
+				size.decrementAndGet();
+				if (channel.isOpen()) {
+					hits.incrementAndGet();
+					savedNanos.addAndGet(openNanos);
+					if (size.get() < target / 2) {
+						requestRefill();
+					}
+					return channel;
+				}
+			}
+			misses.incrementAndGet();
+			requestRefill();
+			return timedOpen();
+		}
+
+		/**
+		 * estimate the creation rate, then open or close channels to meet it
+		 */
+		void adjust() {
+			rate += (taken.getAndSet(0) - rate) / 4;
+			target = Math.max(MIN_SIZE, Math.min(MAX_SIZE, (int) Math.ceil(rate * 2)));
+			refill();
+			while (size.get() > target) {
+				final T channel = idle.poll();
+				if (channel == null) {
+					break;
+				}
+				size.decrementAndGet();
+				close(channel);
+			}
+		}
+
+		void clear() {
+			T channel;
+			while ((channel = idle.poll()) != null) {
+				size.decrementAndGet();
+				close(channel);
+			}
+		}
+
+		private void requestRefill() {
+			final ScheduledThreadPoolExecutor executor = refiller;
+			if (executor == null || !refillRequested.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						refillRequested.set(false);
+						refill();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				//stopped meanwhile
+				refillRequested.set(false);
+			}
+		}
+
+		private void refill() {
+			while (refiller != null && size.get() < target) {
+				final T channel;
+				try {
+					channel = timedOpen();
+				} catch (IOException e) {
+					Log.e(TAG, "Failed to open " + name + " channel: " + e.getMessage());
+					return;
+				}
+				idle.offer(channel);
+				size.incrementAndGet();
+			}
+			if (refiller == null) {
+				//stopped while filling
+				clear();
+			}
+		}
+
+		@NonNull
+		private T timedOpen() throws IOException {
+			final long start = System.nanoTime();
+			final T channel = open();
+			final long elapsed = System.nanoTime() - start;
+			final long average = openNanos;
+			openNanos = average == 0 ? elapsed : average + (elapsed - average) / 8;
+			return channel;
+		}
+
+		private void close(@NonNull T channel) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to close " + name + " channel: " + e.getMessage());
+			}
+		}
+	}
+}
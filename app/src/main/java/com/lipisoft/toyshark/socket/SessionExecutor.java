@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark.socket;
+
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import com.lipisoft.toyshark.FlowKey;
+import com.lipisoft.toyshark.Session;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Runs socket reads and writes of sessions on a fixed number of threads. Each session is pinned
+ * to one thread chosen by its flow hash, so its reads and writes never run concurrently and its
+ * buffers stay warm in one core's cache.
+ * <p>
+ * An event only sets a bit in the session. The session is queued once, however many events arrive
+ * before its thread gets to it, so dispatching does not allocate.
+ */
+final class SessionExecutor {
+	private static final String TAG = "SessionExecutor";
+
+	@NonNull private final Loop[] loops;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param threads number of threads, at least 1
+	 * @param reader reads from remote servers
+	 * @param writer writes to remote servers
+	 */
+	SessionExecutor(int threads, @NonNull SocketDataReaderWorker reader, @NonNull SocketDataWriterWorker writer) {
+		loops = new Loop[Math.max(1, threads)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new Loop("SessionLoop-" + i, reader, writer);
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * run socket operations of a session on its thread
+	 * @param session TCP or UDP session
+	 * @param operations SelectionKey.OP_READ and/or SelectionKey.OP_WRITE
+	 */
+	void execute(@NonNull Session session, int operations) {
+		if (!session.addPendingOperations(operations)) {
+			//already queued, its thread will see the new operations too
+			return;
+		}
+		final int hash = FlowKey.hash(session.getAddressKey(), session.getPortKey());
+		loops[(hash & 0x7FFFFFFF) % loops.length].enqueue(session);
+	}
+
+	void shutdown() {
+		shutdown = true;
+		for (Loop loop : loops) {
+			loop.interrupt();
+		}
+	}
+
+	private final class Loop extends Thread {
+		@NonNull private final ArrayDeque<Session> queue = new ArrayDeque<>();
+		@NonNull private final SocketDataReaderWorker reader;
+		@NonNull private final SocketDataWriterWorker writer;
+
+		Loop(@NonNull String name, @NonNull SocketDataReaderWorker reader, @NonNull SocketDataWriterWorker writer) {
+			super(name);
+			setDaemon(true);
+			this.reader = reader;
+			this.writer = writer;
+		}
+
+		void enqueue(@NonNull Session session) {
+			synchronized (queue) {
+				queue.addLast(session);
+				queue.notify();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!shutdown) {
+				final Session session;
+				synchronized (queue) {
+					while (queue.isEmpty()) {
+						try {
+							queue.wait();
+						} catch (InterruptedException e) {
+							Log.d(TAG, getName() + " stopped");
+							return;
+						}
+					}
+					session = queue.pollFirst();
+				}
+				final int operations = session.takePendingOperations();
+				final AbstractSelectableChannel channel = session.getChannel();
+				if (channel == null || !channel.isOpen()) {
+					//closed while queued
+					continue;
+				}
+				try {
+					if ((operations & SelectionKey.OP_WRITE) != 0) {
+						writer.write(session);
+					}
+					if ((operations & SelectionKey.OP_READ) != 0) {
+						reader.read(session);
+					}
+				} catch (RuntimeException e) {
+					//keep the thread alive for the other sessions pinned to it
+					Log.e(TAG, "Error processing " + FlowKey.toString(session.getAddressKey(),
+							session.getPortKey()) + ": " + e.toString());
+				}
+			}
+		}
+	}
+}
@@ -15,32 +15,101 @@
 */
 package com.lipisoft.toyshark.socket;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.lipisoft.toyshark.util.PacketBuffer;
+
+import java.util.List;
 
 /**
  * Singleton data structure for storing packet data in queue. Data is pushed into this queue from 
  * VpnService as well as background worker that pull data from remote socket.
+ * The queue is a bounded lock-free ring, so producers on the proxy path never wait on a lock;
+ * what happens when the capture falls behind is decided by its {@link PacketRing.OverflowPolicy}.
  * @author Borey Sao
  * Date: May 12, 2014
  */
 public class SocketData {
+	public static final int DEFAULT_CAPACITY = 8192;
+
 	private static final SocketData instance = new SocketData();
-	private Queue<byte[]> data;
+	private final PacketRing data;
+	//wall clock minus monotonic clock, so capture time has nano second resolution
+	private final long clockOffset = System.currentTimeMillis() * 1000000 - System.nanoTime();
 
 	public static SocketData getInstance(){
 		return instance;
 	}
 
 	private SocketData() {
-		data = new LinkedList<>();
+		data = new PacketRing(DEFAULT_CAPACITY, PacketRing.OverflowPolicy.DROP_NEWEST);
+	}
+
+	/**
+	 * queue a packet generated by the proxy, i.e. written to the VPN interface for the client
+	 * @param packet whole packet
+	 */
+	public void addData(@NonNull byte[] packet) {
+		final PacketBuffer buffer = PacketBuffer.wrap(packet);
+		buffer.setCaptureTime(clockOffset + System.nanoTime());
+		buffer.setDirection(PacketBuffer.DIRECTION_INBOUND);
+		data.offer(buffer);
+	}
+
+	/**
+	 * queue a packet read from the VPN interface for subscribers without copying it. The packet
+	 * is retained until whoever takes it out by {@link #getData()} releases it.
+	 * @param packet whole packet
+	 */
+	public void addData(@NonNull PacketBuffer packet) {
+		addData(packet, PacketBuffer.DIRECTION_OUTBOUND);
+	}
+
+	/**
+	 * queue packet data for subscribers without copying it, see {@link #addData(PacketBuffer)}
+	 * @param packet whole packet
+	 * @param direction PacketBuffer.DIRECTION_INBOUND for packets generated by the proxy
+	 */
+	public void addData(@NonNull PacketBuffer packet, int direction) {
+		packet.setCaptureTime(clockOffset + System.nanoTime());
+		packet.setDirection(direction);
+		data.offer(packet.retain());
+	}
+
+	@Nullable
+	public PacketBuffer getData() {
+		return data.poll();
+	}
+
+	/**
+	 * take up to maxCount packets at once; the caller must release each of them.
+	 * @return number of packets added to out
+	 */
+	public int getData(@NonNull List<PacketBuffer> out, int maxCount) {
+		return data.drainTo(out, maxCount);
+	}
+
+	/**
+	 * block the consumer until data is added or the timeout elapses
+	 * @param timeoutNanos maximum time to wait
+	 */
+	public void awaitData(long timeoutNanos) {
+		data.await(timeoutNanos);
+	}
+
+	public void setOverflowPolicy(@NonNull PacketRing.OverflowPolicy policy) {
+		data.setOverflowPolicy(policy);
 	}
 
-	public synchronized void addData(byte[] packet) {
-		data.add(packet);
+	/**
+	 * @return number of packets not captured because the queue was full
+	 */
+	public long getDroppedCount() {
+		return data.getDroppedCount();
 	}
 
-	public synchronized byte[] getData() {
-			return data.poll();
+	public int size() {
+		return data.size();
 	}
 }//end class
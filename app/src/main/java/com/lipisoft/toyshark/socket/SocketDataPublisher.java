@@ -17,9 +17,12 @@ package com.lipisoft.toyshark.socket;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import android.util.Log;
 
+import com.lipisoft.toyshark.util.PacketBuffer;
+
 /**
  * Publish packet data to subscriber who implements interface IReceivePacket
  * @author Borey Sao
@@ -27,6 +30,10 @@ import android.util.Log;
  */
 public class SocketDataPublisher implements Runnable {
 	private static final String TAG = "SocketDataPublisher";
+	//maximum packets handed to subscribers per wake up
+	public static final int MAX_BATCH_SIZE = 64;
+	//wake up at least this often to check for shutdown
+	private static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
 	private List<IReceivePacket> subscribers;
 	private SocketData data;
 	private volatile boolean isShuttingDown = false;
@@ -50,18 +57,20 @@ public class SocketDataPublisher implements Runnable {
 	public void run() {
 		Log.d(TAG,"BackgroundWriter starting...");
 		
+		final List<PacketBuffer> batch = new ArrayList<>(MAX_BATCH_SIZE);
 		while(!isShuttingDown()) {
-			byte[] packetData = data.getData();
-			if(packetData != null) {
+			if(data.getData(batch, MAX_BATCH_SIZE) > 0) {
 				for(IReceivePacket subscriber: subscribers){
-					subscriber.receive(packetData);
+					subscriber.receive(batch);
 				}
-			} else {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+				for(int i = 0; i < batch.size(); i++){
+					batch.get(i).release();
 				}
+				batch.clear();
+			} else {
+				data.awaitData(MAX_WAIT_NANOS);
+				//interrupt is only used to wake up for shutdown
+				Thread.interrupted();
 			}
 		}
 		Log.d(TAG,"BackgroundWriter ended");
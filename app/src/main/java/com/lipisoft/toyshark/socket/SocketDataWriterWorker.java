@@ -3,41 +3,37 @@ package com.lipisoft.toyshark.socket;
 import androidx.annotation.NonNull;
 import android.util.Log;
 
+import com.lipisoft.toyshark.FlowKey;
 import com.lipisoft.toyshark.IClientPacketWriter;
 import com.lipisoft.toyshark.Session;
 import com.lipisoft.toyshark.SessionManager;
 import com.lipisoft.toyshark.transport.tcp.TCPPacketFactory;
+import com.lipisoft.toyshark.util.ChunkedByteQueue;
 import com.lipisoft.toyshark.util.PacketUtil;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
 import java.util.Date;
 
-public class SocketDataWriterWorker implements Runnable {
+public class SocketDataWriterWorker {
 	private static final String TAG = "SocketDataWriterWorker";
 
-	private static IClientPacketWriter writer;
-	@NonNull private String sessionKey;
+	private final IClientPacketWriter writer;
 
-	SocketDataWriterWorker(IClientPacketWriter writer, @NonNull String sessionKey) {
+	SocketDataWriterWorker(IClientPacketWriter writer) {
 		this.writer = writer;
-		this.sessionKey = sessionKey;
 	}
 
-	@Override
-	public void run() {
-		final Session session = SessionManager.INSTANCE.getSessionByKey(sessionKey);
-		if(session == null) {
-			Log.d(TAG, "No session related to " + sessionKey + "for write");
-			return;
-		}
-
-		session.setBusywrite(true);
-
+	/**
+	 * write data buffered from vpn client to the remote server, on the session's thread
+	 * @param session TCP or UDP session
+	 */
+	void write(@NonNull Session session) {
 		AbstractSelectableChannel channel = session.getChannel();
 		if(channel instanceof SocketChannel){
 			writeTCP(session);
@@ -46,10 +42,18 @@ public class SocketDataWriterWorker implements Runnable {
 		} else {
 			return;
 		}
-		session.setBusywrite(false);
+
+		if(channel instanceof SocketChannel && !session.getSendingQueue().isEmpty()
+				&& !session.isAbortingConnection()) {
+			//socket buffer is full, write the rest once it is writable again
+			session.setInterest(SelectionKey.OP_WRITE, true);
+		} else {
+			//more data may have arrived while writing
+			SessionManager.INSTANCE.requestUplinkWrite(session);
+		}
 
 		if(session.isAbortingConnection()){
-			Log.d(TAG,"removing aborted connection -> " + sessionKey);
+			Log.d(TAG,"removing aborted connection -> " + FlowKey.toString(session.getAddressKey(), session.getPortKey()));
 			session.getSelectionKey().cancel();
 
 			if(channel instanceof SocketChannel) {
@@ -111,14 +115,15 @@ public class SocketDataWriterWorker implements Runnable {
 		String name = PacketUtil.intToIPAddress(session.getDestIp())+":"+session.getDestPort()+
 				"-"+PacketUtil.intToIPAddress(session.getSourceIp())+":"+session.getSourcePort();
 		
-		byte[] data = session.getSendingData();
-		ByteBuffer buffer = ByteBuffer.allocate(data.length);
-		buffer.put(data);
-		buffer.flip();
-		
 		try {
 			Log.d(TAG,"writing TCP data to: " + name);
-			channel.write(buffer);
+			//what the socket does not take stays queued and is written as soon as it is writable
+			final ChunkedByteQueue queue = session.getSendingQueue();
+			queue.writeTo(channel);
+			if(queue.isEmpty() && SessionManager.INSTANCE.isStreamingUplink()) {
+				session.onDataFlushed();
+			}
+			TCPSender.getInstance().updateWindow(session);
 			//Log.d(TAG,"finished writing data to: "+name);
 		} catch (NotYetConnectedException ex) {
 			Log.e(TAG,"failed to write to unconnected socket: " + ex.getMessage());
@@ -1,8 +1,10 @@
 package com.lipisoft.toyshark.socket;
 
+import androidx.annotation.NonNull;
 import android.util.Log;
 
 import com.lipisoft.toyshark.IClientPacketWriter;
+import com.lipisoft.toyshark.SelectorLoop;
 import com.lipisoft.toyshark.Session;
 import com.lipisoft.toyshark.SessionManager;
 import com.lipisoft.toyshark.util.PacketUtil;
@@ -14,39 +16,45 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.nio.channels.UnsupportedAddressTypeException;
 import java.util.Iterator;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 
 public class SocketNIODataService implements Runnable {
 	private static final String TAG = "SocketNIODataService";
-	public static final Object syncSelector = new Object();
-	public static final Object syncSelector2 = new Object();
 
 	private static IClientPacketWriter writer;
 	private volatile boolean shutdown = false;
-	private Selector selector;
-	//create thread pool for reading/writing data to socket
-	private ThreadPoolExecutor workerPool;
+	//threads reading/writing sockets, each session always on the same one
+	private final SessionExecutor executor;
 	
 	public SocketNIODataService(IClientPacketWriter iClientPacketWriter) {
-		final BlockingQueue<Runnable> taskQueue = new LinkedBlockingQueue<>();
-		workerPool = new ThreadPoolExecutor(8, 100, 10, TimeUnit.SECONDS, taskQueue);
 		writer = iClientPacketWriter;
+		executor = new SessionExecutor(Runtime.getRuntime().availableProcessors(),
+				new SocketDataReaderWorker(writer), new SocketDataWriterWorker(writer));
 	}
 
+	/**
+	 * run the first selector on the calling thread and each other one on a thread of its own
+	 */
 	@Override
 	public void run() {
 		Log.d(TAG,"SocketNIODataService starting in background...");
-		selector = SessionManager.INSTANCE.getSelector();
-		runTask();
+		final SelectorLoop[] loops = SessionManager.INSTANCE.getSelectorLoops();
+		for (int i = 1; i < loops.length; i++) {
+			final SelectorLoop loop = loops[i];
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runTask(loop);
+				}
+			}, "SelectorLoop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		runTask(loops[0]);
 	}
 	/**
 	 * notify long running task to shutdown
@@ -54,17 +62,20 @@ public class SocketNIODataService implements Runnable {
 	 */
 	public void setShutdown(boolean shutdown){
 		this.shutdown = shutdown;
-		SessionManager.INSTANCE.getSelector().wakeup();
+		for (SelectorLoop loop : SessionManager.INSTANCE.getSelectorLoops()) {
+			loop.wakeup();
+		}
+		if (shutdown) {
+			executor.shutdown();
+		}
 	}
 
-	private void runTask(){
+	private void runTask(@NonNull SelectorLoop loop){
 		Log.d(TAG, "Selector is running...");
-		
+		loop.attach();
 		while(!shutdown){
 			try {
-				synchronized(syncSelector){
-					selector.select();
-				}
+				loop.select();
 			} catch (IOException e) {
 				Log.e(TAG,"Error in Selector.select(): " + e.getMessage());
 				try {
@@ -74,31 +85,32 @@ public class SocketNIODataService implements Runnable {
 				}
 				continue;
 			}
+			//channels of sessions created since the last select
+			loop.registerPending();
 
 			if(shutdown){
 				break;
 			}
-			synchronized(syncSelector2){
-				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-				while(iterator.hasNext()){
-					SelectionKey key = iterator.next();
-					SelectableChannel selectableChannel = key.channel();
-					if(selectableChannel instanceof SocketChannel) {
-						try {
-							processTCPSelectionKey(key);
-						} catch (IOException e) {
-							key.cancel();
-						}
-					} else if (selectableChannel instanceof DatagramChannel) {
-						processUDPSelectionKey(key);
-					}
-					iterator.remove();
-					if(shutdown){
-						break;
+			Iterator<SelectionKey> iterator = loop.selectedKeys().iterator();
+			while(iterator.hasNext()){
+				SelectionKey key = iterator.next();
+				SelectableChannel selectableChannel = key.channel();
+				if(selectableChannel instanceof SocketChannel) {
+					try {
+						processTCPSelectionKey(key);
+					} catch (IOException e) {
+						key.cancel();
 					}
+				} else if (selectableChannel instanceof DatagramChannel) {
+					processUDPSelectionKey(key);
+				}
+				iterator.remove();
+				if(shutdown){
+					break;
 				}
 			}
 		}
+		loop.detach();
 	}
 
 	private void processUDPSelectionKey(SelectionKey key){
@@ -107,7 +119,8 @@ public class SocketNIODataService implements Runnable {
 			return;
 		}
 		DatagramChannel channel = (DatagramChannel) key.channel();
-		Session session = SessionManager.INSTANCE.getSessionByChannel(channel);
+		//session is attached when the channel is registered, no table lookup needed
+		Session session = (Session) key.attachment();
 		if(session == null){
 			return;
 		}
@@ -137,7 +150,7 @@ public class SocketNIODataService implements Runnable {
 			return;
 		}
 		SocketChannel channel = (SocketChannel)key.channel();
-		Session session = SessionManager.INSTANCE.getSessionByChannel(channel);
+		Session session = (Session) key.attachment();
 		if(session == null){
 			return;
 		}
@@ -155,9 +168,13 @@ public class SocketNIODataService implements Runnable {
 						UnsupportedAddressTypeException | SecurityException e) {
 					Log.e(TAG, e.toString());
 					session.setAbortingConnection(true);
+					SessionManager.INSTANCE.onConnectFailed(session);
+					return;
 				} catch (IOException e) {
 					Log.e(TAG, e.toString());
 					session.setAbortingConnection(true);
+					SessionManager.INSTANCE.onConnectFailed(session);
+					return;
 				}
 			}
 			
@@ -166,11 +183,24 @@ public class SocketNIODataService implements Runnable {
 				Log.d(TAG,"connected immediately to remote tcp server: "+ips+":"+port);
 			} else {
 				if(channel.isConnectionPending()){
-					connected = channel.finishConnect();
+					try {
+						connected = channel.finishConnect();
+					} catch (IOException e) {
+						//refused or unreachable, tell client now rather than on its next segment
+						Log.e(TAG,"failed to connect to remote tcp server: " + ips + ":" + port + ", " + e.getMessage());
+						SessionManager.INSTANCE.onConnectFailed(session);
+						return;
+					}
 					session.setConnected(connected);
 					Log.d(TAG,"connected to remote tcp server: "+ips+":"+port);
 				}
 			}
+			if (connected) {
+				//data from client may have been buffered while connecting
+				session.setInterest(SelectionKey.OP_CONNECT, false);
+				SessionManager.INSTANCE.onConnected(session);
+				SessionManager.INSTANCE.requestUplinkWrite(session);
+			}
 		}
 		if(channel.isConnected()){
 			processSelector(key, session);
@@ -178,26 +208,25 @@ public class SocketNIODataService implements Runnable {
 	}
 
 	private void processSelector(SelectionKey selectionKey, Session session){
-		String sessionKey = SessionManager.INSTANCE.createKey(session.getDestIp(),
-				session.getDestPort(), session.getSourceIp(),
-				session.getSourcePort());
-		//tcp has PSH flag when data is ready for sending, UDP does not have this
-		if(selectionKey.isValid() && selectionKey.isWritable()
-				&& !session.isBusywrite() && session.hasDataToSend()
-				&& session.isDataForSendingReady())
-		{
-			session.setBusywrite(true);
-			final SocketDataWriterWorker worker =
-					new SocketDataWriterWorker(writer, sessionKey);
-			workerPool.execute(worker);
+		int operations = 0;
+		//tcp data is written on PSH or once enough is buffered, UDP data is always ready
+		if(selectionKey.isValid() && selectionKey.isWritable()) {
+			//the writer selects OP_WRITE again if the socket does not take everything
+			session.setInterest(SelectionKey.OP_WRITE, false);
+			if(session.hasDataToSend()
+					&& SessionManager.INSTANCE.isUplinkReady(session, System.nanoTime() / 1000000)) {
+				operations |= SelectionKey.OP_WRITE;
+			} else {
+				SessionManager.INSTANCE.requestUplinkWrite(session);
+			}
+		}
+		if(selectionKey.isValid() && selectionKey.isReadable()) {
+			//the reader selects OP_READ again once it has read what is there
+			session.setInterest(SelectionKey.OP_READ, false);
+			operations |= SelectionKey.OP_READ;
 		}
-		if(selectionKey.isValid() && selectionKey.isReadable()
-				&& !session.isBusyRead())
-		{
-			session.setBusyread(true);
-			final SocketDataReaderWorker worker =
-					new SocketDataReaderWorker(writer, sessionKey);
-			workerPool.execute(worker);
+		if(operations != 0) {
+			executor.execute(session, operations);
 		}
 	}
 }
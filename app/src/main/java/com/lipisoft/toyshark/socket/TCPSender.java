@@ -0,0 +1,296 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark.socket;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+
+import com.lipisoft.toyshark.FlowKey;
+import com.lipisoft.toyshark.IClientPacketWriter;
+import com.lipisoft.toyshark.Session;
+import com.lipisoft.toyshark.SessionManager;
+import com.lipisoft.toyshark.packetRebuild.PCapFileWriter;
+import com.lipisoft.toyshark.transport.tcp.TCPResponseTemplate;
+import com.lipisoft.toyshark.transport.tcp.TCPSendWindow;
+import com.lipisoft.toyshark.util.ChunkedByteQueue;
+import com.lipisoft.toyshark.util.PacketBuffer;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends data received from remote servers to VPN clients over TCP. Segments are cut from the
+ * session's receiving buffer only as far as the client's window allows and are kept in the
+ * session's {@link TCPSendWindow} until acknowledged. When the receiving buffer is full the remote
+ * socket is no longer read, and reading resumes when acknowledgements make room again, so a fast
+ * server is slowed down to what the client takes instead of being buffered without limit.
+ * <p>
+ * A single timer thread retransmits segments whose timeout expired, and probes a closed client
+ * window when nothing is in flight to bring back the ACK that opens it.
+ */
+public final class TCPSender {
+	private static final String TAG = "TCPSender";
+	private static final TCPSender instance = new TCPSender();
+
+	private volatile IClientPacketWriter writer;
+	@NonNull private final SocketData packetData = SocketData.getInstance();
+	@NonNull private final ScheduledThreadPoolExecutor timer;
+
+	public static TCPSender getInstance() {
+		return instance;
+	}
+
+	private TCPSender() {
+		timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(@NonNull Runnable runnable) {
+				final Thread thread = new Thread(runnable, "TCPRetransmitTimer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void setWriter(IClientPacketWriter writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * send buffered data to client as far as its window allows, then FIN once the remote server
+	 * has closed and all data was sent. Reading from the remote server is paused while the
+	 * receiving buffer is full, and resumed when it is not.
+	 * @param session TCP session
+	 * @return number of bytes sent
+	 */
+	public int push(@NonNull Session session) {
+		final TCPResponseTemplate template = session.getResponseTemplate();
+		if (template == null || session.isAbortingConnection()) {
+			//handshake is not finished yet, data stays buffered
+			return 0;
+		}
+		final int max = maxPayload(session);
+		final TCPSendWindow window = session.getSendWindow();
+		final ChunkedByteQueue queue = session.getReceivingQueue();
+		int sent = 0;
+		//segments are built from the head of the buffer, which must not be recycled meanwhile
+		synchronized (queue) {
+			while (true) {
+				final int length = Math.min(Math.min(queue.headLength(), max), window.getUsableWindow());
+				if (length == 0) {
+					break;
+				}
+				//flush to client's application once the buffer is drained
+				final int flags = queue.size() == length
+						? TCPResponseTemplate.ACK | TCPResponseTemplate.PSH : TCPResponseTemplate.ACK;
+				send(template, flags, session, queue.headArray(), queue.headOffset(), length, false);
+				queue.skip(length);
+				sent += length;
+			}
+			if (queue.isEmpty() && session.hasReceivedLastSegment() && !window.isFinSent()) {
+				Log.d(TAG,"send FIN to: " + FlowKey.toString(session.getAddressKey(), session.getPortKey()));
+				send(template, TCPResponseTemplate.FIN | TCPResponseTemplate.ACK, session, null, 0, 0, true);
+			} else if (!queue.isEmpty() && window.startPersist(now())) {
+				//closed window, a lost window update would stall the connection for good
+				schedule(session, window.getRto());
+			}
+		}
+		if (!session.hasReceivedLastSegment()) {
+			session.setInterest(SelectionKey.OP_READ, queue.available() > 0);
+		}
+		return sent;
+	}
+
+	/**
+	 * process the acknowledgement number, SACK blocks and window of a segment from client: release
+	 * what it acknowledged, retransmit what it reports lost, and send more data if the window opened.
+	 * @param session TCP session
+	 * @param ack acknowledgement number
+	 * @param windowSize window field, before scaling
+	 * @param sackBlocks SACK option of the segment, or null
+	 * @param pureAck true if the segment has no data, SYN or FIN
+	 * @return one of the TCPSendWindow.ACK_* results
+	 */
+	public int acknowledge(@NonNull Session session, long ack, int windowSize, @Nullable long[] sackBlocks,
+						   boolean pureAck) {
+		final TCPSendWindow window = session.getSendWindow();
+		final int result = window.acknowledge(ack, windowSize, sackBlocks, pureAck, now());
+		if (result == TCPSendWindow.ACK_FAST_RETRANSMIT) {
+			PacketBuffer lost;
+			while ((lost = window.nextLost()) != null) {
+				Log.d(TAG,"fast retransmit to " + FlowKey.toString(session.getAddressKey(), session.getPortKey()));
+				retransmit(lost);
+			}
+		}
+		push(session);
+		return result;
+	}
+
+	private void send(@NonNull TCPResponseTemplate template, int flags, @NonNull Session session,
+					  byte[] payload, int offset, int length, boolean fin) {
+		final TCPSendWindow window = session.getSendWindow();
+		final PacketBuffer packet = template.createPacket(SessionManager.INSTANCE.getResponsePool(),
+				flags, window.getSendNext(), session.getRecSequence(),
+				session.getTimestampSender(), session.getTimestampReplyto(), payload, offset, length);
+		//record the segment before the client can acknowledge it; the window owns the packet now
+		if (window.add(packet, length, fin, now())) {
+			schedule(session, window.getRto());
+		}
+		try {
+			writer.write(packet);
+			packetData.addData(packet, PacketBuffer.DIRECTION_INBOUND);
+		} catch (IOException e) {
+			Log.e(TAG,"Failed to send packet to client: " + e.getMessage());
+		}
+	}
+
+	private void retransmit(@Nullable PacketBuffer packet) {
+		if (packet == null) {
+			return;
+		}
+		try {
+			writer.write(packet);
+			//the original may still be queued for capture, so capture a copy with its own time
+			packetData.addData(packet.toByteArray());
+		} catch (IOException e) {
+			Log.e(TAG,"Failed to retransmit packet to client: " + e.getMessage());
+		} finally {
+			packet.release();
+		}
+	}
+
+	/**
+	 * advertise the room left in the session's sending buffer. Once it grew by half of what can
+	 * be advertised, tell the client with an ACK, which would otherwise keep waiting for its
+	 * retransmission timeout after it was told there was no room. Called after data was taken
+	 * out of the sending buffer.
+	 * @param session TCP session
+	 */
+	public void updateWindow(@NonNull Session session) {
+		final TCPResponseTemplate template = session.getResponseTemplate();
+		if (template == null || session.isAbortingConnection()) {
+			return;
+		}
+		final ChunkedByteQueue queue = session.getSendingQueue();
+		final int old = template.getWindow();
+		template.setWindow(queue.available());
+		if (template.getWindow() - old < Math.min(queue.getCapacity(), 0xFFFF) / 2) {
+			return;
+		}
+		final PacketBuffer packet = template.createPacket(SessionManager.INSTANCE.getResponsePool(),
+				TCPResponseTemplate.ACK, session.getSendNext(), session.getRecSequence(),
+				session.getTimestampSender(), session.getTimestampReplyto(), null, 0, 0);
+		try {
+			writer.write(packet);
+			packetData.addData(packet, PacketBuffer.DIRECTION_INBOUND);
+		} catch (IOException e) {
+			Log.e(TAG,"Failed to send window update to client: " + e.getMessage());
+		} finally {
+			packet.release();
+		}
+	}
+
+	/**
+	 * send an ACK with a sequence number the client has seen already, which it must answer with
+	 * an ACK carrying its current window. Unlike one byte of data, it does not take sequence space.
+	 * @param session TCP session
+	 */
+	private void sendWindowProbe(@NonNull Session session) {
+		final TCPResponseTemplate template = session.getResponseTemplate();
+		if (template == null || session.isAbortingConnection()) {
+			return;
+		}
+		final PacketBuffer packet = template.createPacket(SessionManager.INSTANCE.getResponsePool(),
+				TCPResponseTemplate.ACK, (session.getSendWindow().getSendUnack() - 1) & 0xFFFFFFFFL,
+				session.getRecSequence(), session.getTimestampSender(), session.getTimestampReplyto(),
+				null, 0, 0);
+		try {
+			writer.write(packet);
+			packetData.addData(packet, PacketBuffer.DIRECTION_INBOUND);
+		} catch (IOException e) {
+			Log.e(TAG,"Failed to send window probe to client: " + e.getMessage());
+		} finally {
+			packet.release();
+		}
+	}
+
+	private void schedule(@NonNull Session session, long delay) {
+		schedule(session, delay, session.getSendWindow().getTimerGeneration());
+	}
+
+	private void schedule(@NonNull final Session session, long delay, final int generation) {
+		try {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					onTimer(session, generation);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			Log.e(TAG, "Failed to schedule retransmission: " + e.getMessage());
+		}
+	}
+
+	private void onTimer(@NonNull Session session, int generation) {
+		final TCPSendWindow window = session.getSendWindow();
+		final long now = now();
+		final PacketBuffer packet = window.expire(now);
+		if (packet != null) {
+			if (window.getRetransmissions() > TCPSendWindow.MAX_RETRANSMISSIONS) {
+				packet.release();
+				Log.d(TAG,"client does not acknowledge, aborting " + FlowKey.toString(session.getAddressKey(), session.getPortKey()));
+				session.setAbortingConnection(true);
+				final SelectionKey key = session.getSelectionKey();
+				if (key != null) {
+					key.cancel();
+				}
+				SessionManager.INSTANCE.closeSession(session);
+				return;
+			}
+			retransmit(packet);
+		}
+		if (window.probe(now)) {
+			sendWindowProbe(session);
+		}
+		final long delay = window.nextTimeout(now, generation);
+		if (delay >= 0) {
+			schedule(session, delay, generation);
+		}
+	}
+
+	/**
+	 * largest payload of a segment to client
+	 */
+	private static int maxPayload(@NonNull Session session) {
+		// TODO What does 60 mean?
+		int max = session.getMaxSegmentSize() - 60;
+		if (max < 1) {
+			max = 1024;
+		} else if (max > PCapFileWriter.MAX_PACKET_SIZE - 60) {
+			max = PCapFileWriter.MAX_PACKET_SIZE - 60;
+		}
+		return max;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
@@ -50,6 +50,9 @@ public class TCPHeader implements ITransportHeader{
 	private boolean isSelectiveAckPermitted = false;
 	private int timeStampSender = 0;
 	private int timeStampReplyTo = 0;
+	private boolean hasTimeStamp = false;
+	//SACK blocks as left edge, right edge pairs, null if the segment has no SACK option
+	@Nullable private long[] sackBlocks = null;
 
 	TCPHeader(int sourcePort, int destinationPort, long sequenceNumber, long ackNumber,
 			  int dataOffset, boolean isns, int tcpFlags,
@@ -250,7 +253,7 @@ public class TCPHeader implements ITransportHeader{
 	void setWindowScale(int windowScale) {
 		this.windowScale = windowScale;
 	}
-	boolean isSelectiveAckPermitted() {
+	public boolean isSelectiveAckPermitted() {
 		return isSelectiveAckPermitted;
 	}
 	void setSelectiveAckPermitted(boolean isSelectiveAckPermitted) {
@@ -268,5 +271,23 @@ public class TCPHeader implements ITransportHeader{
 	void setTimeStampReplyTo(int timeStampReplyTo) {
 		this.timeStampReplyTo = timeStampReplyTo;
 	}
+	/**
+	 * @return true if the header was parsed with a timestamp option
+	 */
+	boolean hasTimeStamp() {
+		return hasTimeStamp;
+	}
+	void setHasTimeStamp(boolean hasTimeStamp) {
+		this.hasTimeStamp = hasTimeStamp;
+	}
+	/**
+	 * @return SACK blocks as left edge, right edge pairs, or null without SACK option
+	 */
+	@Nullable public long[] getSackBlocks() {
+		return sackBlocks;
+	}
+	void setSackBlocks(@Nullable long[] sackBlocks) {
+		this.sackBlocks = sackBlocks;
+	}
 	
 }
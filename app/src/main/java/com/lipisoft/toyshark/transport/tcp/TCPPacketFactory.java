@@ -24,6 +24,7 @@ import com.lipisoft.toyshark.Packet;
 import com.lipisoft.toyshark.PacketManager;
 import com.lipisoft.toyshark.network.ip.IPPacketFactory;
 import com.lipisoft.toyshark.network.ip.IPv4Header;
+import com.lipisoft.toyshark.util.Checksum;
 import com.lipisoft.toyshark.util.PacketUtil;
 
 import java.nio.ByteBuffer;
@@ -169,11 +170,14 @@ public class TCPPacketFactory {
 		
 		long ackNumber = 0;
 		long seqNumber = 0;
+		//a segment without ACK, e.g. a SYN, is answered with RST-ACK acknowledging it (RFC 793)
+		boolean ack = false;
 		
 		if(tcp.getAckNumber() > 0){
 			seqNumber = tcp.getAckNumber();
 		}else{
 			ackNumber = tcp.getSequenceNumber() + datalength;
+			ack = true;
 		}
 		tcp.setAckNumber(ackNumber);
 		tcp.setSequenceNumber(seqNumber);
@@ -186,7 +190,7 @@ public class TCPPacketFactory {
 		ip.setIdentification(0);
 		
 		tcp.setIsRST(true);
-		tcp.setIsACK(false);
+		tcp.setIsACK(ack);
 		tcp.setIsSYN(false);
 		tcp.setIsPSH(false);
 		tcp.setIsCWR(false);
@@ -347,6 +351,35 @@ public class TCPPacketFactory {
 		Date currentdate = new Date();
 		int sendertimestamp = (int)currentdate.getTime();
 		tcpheader.setTimeStampSender(sendertimestamp);
+
+		//echo window scale, SACK permitted and timestamp options, so that they are in effect for the connection
+		final boolean windowScale = tcp.getWindowScale() > 0;
+		final boolean selectiveAck = tcp.isSelectiveAckPermitted();
+		final boolean timestamp = tcp.hasTimeStamp();
+		final byte[] options = new byte[(windowScale ? 4 : 0) + (selectiveAck ? 4 : 0) + (timestamp ? 12 : 0)];
+		int index = 0;
+		if (windowScale) {
+			//our own window is not scaled, shift count 0
+			options[index++] = NO_OPERATION;
+			options[index++] = WINDOW_SCALE;
+			options[index++] = 3;
+			options[index++] = 0;
+		}
+		if (selectiveAck) {
+			options[index++] = NO_OPERATION;
+			options[index++] = NO_OPERATION;
+			options[index++] = SELECTIVE_ACK_PERMITTED;
+			options[index++] = 2;
+		}
+		if (timestamp) {
+			options[index++] = NO_OPERATION;
+			options[index++] = NO_OPERATION;
+			options[index++] = TIME_STAMP;
+			options[index] = 10;
+		}
+		tcpheader.setOptions(options);
+		tcpheader.setDataOffset(5 + options.length / 4);
+		ipheader.setTotalLength(ipheader.getIPHeaderLength() + tcpheader.getTCPHeaderLength());
 		
 		return new Packet(ipheader, tcpheader, createPacketData(ipheader, tcpheader, null));
 	}
@@ -373,22 +406,10 @@ public class TCPPacketFactory {
 			int offset = ipBuffer.length + tcpBuffer.length;
 			System.arraycopy(data, 0, buffer, offset, dataLength);
 		}
-		//calculate checksum for both IP and TCP header
-		byte[] zero = {0, 0};
-		//zero out checksum first before calculation
-		System.arraycopy(zero, 0, buffer, 10, 2);
-		byte[] ipChecksum = PacketUtil.calculateChecksum(buffer, 0, ipBuffer.length);
-		//write result of checksum back to buffer
-		System.arraycopy(ipChecksum, 0, buffer, 10, 2);
-		
-		//zero out TCP header checksum first
-		int tcpStart = ipBuffer.length;
-		System.arraycopy(zero, 0, buffer, tcpStart + 16, 2);
-		byte[] tcpChecksum = PacketUtil.calculateTCPHeaderChecksum(buffer, tcpStart, tcpBuffer.length + dataLength ,
-				ipHeader.getDestinationIP(), ipHeader.getSourceIP());
-		
-		//write new checksum back to array
-		System.arraycopy(tcpChecksum, 0, buffer,tcpStart + 16, 2);
+		//calculate checksum for both IP and TCP header, in place
+		Checksum.writeIPv4Checksum(buffer, 0, ipBuffer.length);
+		Checksum.writeTCPChecksum(buffer, ipBuffer.length, tcpBuffer.length + dataLength,
+				ipHeader.getSourceIP(), ipHeader.getDestinationIP());
 
 		PacketManager.INSTANCE.add(new Packet(ipHeader, tcpheader, buffer));
 		PacketManager.INSTANCE.getHandler().obtainMessage(PacketManager.PACKET).sendToTarget();
@@ -501,10 +522,11 @@ public class TCPPacketFactory {
 	private static final int MAX_SEGMENT_SIZE = 2;
 	private static final int WINDOW_SCALE = 3;
 	private static final int SELECTIVE_ACK_PERMITTED = 4;
-//	private static final int SELECTIVE_ACK = 5;
+	private static final int SELECTIVE_ACK = 5;
 	private static final int TIME_STAMP = 8;
 
-	private static void handleTcpOptions(@NonNull TCPHeader header, @NonNull ByteBuffer packet, int optionsSize) {
+	private static void handleTcpOptions(@NonNull TCPHeader header, @NonNull ByteBuffer packet, int optionsSize)
+			throws PacketHeaderException {
 		int index = 0;
 
 		while (index < optionsSize) {
@@ -530,9 +552,23 @@ public class TCPPacketFactory {
 				case SELECTIVE_ACK_PERMITTED:
 					header.setSelectiveAckPermitted(true);
 					break;
+				case SELECTIVE_ACK:
+					//length byte comes from the client, at least one block of two 4 byte edges
+					if (size < 10 || (size - 2) % 8 != 0 || index + size - 2 > optionsSize) {
+						throw new PacketHeaderException("invalid SACK option length: " + size);
+					}
+					final long[] blocks = new long[(size - 2) / 8 * 2];
+					for (int i = 0; i < blocks.length; i++) {
+						blocks[i] = packet.getInt() & 0xFFFFFFFFL;
+					}
+					skipRemainingOptions(packet, size - blocks.length * 4);
+					header.setSackBlocks(blocks);
+					index = index + size - 2;
+					break;
 				case TIME_STAMP:
 					header.setTimeStampSender(packet.getInt());
 					header.setTimeStampReplyTo(packet.getInt());
+					header.setHasTimeStamp(true);
 					index += 8;
 					break;
 				default:
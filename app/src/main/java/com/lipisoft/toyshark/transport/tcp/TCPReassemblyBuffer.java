@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark.transport.tcp;
+
+import androidx.annotation.NonNull;
+
+import com.lipisoft.toyshark.util.ChunkedByteQueue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Data from a VPN client that arrived ahead of the next expected sequence number.
+ * <p>
+ * Segments are kept sorted by sequence number and never overlap: bytes already held are not
+ * stored twice, so a retransmission only fills the gaps. Once the gap in front of them is filled,
+ * held bytes are released in order to the session's sending buffer. Meanwhile they are reported
+ * to the client as SACK blocks (RFC 2018), so it retransmits only what is missing. Memory is
+ * capped; what does not fit is dropped and will be retransmitted by the client.
+ */
+public final class TCPReassemblyBuffer {
+	private static final long SEQUENCE_MASK = 0xFFFFFFFFL;
+	//bytes held, across all buffers
+	private static final AtomicLong bytesInUse = new AtomicLong();
+
+	@NonNull private final ArrayList<Segment> segments = new ArrayList<>();
+	private int capacity;
+	private int size = 0;
+	//sequence number of the latest segment held, its block is reported first
+	private long lastSequence = 0;
+
+	/**
+	 * @param capacity maximum number of bytes held
+	 */
+	public TCPReassemblyBuffer(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return bytes held by all buffers
+	 */
+	public static long getBytesInUse() {
+		return bytesInUse.get();
+	}
+
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return number of bytes held
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return segments.isEmpty();
+	}
+
+	/**
+	 * hold a segment that is ahead of the next expected sequence number. Bytes before the expected
+	 * sequence number, beyond the window or already held are skipped. The position of data is not
+	 * changed.
+	 * @param sequence sequence number of the first byte of data
+	 * @param data segment payload, from position to limit
+	 * @param expected next sequence number expected from client
+	 * @param window window advertised to client, which must not send beyond expected plus window
+	 * @return number of bytes added
+	 */
+	public synchronized int add(long sequence, @NonNull ByteBuffer data, long expected, int window) {
+		final int start = (int) (sequence - expected);
+		if (start >= window) {
+			return 0;
+		}
+		final int end = (int) Math.min((long) start + data.remaining(), window);
+		int cursor = Math.max(start, 0);
+		int added = 0;
+		int index = 0;
+		while (cursor < end && size < capacity) {
+			final Segment next = index < segments.size() ? segments.get(index) : null;
+			final int nextStart = next == null ? end : (int) (next.sequence - expected);
+			if (next != null && nextStart + next.length <= cursor) {
+				index++;
+				continue;
+			}
+			if (nextStart > cursor) {
+				//gap in front of the next segment
+				final int length = Math.min(Math.min(end, nextStart) - cursor, capacity - size);
+				final byte[] bytes = new byte[length];
+				final ByteBuffer source = data.duplicate();
+				source.position(data.position() + cursor - start);
+				source.get(bytes);
+				segments.add(index, new Segment((expected + cursor) & SEQUENCE_MASK, bytes));
+				size += length;
+				bytesInUse.addAndGet(length);
+				added += length;
+				cursor += length;
+				index++;
+			} else {
+				cursor = nextStart + next.length;
+				index++;
+			}
+		}
+		if (added > 0) {
+			lastSequence = sequence & SEQUENCE_MASK;
+		}
+		return added;
+	}
+
+	/**
+	 * move held bytes that continue at the expected sequence number to a queue, in order
+	 * @param expected next sequence number expected from client
+	 * @param queue session's sending buffer
+	 * @return number of bytes moved, by which the expected sequence number advances
+	 */
+	public synchronized int drainTo(long expected, @NonNull ChunkedByteQueue queue) {
+		int moved = 0;
+		while (!segments.isEmpty()) {
+			final Segment first = segments.get(0);
+			final int start = (int) (first.sequence - (expected + moved));
+			if (start > 0) {
+				break;
+			}
+			//bytes before the expected sequence number arrived in order meanwhile
+			final int skip = Math.min(-start, first.length);
+			first.advance(skip);
+			final int written = queue.write(first.data, first.offset, first.length);
+			first.advance(written);
+			size -= skip + written;
+			bytesInUse.addAndGet(-(skip + written));
+			moved += written;
+			if (first.length > 0) {
+				//sending buffer is full
+				break;
+			}
+			segments.remove(0);
+		}
+		return moved;
+	}
+
+	/**
+	 * SACK blocks of the bytes held, the block with the latest segment first as RFC 2018 asks
+	 * @param out left edge, right edge pairs
+	 * @param maxBlocks maximum number of blocks
+	 * @return number of blocks written
+	 */
+	public synchronized int getSackBlocks(@NonNull long[] out, int maxBlocks) {
+		int count = 0;
+		//the block holding the latest segment, then the others in sequence order
+		for (int pass = 0; pass < 2; pass++) {
+			int i = 0;
+			while (i < segments.size() && count < maxBlocks) {
+				final long left = segments.get(i).sequence;
+				long right = segments.get(i).end();
+				boolean latest = false;
+				do {
+					final Segment segment = segments.get(i);
+					latest |= (int) (lastSequence - segment.sequence) >= 0 && (int) (lastSequence - segment.end()) < 0;
+					right = segment.end();
+					i++;
+				} while (i < segments.size() && segments.get(i).sequence == right);
+				if (latest == (pass == 0)) {
+					out[count * 2] = left;
+					out[count * 2 + 1] = right;
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	public synchronized void clear() {
+		segments.clear();
+		bytesInUse.addAndGet(-size);
+		size = 0;
+	}
+
+	private static final class Segment {
+		long sequence;
+		@NonNull final byte[] data;
+		int offset = 0;
+		int length;
+
+		Segment(long sequence, @NonNull byte[] data) {
+			this.sequence = sequence;
+			this.data = data;
+			this.length = data.length;
+		}
+
+		long end() {
+			return (sequence + length) & SEQUENCE_MASK;
+		}
+
+		void advance(int count) {
+			sequence = (sequence + count) & SEQUENCE_MASK;
+			offset += count;
+			length -= count;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark.transport.tcp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.lipisoft.toyshark.Packet;
+import com.lipisoft.toyshark.PacketManager;
+import com.lipisoft.toyshark.network.ip.IPPacketFactory;
+import com.lipisoft.toyshark.network.ip.IPv4Header;
+import com.lipisoft.toyshark.util.Checksum;
+import com.lipisoft.toyshark.util.PacketBuffer;
+import com.lipisoft.toyshark.util.PacketBufferPool;
+import com.lipisoft.toyshark.util.PacketUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * IPv4 and TCP header of the packets sent to one VPN client connection, kept in wire form.
+ * Addresses, ports and options layout never change during a connection, so they are
+ * serialised once, together with their part of the IP and TCP checksums. Building a segment
+ * copies the template, writes length, id, seq, ack, flags, window and timestamps, and completes
+ * both checksums from the precomputed sums; no header object is created.
+ */
+public final class TCPResponseTemplate {
+	public static final int FIN = 0x01;
+	public static final int SYN = 0x02;
+	public static final int RST = 0x04;
+	public static final int PSH = 0x08;
+	public static final int ACK = 0x10;
+
+	private static final int IP_HEADER_LENGTH = 20;
+	private static final int TCP_HEADER_LENGTH = 20;
+	//NOP, NOP, kind 8, length 10, TSval, TSecr
+	private static final int TIMESTAMP_OPTION_LENGTH = 12;
+	//NOP, NOP, kind 5, length, then 8 bytes per block
+	private static final int SACK_OPTION_HEADER_LENGTH = 4;
+	private static final int SACK_BLOCK_LENGTH = 8;
+	//IP header and the largest TCP header, whatever options a segment carries
+	public static final int MAX_HEADER_LENGTH = IP_HEADER_LENGTH + 60;
+
+	@NonNull private final byte[] header;
+	private final int headerLength;
+	private final boolean hasTimestamp;
+	private final boolean sackPermitted;
+	//window advertised from now on, never scaled
+	private volatile int window;
+	//checksum sums of the constant fields, including the pseudo header addresses and protocol
+	private final long ipSum;
+	private final long tcpSum;
+
+	private TCPResponseTemplate(@NonNull IPv4Header ipHeader, @NonNull TCPHeader tcpHeader,
+								boolean hasTimestamp, boolean sackPermitted) {
+		this.hasTimestamp = hasTimestamp;
+		this.sackPermitted = sackPermitted;
+		window = tcpHeader.getWindowSize() & 0xFFFF;
+		final int tcpHeaderLength = TCP_HEADER_LENGTH + (hasTimestamp ? TIMESTAMP_OPTION_LENGTH : 0);
+		headerLength = IP_HEADER_LENGTH + tcpHeaderLength;
+		header = new byte[headerLength];
+
+		header[0] = 0x45;
+		header[6] = ipHeader.getFlag();
+		header[8] = ipHeader.getTimeToLive();
+		header[9] = 6;
+		PacketUtil.writeIntToBytes(ipHeader.getSourceIP(), header, 12);
+		PacketUtil.writeIntToBytes(ipHeader.getDestinationIP(), header, 16);
+
+		final int tcpStart = IP_HEADER_LENGTH;
+		PacketUtil.writeShortToBytes((short) tcpHeader.getSourcePort(), header, tcpStart);
+		PacketUtil.writeShortToBytes((short) tcpHeader.getDestinationPort(), header, tcpStart + 2);
+		header[tcpStart + 12] = (byte) ((tcpHeaderLength / 4) << 4);
+		if (hasTimestamp) {
+			header[tcpStart + 20] = 1;
+			header[tcpStart + 21] = 1;
+			header[tcpStart + 22] = 8;
+			header[tcpStart + 23] = 10;
+		}
+
+		ipSum = Checksum.add(header, 0, IP_HEADER_LENGTH, 0);
+		tcpSum = Checksum.add(header, tcpStart, tcpHeaderLength,
+				Checksum.pseudoHeader(ipHeader.getSourceIP(), ipHeader.getDestinationIP(), 6, 0));
+	}
+
+	/**
+	 * create the template of a connection from the SYN sent by the client
+	 * @param clientIp IP header of the client's packet
+	 * @param clientTcp TCP header of the client's packet
+	 * @return template of packets going back to the client
+	 */
+	@NonNull
+	public static TCPResponseTemplate create(@NonNull IPv4Header clientIp, @NonNull TCPHeader clientTcp) {
+		final IPv4Header ip = IPPacketFactory.copyIPv4Header(clientIp);
+		ip.setSourceIP(clientIp.getDestinationIP());
+		ip.setDestinationIP(clientIp.getSourceIP());
+		final TCPHeader tcp = new TCPHeader(clientTcp.getDestinationPort(), clientTcp.getSourcePort(),
+				0, 0, 5, false, ACK, clientTcp.getWindowSize(), 0, 0);
+		return new TCPResponseTemplate(ip, tcp, clientTcp.hasTimeStamp(), clientTcp.isSelectiveAckPermitted());
+	}
+
+	/**
+	 * @return length of IP and TCP headers of every packet built from this template
+	 */
+	public int getHeaderLength() {
+		return headerLength;
+	}
+
+	public boolean hasTimestamp() {
+		return hasTimestamp;
+	}
+
+	/**
+	 * @return true if client offered SACK in its SYN, which the SYN-ACK accepts
+	 */
+	public boolean isSackPermitted() {
+		return sackPermitted;
+	}
+
+	/**
+	 * @return window advertised to client, client must not send beyond the ACK plus this
+	 */
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * @param window window advertised by the segments built from now on, at most 65535
+	 */
+	public void setWindow(int window) {
+		this.window = Math.max(0, Math.min(window, 0xFFFF));
+	}
+
+	/**
+	 * @return number of SACK blocks that fit in the option space next to the timestamp option
+	 */
+	public int getMaxSackBlocks() {
+		return sackPermitted ? (hasTimestamp ? 3 : 4) : 0;
+	}
+
+	/**
+	 * write a segment into a buffer, from index 0. Position is set to 0 and limit to the packet end.
+	 * @param out buffer large enough for header and payload
+	 * @param flags TCP flags, e.g. {@link #ACK} | {@link #PSH}
+	 * @param seq sequence number
+	 * @param ack acknowledgement number
+	 * @param timestampSender TSval, ignored without timestamp option
+	 * @param timestampReplyTo TSecr, ignored without timestamp option
+	 * @param payload data, or null for none
+	 * @param offset first byte of data
+	 * @param length number of bytes of data
+	 */
+	public void write(@NonNull ByteBuffer out, int flags, long seq, long ack,
+					  int timestampSender, int timestampReplyTo,
+					  @Nullable byte[] payload, int offset, int length) {
+		write(out, flags, seq, ack, timestampSender, timestampReplyTo, null, 0, payload, offset, length);
+	}
+
+	/**
+	 * write a segment with a SACK option, see {@link #write(ByteBuffer, int, long, long, int, int, byte[], int, int)}
+	 * @param sackBlocks left edge, right edge pairs, or null for no SACK option
+	 * @param sackBlockCount number of pairs, at most {@link #getMaxSackBlocks()} are written
+	 */
+	public void write(@NonNull ByteBuffer out, int flags, long seq, long ack,
+					  int timestampSender, int timestampReplyTo,
+					  @Nullable long[] sackBlocks, int sackBlockCount,
+					  @Nullable byte[] payload, int offset, int length) {
+		if (payload == null) {
+			length = 0;
+		}
+		final int blocks = sackBlocks == null ? 0 : Math.min(sackBlockCount, getMaxSackBlocks());
+		final int sackLength = blocks == 0 ? 0 : SACK_OPTION_HEADER_LENGTH + blocks * SACK_BLOCK_LENGTH;
+		final int totalLength = headerLength + sackLength + length;
+		final int tcpLength = totalLength - IP_HEADER_LENGTH;
+		final int id = PacketUtil.getPacketId() & 0xFFFF;
+
+		out.clear();
+		out.put(header);
+		if (sackLength > 0) {
+			out.put((byte) 1).put((byte) 1).put((byte) 5).put((byte) (sackLength - 2));
+			for (int i = 0; i < blocks * 2; i++) {
+				out.putInt((int) sackBlocks[i]);
+			}
+		}
+		if (length > 0) {
+			out.put(payload, offset, length);
+		}
+		out.flip();
+
+		out.putShort(2, (short) totalLength);
+		out.putShort(4, (short) id);
+		out.putShort(Checksum.IP_CHECKSUM_OFFSET, (short) Checksum.finish(ipSum + totalLength + id));
+
+		final int tcpStart = IP_HEADER_LENGTH;
+		out.putInt(tcpStart + 4, (int) seq);
+		out.putInt(tcpStart + 8, (int) ack);
+		out.put(tcpStart + 13, (byte) flags);
+		final int window = this.window;
+		out.putShort(tcpStart + 14, (short) window);
+		long sum = tcpSum + tcpLength + ((seq >>> 16) & 0xFFFF) + (seq & 0xFFFF)
+				+ ((ack >>> 16) & 0xFFFF) + (ack & 0xFFFF) + (flags & 0xFF) + window;
+		if (hasTimestamp) {
+			out.putInt(tcpStart + 24, timestampSender);
+			out.putInt(tcpStart + 28, timestampReplyTo);
+			sum += (timestampSender >>> 16) + (timestampSender & 0xFFFF)
+					+ (timestampReplyTo >>> 16) + (timestampReplyTo & 0xFFFF);
+		}
+		if (sackLength > 0) {
+			//longer data offset, then the option itself
+			out.put(tcpStart + 12, (byte) (((headerLength - IP_HEADER_LENGTH + sackLength) / 4) << 4));
+			sum += (sackLength / 4) << 12;
+			sum = Checksum.add(out, headerLength, sackLength, sum);
+		}
+		if (length > 0) {
+			sum = Checksum.add(payload, offset, length, sum);
+		}
+		out.putShort(tcpStart + Checksum.TCP_CHECKSUM_OFFSET, (short) Checksum.finish(sum));
+	}
+
+	/**
+	 * build a segment in a pooled buffer and add it to the packet list.
+	 * @param pool pool of buffers, a larger segment gets a buffer of its own
+	 * @return packet owned by the caller, who must release it
+	 */
+	@NonNull
+	public PacketBuffer createPacket(@NonNull PacketBufferPool pool, int flags, long seq, long ack,
+									 int timestampSender, int timestampReplyTo,
+									 @Nullable byte[] payload, int offset, int length) {
+		return createPacket(pool, flags, seq, ack, timestampSender, timestampReplyTo, null, 0, payload, offset, length);
+	}
+
+	/**
+	 * build a segment with a SACK option in a pooled buffer and add it to the packet list.
+	 * @param sackBlocks left edge, right edge pairs, or null for no SACK option
+	 * @param sackBlockCount number of pairs
+	 * @return packet owned by the caller, who must release it
+	 */
+	@NonNull
+	public PacketBuffer createPacket(@NonNull PacketBufferPool pool, int flags, long seq, long ack,
+									 int timestampSender, int timestampReplyTo,
+									 @Nullable long[] sackBlocks, int sackBlockCount,
+									 @Nullable byte[] payload, int offset, int length) {
+		final int blocks = sackBlocks == null ? 0 : Math.min(sackBlockCount, getMaxSackBlocks());
+		final int totalLength = headerLength + (blocks == 0 ? 0 : SACK_OPTION_HEADER_LENGTH + blocks * SACK_BLOCK_LENGTH)
+				+ (payload == null ? 0 : length);
+		final PacketBuffer packet = totalLength <= pool.getBufferSize() ? pool.acquire()
+				: PacketBuffer.wrap(new byte[totalLength]);
+		write(packet.getBuffer(), flags, seq, ack, timestampSender, timestampReplyTo,
+				sackBlocks, sackBlockCount, payload, offset, length);
+
+		//the packet list keeps its own copy, not the pooled buffer, and parses it when shown
+		if (PacketManager.INSTANCE.isListingSentSegments()) {
+			PacketManager.INSTANCE.publish(new Packet(packet.toByteArray()));
+		}
+		return packet;
+	}
+}
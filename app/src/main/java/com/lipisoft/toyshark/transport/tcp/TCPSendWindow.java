@@ -0,0 +1,498 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark.transport.tcp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.lipisoft.toyshark.util.PacketBuffer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Send side of a TCP connection towards the VPN client: segments sent and not yet acknowledged,
+ * and the receive window the client advertised.
+ * <p>
+ * Every segment keeps the packet it was sent in, so a retransmission writes the same buffer again.
+ * Sequence numbers are 32 bit and compared modulo 2^32. The retransmission timeout is estimated
+ * as in RFC 6298, measuring only segments that were not retransmitted (Karn's algorithm), and the
+ * first unacknowledged segment is retransmitted on the third duplicate ACK (RFC 5681). When the
+ * client sends SACK blocks (RFC 2018), segments it already holds are marked and loss recovery
+ * retransmits only the holes below the highest SACKed segment, each once per recovery. While the
+ * client's window is zero and nothing is in flight, no ACK is due to report the window opening, so
+ * a persist timer asks for the window with probes backed off like retransmissions (RFC 9293). This
+ * class does no I/O; whoever sends the packets also drives {@link #expire(long)} and
+ * {@link #probe(long)} from a timer.
+ * Times are in milli seconds from any monotonic clock.
+ */
+public final class TCPSendWindow {
+	public static final int INITIAL_RTO = 1000;
+	public static final int MIN_RTO = 200;
+	public static final int MAX_RTO = 60000;
+	public static final int DUPLICATE_ACK_THRESHOLD = 3;
+	//consecutive timeouts of the same data before the connection is given up
+	public static final int MAX_RETRANSMISSIONS = 8;
+
+	//result of acknowledge()
+	public static final int ACK_IGNORED = 0;
+	public static final int ACK_NEW = 1;
+	public static final int ACK_DUPLICATE = 2;
+	public static final int ACK_FAST_RETRANSMIT = 3;
+
+	private static final long SEQUENCE_MASK = 0xFFFFFFFFL;
+	//clock granularity G of RFC 6298
+	private static final int CLOCK_GRANULARITY = 10;
+	//memory of packets kept for retransmission, across all windows
+	private static final AtomicLong bytesInUse = new AtomicLong();
+
+	@NonNull private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private long sendUnack = 0;
+	private long sendNext = 0;
+	//window in bytes from sendUnack, i.e. advertised window shifted by the client's window scale
+	private int window = 0;
+	private int windowShift = 0;
+	private int duplicateAcks = 0;
+	private boolean finSent = false;
+	//memory of the packets kept
+	private int heldBytes = 0;
+
+	//SACK scoreboard
+	private int sackedCount = 0;
+	private long highestSacked = 0;
+	//loss recovery lasts until everything sent before it started is acknowledged
+	private boolean inRecovery = false;
+	private long recoveryPoint = 0;
+	private int recoveryEpoch = 0;
+
+	private int smoothedRtt = -1;
+	private int rttVariance = 0;
+	private int rto = INITIAL_RTO;
+	//time the first unacknowledged segment is retransmitted, 0 when nothing is in flight
+	private long deadline = 0;
+	//time the scheduled timer is due, 0 if none. A timer due earlier takes over and a newer
+	//generation tells the one it replaced to stop.
+	private long timerDue = 0;
+	private int timerGeneration = 0;
+	private int retransmissions = 0;
+	//time the next window probe is due, 0 while the persist timer is stopped
+	private long persistDeadline = 0;
+	private int persistTimeout = 0;
+
+	/**
+	 * start sending after the handshake
+	 * @param sendNext sequence number of the first byte to send, i.e. our initial sequence + 1
+	 * @param window window field of the client's SYN, which is never scaled
+	 * @param windowShift window scale the client sent in its SYN, 0 if it did not
+	 */
+	public synchronized void start(long sendNext, int window, int windowShift) {
+		this.sendNext = sendNext & SEQUENCE_MASK;
+		this.sendUnack = this.sendNext;
+		this.window = window & 0xFFFF;
+		this.windowShift = Math.min(windowShift, 14);
+	}
+
+	/**
+	 * @return memory of packets kept for retransmission by all windows
+	 */
+	public static long getBytesInUse() {
+		return bytesInUse.get();
+	}
+
+	/**
+	 * @return memory of packets kept for retransmission by this window
+	 */
+	public synchronized int getHeldBytes() {
+		return heldBytes;
+	}
+
+	public synchronized long getSendUnack() {
+		return sendUnack;
+	}
+
+	public synchronized long getSendNext() {
+		return sendNext;
+	}
+
+	/**
+	 * move the next sequence number, e.g. for a FIN that is not kept for retransmission
+	 * @param sendNext sequence number
+	 */
+	public synchronized void setSendNext(long sendNext) {
+		this.sendNext = sendNext & SEQUENCE_MASK;
+		if (segments.isEmpty()) {
+			sendUnack = this.sendNext;
+		}
+	}
+
+	public synchronized int getWindow() {
+		return window;
+	}
+
+	public synchronized int getBytesInFlight() {
+		return (int) ((sendNext - sendUnack) & SEQUENCE_MASK);
+	}
+
+	/**
+	 * @return bytes that may be sent now without overrunning the client's window
+	 */
+	public synchronized int getUsableWindow() {
+		return Math.max(0, window - getBytesInFlight());
+	}
+
+	public synchronized boolean isFull() {
+		return getBytesInFlight() >= window;
+	}
+
+	public synchronized boolean isEmpty() {
+		return segments.isEmpty();
+	}
+
+	public synchronized boolean isFinSent() {
+		return finSent;
+	}
+
+	/**
+	 * @return true once a FIN was sent and everything up to it was acknowledged
+	 */
+	public synchronized boolean isFinAcknowledged() {
+		return finSent && segments.isEmpty();
+	}
+
+	public synchronized int getRto() {
+		return rto;
+	}
+
+	public synchronized int getRetransmissions() {
+		return retransmissions;
+	}
+
+	/**
+	 * record a segment sent at {@link #getSendNext()}. The window takes over the caller's reference
+	 * to the packet and releases it when the segment is acknowledged.
+	 * @param packet whole packet as written to the client
+	 * @param length payload length
+	 * @param fin true if the segment carries FIN, which takes one sequence number
+	 * @param now current time
+	 * @return true if the caller must schedule a timer to call {@link #expire(long)}
+	 */
+	public synchronized boolean add(@NonNull PacketBuffer packet, int length, boolean fin, long now) {
+		final int sequenceLength = length + (fin ? 1 : 0);
+		segments.addLast(new Segment(sendNext, sequenceLength, packet, now));
+		//data went out, the retransmission timer covers it
+		persistDeadline = 0;
+		hold(packet.capacity());
+		sendNext = (sendNext + sequenceLength) & SEQUENCE_MASK;
+		if (fin) {
+			finSent = true;
+		}
+		if (deadline == 0) {
+			deadline = now + rto;
+		}
+		return armTimer(deadline);
+	}
+
+	/**
+	 * process an ACK from the client
+	 * @param ack acknowledgement number
+	 * @param windowSize window field, before scaling
+	 * @param sackBlocks SACK option as left edge, right edge pairs, or null
+	 * @param pureAck true if the segment has no data, SYN or FIN, so it may count as duplicate
+	 * @param now current time
+	 * @return {@link #ACK_NEW}, {@link #ACK_DUPLICATE}, {@link #ACK_FAST_RETRANSMIT} or {@link #ACK_IGNORED}.
+	 * After {@link #ACK_FAST_RETRANSMIT} the caller retransmits what {@link #nextLost()} returns.
+	 */
+	public synchronized int acknowledge(long ack, int windowSize, @Nullable long[] sackBlocks,
+										boolean pureAck, long now) {
+		ack &= SEQUENCE_MASK;
+		final int advanced = (int) (ack - sendUnack);
+		if (advanced < 0 || advanced > getBytesInFlight()) {
+			//old or not yet sent
+			return ACK_IGNORED;
+		}
+		if (sackBlocks != null) {
+			markSacked(sackBlocks);
+		}
+		final int newWindow = (windowSize & 0xFFFF) << windowShift;
+		if (newWindow > 0) {
+			persistDeadline = 0;
+		}
+		if (advanced == 0) {
+			final boolean duplicate = pureAck && !segments.isEmpty() && newWindow == window;
+			window = newWindow;
+			if (!duplicate) {
+				return ACK_IGNORED;
+			}
+			duplicateAcks++;
+			if (inRecovery) {
+				//new SACK blocks may show more holes
+				return ACK_FAST_RETRANSMIT;
+			}
+			if (duplicateAcks >= DUPLICATE_ACK_THRESHOLD || sackedCount >= DUPLICATE_ACK_THRESHOLD) {
+				enterRecovery();
+				return ACK_FAST_RETRANSMIT;
+			}
+			return ACK_DUPLICATE;
+		}
+
+		sendUnack = ack;
+		window = newWindow;
+		duplicateAcks = 0;
+		retransmissions = 0;
+		long sentAt = -1;
+		Segment segment;
+		while ((segment = segments.peekFirst()) != null
+				&& (int) (ack - segment.end()) >= 0) {
+			segments.pollFirst();
+			if (!segment.retransmitted) {
+				sentAt = segment.sentAt;
+			}
+			if (segment.sacked) {
+				sackedCount--;
+			}
+			hold(-segment.packet.capacity());
+			segment.packet.release();
+		}
+		if (sentAt >= 0) {
+			updateRto((int) (now - sentAt));
+		}
+		deadline = segments.isEmpty() ? 0 : now + rto;
+		if (inRecovery) {
+			if ((int) (ack - recoveryPoint) < 0) {
+				//partial acknowledgement, the next hole is lost too
+				return ACK_FAST_RETRANSMIT;
+			}
+			inRecovery = false;
+		}
+		return ACK_NEW;
+	}
+
+	/**
+	 * next segment to retransmit in loss recovery: the first unacknowledged segment, then every
+	 * segment not SACKed below the highest SACKed one. Each is returned once per recovery.
+	 * @return packet retained for the caller, or null if nothing more is lost
+	 */
+	@Nullable
+	public synchronized PacketBuffer nextLost() {
+		if (!inRecovery) {
+			return null;
+		}
+		boolean first = true;
+		for (Segment segment : segments) {
+			if (!segment.sacked && segment.recoveryEpoch != recoveryEpoch
+					&& (first || (sackedCount > 0 && (int) (highestSacked - segment.end()) >= 0))) {
+				segment.recoveryEpoch = recoveryEpoch;
+				segment.retransmitted = true;
+				return segment.packet.retain();
+			}
+			first = false;
+		}
+		return null;
+	}
+
+	/**
+	 * called by the timer. On timeout the first unacknowledged segment is due again and RTO is
+	 * doubled.
+	 * @param now current time
+	 * @return packet retained for the caller to retransmit, or null if the timer has not expired
+	 */
+	@Nullable
+	public synchronized PacketBuffer expire(long now) {
+		final Segment segment = segments.peekFirst();
+		if (segment == null || deadline == 0 || now < deadline) {
+			return null;
+		}
+		retransmissions++;
+		rto = Math.min(rto * 2, MAX_RTO);
+		deadline = now + rto;
+		duplicateAcks = 0;
+		//everything in flight may be lost, partial acknowledgements retransmit the rest
+		enterRecovery();
+		segment.recoveryEpoch = recoveryEpoch;
+		segment.retransmitted = true;
+		return segment.packet.retain();
+	}
+
+	/**
+	 * start the persist timer, called when data is waiting but the client's window is closed
+	 * @param now current time
+	 * @return true if the caller must schedule a timer to call {@link #probe(long)}
+	 */
+	public synchronized boolean startPersist(long now) {
+		if (persistDeadline != 0 || window > 0 || !segments.isEmpty()) {
+			return false;
+		}
+		persistTimeout = rto;
+		persistDeadline = now + persistTimeout;
+		return armTimer(persistDeadline);
+	}
+
+	/**
+	 * @return generation of the timer the caller schedules after {@link #add} or
+	 * {@link #startPersist(long)} returned true
+	 */
+	public synchronized int getTimerGeneration() {
+		return timerGeneration;
+	}
+
+	/**
+	 * called by the timer. On timeout of the persist timer a window probe is due and the time to
+	 * the next one is doubled. The connection is never given up while the client keeps its window
+	 * closed.
+	 * @param now current time
+	 * @return true if the caller must send a window probe
+	 */
+	public synchronized boolean probe(long now) {
+		if (persistDeadline == 0 || now < persistDeadline) {
+			return false;
+		}
+		if (window > 0 || !segments.isEmpty()) {
+			persistDeadline = 0;
+			return false;
+		}
+		persistTimeout = Math.min(persistTimeout * 2, MAX_RTO);
+		persistDeadline = now + persistTimeout;
+		return true;
+	}
+
+	/**
+	 * delay until the timer must call {@link #expire(long)} and {@link #probe(long)} again
+	 * @param now current time
+	 * @return milli seconds, or -1 if nothing is in flight, no probe is due and the timer stops
+	 */
+	public synchronized long nextTimeout(long now) {
+		return nextTimeout(now, timerGeneration);
+	}
+
+	/**
+	 * see {@link #nextTimeout(long)}
+	 * @param now current time
+	 * @param generation generation of the timer asking
+	 * @return milli seconds, or -1 if the timer stops, also when a newer timer has taken over
+	 */
+	public synchronized long nextTimeout(long now, int generation) {
+		if (generation != timerGeneration) {
+			return -1;
+		}
+		long next = deadline;
+		if (persistDeadline != 0 && (next == 0 || persistDeadline < next)) {
+			next = persistDeadline;
+		}
+		if (next == 0) {
+			timerDue = 0;
+			return -1;
+		}
+		timerDue = Math.max(next, now);
+		return timerDue - now;
+	}
+
+	/**
+	 * drop all segments and stop the timer, called when the session is closed
+	 */
+	public synchronized void clear() {
+		Segment segment;
+		while ((segment = segments.pollFirst()) != null) {
+			hold(-segment.packet.capacity());
+			segment.packet.release();
+		}
+		sendUnack = sendNext;
+		deadline = 0;
+		persistDeadline = 0;
+		sackedCount = 0;
+		inRecovery = false;
+		//a timer still scheduled is now stale and stops when it fires
+		timerDue = 0;
+		timerGeneration++;
+	}
+
+	/**
+	 * @param due time a timer is needed
+	 * @return true if no timer is due by then, so the caller must schedule a new one
+	 */
+	private boolean armTimer(long due) {
+		if (timerDue != 0 && timerDue <= due) {
+			return false;
+		}
+		timerDue = due;
+		timerGeneration++;
+		return true;
+	}
+
+	private void hold(int bytes) {
+		heldBytes += bytes;
+		bytesInUse.addAndGet(bytes);
+	}
+
+	private void enterRecovery() {
+		inRecovery = true;
+		recoveryPoint = sendNext;
+		recoveryEpoch++;
+	}
+
+	/**
+	 * mark segments entirely covered by a SACK block
+	 */
+	private void markSacked(@NonNull long[] sackBlocks) {
+		for (int i = 0; i + 1 < sackBlocks.length; i += 2) {
+			final long left = sackBlocks[i];
+			final long right = sackBlocks[i + 1];
+			for (Segment segment : segments) {
+				if (!segment.sacked && (int) (segment.sequence - left) >= 0 && (int) (right - segment.end()) >= 0) {
+					segment.sacked = true;
+					if (sackedCount++ == 0 || (int) (segment.end() - highestSacked) > 0) {
+						highestSacked = segment.end();
+					}
+				}
+			}
+		}
+	}
+
+	private void updateRto(int rtt) {
+		if (smoothedRtt < 0) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+		} else {
+			rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+			smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+		}
+		rto = Math.max(MIN_RTO, Math.min(MAX_RTO, smoothedRtt + Math.max(CLOCK_GRANULARITY, 4 * rttVariance)));
+	}
+
+	private static final class Segment {
+		final long sequence;
+		//sequence space taken, payload plus one for FIN
+		final int length;
+		@NonNull final PacketBuffer packet;
+		final long sentAt;
+		boolean retransmitted = false;
+		//client holds it, reported by a SACK block
+		boolean sacked = false;
+		//recovery in which it was retransmitted
+		int recoveryEpoch = 0;
+
+		Segment(long sequence, int length, @NonNull PacketBuffer packet, long sentAt) {
+			this.sequence = sequence;
+			this.length = length;
+			this.packet = packet;
+			this.sentAt = sentAt;
+		}
+
+		long end() {
+			return (sequence + length) & SEQUENCE_MASK;
+		}
+	}
+}
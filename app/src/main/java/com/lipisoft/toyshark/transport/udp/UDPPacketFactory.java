@@ -7,6 +7,7 @@ import com.lipisoft.toyshark.PacketManager;
 import com.lipisoft.toyshark.network.ip.IPPacketFactory;
 import com.lipisoft.toyshark.network.ip.IPv4Header;
 import com.lipisoft.toyshark.transport.tcp.PacketHeaderException;
+import com.lipisoft.toyshark.util.Checksum;
 import com.lipisoft.toyshark.util.PacketUtil;
 
 import java.nio.ByteBuffer;
@@ -63,13 +64,8 @@ public class UDPPacketFactory {
 		buffer = new byte[totalLength];
 		byte[] ipData = IPPacketFactory.createIPv4HeaderData(ipHeader);
 
-		// clear IP checksum
-		ipData[10] = ipData[11] = 0;
-
 		//calculate checksum for IP header
-		byte[] ipChecksum = PacketUtil.calculateChecksum(ipData, 0, ipData.length);
-		//write result of checksum back to buffer
-		System.arraycopy(ipChecksum, 0, ipData, 10, 2);
+		Checksum.writeIPv4Checksum(ipData, 0, ipData.length);
 		System.arraycopy(ipData, 0, buffer, 0, ipData.length);
 		
 		//copy UDP header to buffer
@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark.util;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Internet checksum (RFC 1071) computed in place, without allocating anything.
+ * <p>
+ * A checksum is built from a running sum: start from 0 or {@link #pseudoHeader},
+ * {@link #add} the bytes to cover, then {@link #finish} it. The running sum is kept in a long
+ * and data is added 8 bytes at a time as two 32 bit words; folding the result to 16 bits gives
+ * the same one's complement sum as adding 16 bit words one by one.
+ * <p>
+ * When only a few header fields of an already checksummed packet change, {@link #update16}
+ * and {@link #update32} adjust the checksum as described in RFC 1624 instead of summing
+ * the whole packet again.
+ */
+public final class Checksum {
+	public static final int IP_CHECKSUM_OFFSET = 10;
+	public static final int TCP_CHECKSUM_OFFSET = 16;
+	public static final int UDP_CHECKSUM_OFFSET = 6;
+
+	private Checksum() {
+	}
+
+	/**
+	 * add bytes to a running sum. An odd last byte is padded with zero, so only the
+	 * last range added to a sum may have odd length.
+	 * @param data array of byte
+	 * @param offset first byte to add, must be 16 bit aligned with the rest of the sum
+	 * @param length number of bytes to add
+	 * @param sum running sum
+	 * @return new running sum
+	 */
+	public static long add(@NonNull byte[] data, int offset, int length, long sum) {
+		int i = offset;
+		final int end = offset + length;
+		for (final int end8 = end - 7; i < end8; i += 8) {
+			sum += ((data[i] & 0xFFL) << 24 | (data[i + 1] & 0xFF) << 16 | (data[i + 2] & 0xFF) << 8 | (data[i + 3] & 0xFF))
+					+ ((data[i + 4] & 0xFFL) << 24 | (data[i + 5] & 0xFF) << 16 | (data[i + 6] & 0xFF) << 8 | (data[i + 7] & 0xFF));
+		}
+		for (final int end2 = end - 1; i < end2; i += 2) {
+			sum += (data[i] & 0xFF) << 8 | (data[i + 1] & 0xFF);
+		}
+		if (i < end) {
+			sum += (data[i] & 0xFF) << 8;
+		}
+		return sum;
+	}
+
+	/**
+	 * add bytes of a buffer to a running sum, by absolute index so position is not changed.
+	 * @param buffer ByteBuffer in big endian order
+	 * @param offset index of first byte to add
+	 * @param length number of bytes to add
+	 * @param sum running sum
+	 * @return new running sum
+	 */
+	public static long add(@NonNull ByteBuffer buffer, int offset, int length, long sum) {
+		int i = offset;
+		final int end = offset + length;
+		for (final int end8 = end - 7; i < end8; i += 8) {
+			final long value = buffer.getLong(i);
+			sum += (value >>> 32) + (value & 0xFFFFFFFFL);
+		}
+		for (final int end2 = end - 1; i < end2; i += 2) {
+			sum += buffer.getShort(i) & 0xFFFF;
+		}
+		if (i < end) {
+			sum += (buffer.get(i) & 0xFF) << 8;
+		}
+		return sum;
+	}
+
+	/**
+	 * running sum of the TCP/UDP pseudo header
+	 * @param sourceIp Source IP Address
+	 * @param destinationIp Destination IP Address
+	 * @param protocol IP protocol number
+	 * @param length TCP/UDP header plus data length
+	 * @return running sum
+	 */
+	public static long pseudoHeader(int sourceIp, int destinationIp, int protocol, int length) {
+		return (sourceIp & 0xFFFFFFFFL) + (destinationIp & 0xFFFFFFFFL) + (protocol & 0xFF) + (length & 0xFFFF);
+	}
+
+	/**
+	 * fold a running sum to 16 bits
+	 * @param sum running sum
+	 * @return one's complement sum, between 0 and 0xFFFF
+	 */
+	public static int fold(long sum) {
+		sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		return (int) ((sum & 0xFFFF) + (sum >>> 16));
+	}
+
+	/**
+	 * @param sum running sum
+	 * @return checksum to be written into a header
+	 */
+	public static int finish(long sum) {
+		return ~fold(sum) & 0xFFFF;
+	}
+
+	/**
+	 * RFC 1624 incremental update, HC' = ~(~HC + ~m + m'), for one changed 16 bit field
+	 * @param checksum checksum currently in the header
+	 * @param oldValue previous value of the field
+	 * @param newValue new value of the field
+	 * @return new checksum
+	 */
+	public static int update16(int checksum, int oldValue, int newValue) {
+		return finish((~checksum & 0xFFFF) + (~oldValue & 0xFFFF) + (newValue & 0xFFFF));
+	}
+
+	/**
+	 * RFC 1624 incremental update for one changed 32 bit field, e.g. sequence number or address
+	 * @param checksum checksum currently in the header
+	 * @param oldValue previous value of the field
+	 * @param newValue new value of the field
+	 * @return new checksum
+	 */
+	public static int update32(int checksum, int oldValue, int newValue) {
+		return finish((~checksum & 0xFFFF) + (~oldValue >>> 16) + (~oldValue & 0xFFFF)
+				+ (newValue >>> 16) + (newValue & 0xFFFF));
+	}
+
+	/**
+	 * compute and store the IPv4 header checksum
+	 * @param packet array of byte holding the packet
+	 * @param offset start of IP header
+	 * @param ipHeaderLength IP header length in bytes
+	 */
+	public static void writeIPv4Checksum(@NonNull byte[] packet, int offset, int ipHeaderLength) {
+		packet[offset + IP_CHECKSUM_OFFSET] = 0;
+		packet[offset + IP_CHECKSUM_OFFSET + 1] = 0;
+		putShort(packet, offset + IP_CHECKSUM_OFFSET, finish(add(packet, offset, ipHeaderLength, 0)));
+	}
+
+	/**
+	 * compute and store the TCP checksum, over pseudo header, TCP header and data
+	 * @param packet array of byte holding the packet
+	 * @param tcpOffset start of TCP header
+	 * @param tcpLength TCP header plus data length
+	 * @param sourceIp Source IP Address
+	 * @param destinationIp Destination IP Address
+	 */
+	public static void writeTCPChecksum(@NonNull byte[] packet, int tcpOffset, int tcpLength,
+										int sourceIp, int destinationIp) {
+		packet[tcpOffset + TCP_CHECKSUM_OFFSET] = 0;
+		packet[tcpOffset + TCP_CHECKSUM_OFFSET + 1] = 0;
+		final long sum = pseudoHeader(sourceIp, destinationIp, 6, tcpLength);
+		putShort(packet, tcpOffset + TCP_CHECKSUM_OFFSET, finish(add(packet, tcpOffset, tcpLength, sum)));
+	}
+
+	/**
+	 * compute and store the UDP checksum, over pseudo header, UDP header and data
+	 * @param packet array of byte holding the packet
+	 * @param udpOffset start of UDP header
+	 * @param udpLength UDP header plus data length
+	 * @param sourceIp Source IP Address
+	 * @param destinationIp Destination IP Address
+	 */
+	public static void writeUDPChecksum(@NonNull byte[] packet, int udpOffset, int udpLength,
+										int sourceIp, int destinationIp) {
+		packet[udpOffset + UDP_CHECKSUM_OFFSET] = 0;
+		packet[udpOffset + UDP_CHECKSUM_OFFSET + 1] = 0;
+		final long sum = pseudoHeader(sourceIp, destinationIp, 17, udpLength);
+		int checksum = finish(add(packet, udpOffset, udpLength, sum));
+		//zero means no checksum in UDP, so a computed zero is sent as all ones
+		if (checksum == 0) {
+			checksum = 0xFFFF;
+		}
+		putShort(packet, udpOffset + UDP_CHECKSUM_OFFSET, checksum);
+	}
+
+	private static void putShort(byte[] packet, int offset, int value) {
+		packet[offset] = (byte) (value >> 8);
+		packet[offset + 1] = (byte) value;
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FIFO byte queue made of fixed size chunks taken from a shared pool. Appending never moves
+ * queued bytes, and the consumer reads a segment straight out of the head chunk with
+ * {@link #headArray()}, {@link #headOffset()}, {@link #headLength()} and {@link #skip(int)},
+ * so draining a large read into small segments costs one copy per byte, not one per segment.
+ * <p>
+ * The queue holds at most {@link #getCapacity()} bytes; writers are told how much was accepted
+ * and should leave the rest where it came from. Methods are synchronized, so one thread may
+ * append while another consumes.
+ */
+public class ChunkedByteQueue {
+	public static final int CHUNK_SIZE = 16 * 1024;
+	private static final int MAX_POOLED_CHUNKS = 256;
+
+	private static final ArrayBlockingQueue<Chunk> pool = new ArrayBlockingQueue<>(MAX_POOLED_CHUNKS);
+	//chunks held by queues, across all queues
+	private static final AtomicInteger chunksInUse = new AtomicInteger();
+
+	@NonNull private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+	private int size = 0;
+	private int capacity;
+	//views of the chunks for gathering writes, reused between writes
+	@NonNull private ByteBuffer[] gather = new ByteBuffer[4];
+
+	/**
+	 * @param capacity maximum number of bytes queued
+	 */
+	public ChunkedByteQueue(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return bytes of chunks held by all queues, whether filled or not
+	 */
+	public static long getBytesInUse() {
+		return (long) chunksInUse.get() * CHUNK_SIZE;
+	}
+
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of bytes that can still be queued
+	 */
+	public synchronized int available() {
+		return Math.max(0, capacity - size);
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * append bytes from position to limit of a buffer, as many as capacity allows.
+	 * The position of data is not changed.
+	 * @param data source buffer
+	 * @return number of bytes appended
+	 */
+	public synchronized int write(@NonNull ByteBuffer data) {
+		if (data.hasArray()) {
+			return write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		}
+		//direct buffer from the VPN interface, read through a view to keep its position
+		final ByteBuffer source = data.duplicate();
+		final int length = Math.min(source.remaining(), available());
+		int remaining = length;
+		while (remaining > 0) {
+			final Chunk tail = writableTail();
+			final int count = Math.min(remaining, CHUNK_SIZE - tail.end);
+			source.get(tail.data, tail.end, count);
+			tail.end += count;
+			remaining -= count;
+		}
+		size += length;
+		return length;
+	}
+
+	/**
+	 * append bytes from an array, as many as capacity allows.
+	 * @return number of bytes appended
+	 */
+	public synchronized int write(@NonNull byte[] data, int offset, int length) {
+		length = Math.min(length, available());
+		int remaining = length;
+		while (remaining > 0) {
+			final Chunk tail = writableTail();
+			final int count = Math.min(remaining, CHUNK_SIZE - tail.end);
+			System.arraycopy(data, offset, tail.data, tail.end, count);
+			tail.end += count;
+			offset += count;
+			remaining -= count;
+		}
+		size += length;
+		return length;
+	}
+
+	/**
+	 * read from a channel straight into the tail chunk, at most one read call.
+	 * @param channel non-blocking source
+	 * @return bytes read, 0 if the queue is full, or -1 at end of stream
+	 */
+	public synchronized int readFrom(@NonNull ReadableByteChannel channel) throws IOException {
+		if (available() == 0) {
+			return 0;
+		}
+		final Chunk tail = writableTail();
+		final ByteBuffer buffer = tail.buffer;
+		buffer.limit(Math.min(CHUNK_SIZE, tail.end + available()));
+		buffer.position(tail.end);
+		final int read = channel.read(buffer);
+		if (read > 0) {
+			tail.end += read;
+			size += read;
+		} else if (tail.start == tail.end) {
+			//nothing was read into a chunk taken just for this read
+			chunks.pollLast();
+			recycle(tail);
+		}
+		return read;
+	}
+
+	/**
+	 * write queued bytes to a channel with one gathering write over all chunks, and remove what
+	 * the channel accepted.
+	 * @param channel non-blocking destination
+	 * @return number of bytes written, may be less than {@link #size()}
+	 */
+	public synchronized int writeTo(@NonNull GatheringByteChannel channel) throws IOException {
+		if (size == 0) {
+			return 0;
+		}
+		final int count = chunks.size();
+		if (gather.length < count) {
+			gather = new ByteBuffer[count];
+		}
+		int i = 0;
+		for (Chunk chunk : chunks) {
+			final ByteBuffer buffer = chunk.buffer;
+			buffer.limit(chunk.end);
+			buffer.position(chunk.start);
+			gather[i++] = buffer;
+		}
+		final int written = (int) channel.write(gather, 0, count);
+		skip(written);
+		return written;
+	}
+
+	/**
+	 * copy and remove up to length bytes.
+	 * @return number of bytes copied
+	 */
+	public synchronized int read(@NonNull byte[] out, int offset, int length) {
+		length = Math.min(length, size);
+		int remaining = length;
+		while (remaining > 0) {
+			final Chunk head = chunks.peekFirst();
+			final int count = Math.min(remaining, head.end - head.start);
+			System.arraycopy(head.data, head.start, out, offset, count);
+			offset += count;
+			remaining -= count;
+			skip(count);
+		}
+		return length;
+	}
+
+	/**
+	 * remove up to maxSize bytes as a new array
+	 * @return byte[], empty if the queue is empty
+	 */
+	@NonNull
+	public synchronized byte[] read(int maxSize) {
+		final byte[] data = new byte[Math.min(maxSize, size)];
+		read(data, 0, data.length);
+		return data;
+	}
+
+	/**
+	 * @return array of the first queued bytes, valid until the next {@link #skip(int)}, or null if empty
+	 */
+	@Nullable
+	public synchronized byte[] headArray() {
+		final Chunk head = chunks.peekFirst();
+		return head == null ? null : head.data;
+	}
+
+	public synchronized int headOffset() {
+		final Chunk head = chunks.peekFirst();
+		return head == null ? 0 : head.start;
+	}
+
+	/**
+	 * @return number of contiguous bytes in {@link #headArray()} from {@link #headOffset()}
+	 */
+	public synchronized int headLength() {
+		final Chunk head = chunks.peekFirst();
+		return head == null ? 0 : head.end - head.start;
+	}
+
+	/**
+	 * remove bytes from the head, returning emptied chunks to the pool
+	 * @param count number of bytes
+	 */
+	public synchronized void skip(int count) {
+		count = Math.min(count, size);
+		size -= count;
+		while (count > 0) {
+			final Chunk head = chunks.peekFirst();
+			final int n = Math.min(count, head.end - head.start);
+			head.start += n;
+			count -= n;
+			if (head.start == head.end) {
+				chunks.pollFirst();
+				recycle(head);
+			}
+		}
+	}
+
+	/**
+	 * drop everything and give the chunks back to the pool
+	 */
+	public synchronized void clear() {
+		Chunk chunk;
+		while ((chunk = chunks.pollFirst()) != null) {
+			recycle(chunk);
+		}
+		size = 0;
+	}
+
+	@NonNull
+	private Chunk writableTail() {
+		Chunk tail = chunks.peekLast();
+		if (tail == null || tail.end == CHUNK_SIZE) {
+			tail = pool.poll();
+			if (tail == null) {
+				tail = new Chunk();
+			}
+			chunks.addLast(tail);
+			chunksInUse.incrementAndGet();
+		}
+		return tail;
+	}
+
+	private static void recycle(@NonNull Chunk chunk) {
+		chunksInUse.decrementAndGet();
+		chunk.start = 0;
+		chunk.end = 0;
+		pool.offer(chunk);
+	}
+
+	private static final class Chunk {
+		final byte[] data = new byte[CHUNK_SIZE];
+		//view over data for channel reads and writes, so no wrapper is created per call
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		//readable bytes are data[start, end)
+		int start;
+		int end;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted packet data. One instance is shared by the parser, the session handler,
+ * the capture queue and the packet list, so a packet read from the VPN interface is never copied.
+ * Every holder calls {@link #retain()} before keeping it and {@link #release()} when done;
+ * a pooled buffer goes back to its pool when the last holder releases it.
+ */
+public final class PacketBuffer {
+	//direction of a captured packet, as seen by the device; values match pcapng epb_flags
+	public static final int DIRECTION_UNKNOWN = 0;
+	public static final int DIRECTION_INBOUND = 1;
+	public static final int DIRECTION_OUTBOUND = 2;
+
+	@NonNull private final ByteBuffer buffer;
+	@Nullable private final PacketBufferPool pool;
+	private final AtomicInteger referenceCount = new AtomicInteger(1);
+	//time the packet was queued for capture, in nano sec since epoch
+	private volatile long captureTime = 0;
+	private volatile int direction = DIRECTION_UNKNOWN;
+
+	PacketBuffer(@NonNull ByteBuffer buffer, @Nullable PacketBufferPool pool) {
+		this.buffer = buffer;
+		this.pool = pool;
+	}
+
+	/**
+	 * wrap packet data created on heap, e.g. a response packet built by a packet factory.
+	 * @param data whole packet
+	 * @return PacketBuffer which is not pooled
+	 */
+	@NonNull
+	public static PacketBuffer wrap(@NonNull byte[] data) {
+		return new PacketBuffer(ByteBuffer.wrap(data), null);
+	}
+
+	/**
+	 * buffer of the holder that acquired this packet from the pool (the VPN interface reader).
+	 * It reads into it and parses it, so position belongs to that holder only;
+	 * every other holder must use {@link #view()}.
+	 * @return ByteBuffer
+	 */
+	@NonNull
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * independent position and limit over the same packet data, no data is copied.
+	 * @return ByteBuffer from the first byte of the packet to its end
+	 */
+	@NonNull
+	public ByteBuffer view() {
+		final ByteBuffer view = buffer.duplicate();
+		view.position(0);
+		return view;
+	}
+
+	/**
+	 * @return packet length in bytes
+	 */
+	public int length() {
+		return buffer.limit();
+	}
+
+	/**
+	 * @return bytes of memory held, for pooled packets the whole pool buffer
+	 */
+	public int capacity() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * packet as array of byte. Heap packets return their array as is, pooled packets are copied.
+	 * @return byte[]
+	 */
+	@NonNull
+	public byte[] toByteArray() {
+		if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.limit()) {
+			return buffer.array();
+		}
+		final byte[] data = new byte[buffer.limit()];
+		view().get(data);
+		return data;
+	}
+
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	public void setCaptureTime(long captureTime) {
+		this.captureTime = captureTime;
+	}
+
+	public int getDirection() {
+		return direction;
+	}
+
+	public void setDirection(int direction) {
+		this.direction = direction;
+	}
+
+	@NonNull
+	public PacketBuffer retain() {
+		referenceCount.incrementAndGet();
+		return this;
+	}
+
+	public void release() {
+		final int count = referenceCount.decrementAndGet();
+		if (count == 0) {
+			if (pool != null) {
+				pool.recycle(this);
+			}
+		} else if (count < 0) {
+			throw new IllegalStateException("PacketBuffer released more times than retained");
+		}
+	}
+
+	void reset() {
+		referenceCount.set(1);
+		captureTime = 0;
+		direction = DIRECTION_UNKNOWN;
+		buffer.clear();
+	}
+}
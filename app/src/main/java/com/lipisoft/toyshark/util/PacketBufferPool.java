@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2016 Lipi C.H. Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package com.lipisoft.toyshark.util;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of direct buffers for packets read from the VPN interface.
+ * When the pool is empty a new buffer is allocated, and when it is full a released
+ * buffer is left to the garbage collector, so the pool never blocks the reader.
+ */
+public class PacketBufferPool {
+	private final int bufferSize;
+	@NonNull private final ArrayBlockingQueue<PacketBuffer> free;
+
+	/**
+	 * @param bufferSize size of each buffer, the largest packet that can be read
+	 * @param maxPooled maximum number of idle buffers kept for reuse
+	 */
+	public PacketBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.free = new ArrayBlockingQueue<>(maxPooled);
+	}
+
+	/**
+	 * take an empty buffer, its reference count is 1 and owned by the caller.
+	 * @return PacketBuffer
+	 */
+	@NonNull
+	public PacketBuffer acquire() {
+		final PacketBuffer packet = free.poll();
+		if (packet == null) {
+			return new PacketBuffer(ByteBuffer.allocateDirect(bufferSize), this);
+		}
+		packet.reset();
+		return packet;
+	}
+
+	void recycle(@NonNull PacketBuffer packet) {
+		free.offer(packet);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getIdleCount() {
+		return free.size();
+	}
+}
@@ -0,0 +1,143 @@
+package com.lipisoft.toyshark;
+
+import androidx.annotation.NonNull;
+
+import com.lipisoft.toyshark.util.PacketBuffer;
+import com.lipisoft.toyshark.util.PacketBufferPool;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BatchedClientPacketWriterTest {
+    private static final int PRODUCERS = 4;
+    private static final int PACKETS = 5000;
+
+    @Test
+    public void packetsOfEachProducerArriveWholeAndInOrder() throws InterruptedException {
+        final RecordingWriter sink = new RecordingWriter();
+        final BatchedClientPacketWriter writer = new BatchedClientPacketWriter(sink);
+        writer.start();
+
+        final Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < PACKETS; i++) {
+                        try {
+                            writer.write(ByteBuffer.allocate(8).putInt(producer).putInt(i).array());
+                        } catch (IOException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        while (writer.getWrittenPackets() < PRODUCERS * PACKETS) {
+            Thread.sleep(1);
+        }
+        writer.shutdown();
+
+        final int[] next = new int[PRODUCERS];
+        for (byte[] packet : sink.packets) {
+            assertEquals(8, packet.length);
+            final ByteBuffer buffer = ByteBuffer.wrap(packet);
+            final int producer = buffer.getInt();
+            assertEquals(next[producer]++, buffer.getInt());
+        }
+        for (int count : next) {
+            assertEquals(PACKETS, count);
+        }
+        assertEquals(0, writer.getQueueDepth());
+    }
+
+    @Test
+    public void pooledPacketIsRecycledAfterItWasWritten() throws Exception {
+        final RecordingWriter sink = new RecordingWriter();
+        final BatchedClientPacketWriter writer = new BatchedClientPacketWriter(sink);
+        final PacketBufferPool pool = new PacketBufferPool(16, 1);
+        final PacketBuffer packet = pool.acquire();
+        packet.getBuffer().put(new byte[]{1, 2, 3}).flip();
+
+        writer.write(packet);
+        //the caller's reference is gone, the writer still holds its own
+        packet.release();
+        writer.start();
+        while (writer.getWrittenPackets() < 1) {
+            Thread.sleep(1);
+        }
+        writer.shutdown();
+
+        assertEquals(3, sink.packets.get(0).length);
+        final PacketBuffer recycled = pool.acquire();
+        assertNotNull(recycled);
+        assertSame(packet, recycled);
+    }
+
+    @Test
+    public void arrayIsCopiedAndWritesFailOnceShutDown() throws Exception {
+        final RecordingWriter sink = new RecordingWriter();
+        final BatchedClientPacketWriter writer = new BatchedClientPacketWriter(sink);
+        final byte[] data = {1, 2, 3};
+        writer.write(data);
+        //caller reuses its array right away
+        data[0] = 9;
+        writer.start();
+        while (writer.getWrittenPackets() < 1) {
+            Thread.sleep(1);
+        }
+        writer.shutdown();
+        assertEquals(1, sink.packets.get(0)[0]);
+
+        boolean failed = false;
+        try {
+            writer.write(data);
+        } catch (IOException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+    }
+
+    private static final class RecordingWriter implements IClientPacketWriter {
+        final List<byte[]> packets = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        @Override
+        public void write(byte[] data) {
+            packets.add(data.clone());
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int count) {
+            final byte[] packet = new byte[count];
+            System.arraycopy(data, offset, packet, 0, count);
+            packets.add(packet);
+        }
+
+        @Override
+        public void write(ByteBuffer data) {
+            final byte[] packet = new byte[data.remaining()];
+            data.get(packet);
+            packets.add(packet);
+        }
+
+        @Override
+        public void write(@NonNull PacketBuffer packet) {
+            write(packet.view());
+        }
+    }
+}
@@ -56,15 +56,10 @@ public class SessionManagerTest {
 
     @Test
     public void testKeepSessionAlive() {
-        final Session session = new Session(1, 2, 3, 4);
+        final Session session = new Session(1, 2, 3, 4, FlowKey.TCP);
         SessionManager.INSTANCE.keepSessionAlive(session);
 
-        final int destinationAddress = session.getDestIp();
-        final int destinationPort = session.getDestPort();
-        final int sourceAddress = session.getSourceIp();
-        final int sourcePort = session.getSourcePort();
-        final String key = SessionManager.INSTANCE.createKey(destinationAddress, destinationPort, sourceAddress, sourcePort);
-        final Session result = SessionManager.INSTANCE.getSessionByKey(key);
+        final Session result = SessionManager.INSTANCE.getSessionByKey(session.getAddressKey(), session.getPortKey());
         assertEquals(session, result);
 
         // Release prevents other unit tests from being interrupted.
@@ -94,7 +89,7 @@ public class SessionManagerTest {
         final int sourceAddress = tcpSession.getSourceIp();
         final int sourcePort = tcpSession.getSourcePort();
 
-        final Session session = SessionManager.INSTANCE.getSession(destinationAddress, destinationPort, sourceAddress, sourcePort);
+        final Session session = SessionManager.INSTANCE.getSession(FlowKey.TCP, destinationAddress, destinationPort, sourceAddress, sourcePort);
         assertEquals(session, tcpSession);
 
         // Release prevents other unit tests from being interrupted.
@@ -108,8 +103,9 @@ public class SessionManagerTest {
         final int destinationPort = tcpSession.getDestPort();
         final int sourceAddress = tcpSession.getSourceIp();
         final int sourcePort = tcpSession.getSourcePort();
-        final String key = SessionManager.INSTANCE.createKey(destinationAddress, destinationPort, sourceAddress, sourcePort);
-        final Session session = SessionManager.INSTANCE.getSessionByKey(key);
+        final long addressKey = FlowKey.addressKey(sourceAddress, destinationAddress);
+        final long portKey = FlowKey.portKey(FlowKey.TCP, sourcePort, destinationPort);
+        final Session session = SessionManager.INSTANCE.getSessionByKey(addressKey, portKey);
         assertEquals(session, tcpSession);
 
         // Release prevents other unit tests from being interrupted.
@@ -136,8 +132,8 @@ public class SessionManagerTest {
         final int sourceAddress = session.getSourceIp();
         final int sourcePort = session.getSourcePort();
 
-        SessionManager.INSTANCE.closeSession(destinationAddress, destinationPort, sourceAddress, sourcePort);
-        final Session result = SessionManager.INSTANCE.getSession(destinationAddress, destinationPort, sourceAddress, sourcePort);
+        SessionManager.INSTANCE.closeSession(FlowKey.TCP, destinationAddress, destinationPort, sourceAddress, sourcePort);
+        final Session result = SessionManager.INSTANCE.getSession(FlowKey.TCP, destinationAddress, destinationPort, sourceAddress, sourcePort);
         assertNull(result);
     }
 
@@ -147,7 +143,7 @@ public class SessionManagerTest {
         final Session session = SessionManager.INSTANCE.createNewUDPSession(0x08080808, 53, 0, 1);
         assertNotNull(session);
         SessionManager.INSTANCE.closeSession(session);
-        assertNull(SessionManager.INSTANCE.getSession(0x08080808, 53, 0, 1));
+        assertNull(SessionManager.INSTANCE.getSession(FlowKey.UDP, 0x08080808, 53, 0, 1));
     }
 
     @Test
@@ -155,7 +151,7 @@ public class SessionManagerTest {
         // UDP connection to Google Public DNS Server(8.8.8.8) for TEST
         final Session session = SessionManager.INSTANCE.createNewUDPSession(0x08080808, 53, 0, 1);
         assertNotNull(session);
-        assertEquals(session, SessionManager.INSTANCE.getSession(0x08080808, 53, 0, 1));
+        assertEquals(session, SessionManager.INSTANCE.getSession(FlowKey.UDP, 0x08080808, 53, 0, 1));
 
         // Release prevents other unit tests from being interrupted.
         SessionManager.INSTANCE.closeSession(session);
@@ -180,7 +176,7 @@ public class SessionManagerTest {
         final int destinationAddress = getTcpAddress();
         final Session session = SessionManager.INSTANCE.createNewSession(destinationAddress, 443, 0, 1);
         assertNotNull(session);
-        assertEquals(session, SessionManager.INSTANCE.getSession(destinationAddress, 443, 0, 1));
+        assertEquals(session, SessionManager.INSTANCE.getSession(FlowKey.TCP, destinationAddress, 443, 0, 1));
         return session;
     }
 
@@ -192,6 +188,19 @@ public class SessionManagerTest {
         SessionManager.INSTANCE.closeSession(session);
     }
 
+    @Test
+    public void testCreatePendingSession() {
+        final Session session = SessionManager.INSTANCE.createPendingSession(0x08080808, 443, 0, 2);
+        assertNotNull(session);
+        // No socket before the setup thread gets to it, the same flow is not created twice
+        assertNull(session.getChannel());
+        assertNull(SessionManager.INSTANCE.createPendingSession(0x08080808, 443, 0, 2));
+
+        // Release prevents other unit tests from being interrupted.
+        SessionManager.INSTANCE.closeSession(session);
+        assertNull(SessionManager.INSTANCE.getSession(FlowKey.TCP, 0x08080808, 443, 0, 2));
+    }
+
     @Test
     public void testCreateKey() {
         final String key = SessionManager.INSTANCE.createKey(1, 2, 3, 4);
@@ -0,0 +1,52 @@
+package com.lipisoft.toyshark;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SessionTableTest {
+    @Test
+    public void putGetRemove() {
+        final SessionTable table = new SessionTable();
+        final List<Session> sessions = new ArrayList<>();
+        for (int port = 1; port <= 5000; port++) {
+            final Session session = new Session(0x0A780001, port, 0x08080808, 443, FlowKey.TCP);
+            assertNull(table.put(session.getAddressKey(), session.getPortKey(), session));
+            sessions.add(session);
+        }
+        assertEquals(5000, table.size());
+
+        // remove every other session, survivors must still be reachable after backward shift
+        for (int i = 0; i < sessions.size(); i += 2) {
+            final Session session = sessions.get(i);
+            assertSame(session, table.remove(session.getAddressKey(), session.getPortKey()));
+        }
+        assertEquals(2500, table.size());
+        for (int i = 0; i < sessions.size(); i++) {
+            final Session session = sessions.get(i);
+            final Session found = table.get(session.getAddressKey(), session.getPortKey());
+            if (i % 2 == 0) {
+                assertNull(found);
+            } else {
+                assertSame(session, found);
+            }
+        }
+    }
+
+    @Test
+    public void protocolIsPartOfKey() {
+        final SessionTable table = new SessionTable();
+        final Session tcp = new Session(1, 2, 3, 4, FlowKey.TCP);
+        final Session udp = new Session(1, 2, 3, 4, FlowKey.UDP);
+        table.put(tcp.getAddressKey(), tcp.getPortKey(), tcp);
+        assertNull(table.putIfAbsent(udp.getAddressKey(), udp.getPortKey(), udp));
+        assertSame(tcp, table.putIfAbsent(tcp.getAddressKey(), tcp.getPortKey(), udp));
+        assertSame(tcp, table.get(FlowKey.addressKey(1, 3), FlowKey.portKey(FlowKey.TCP, 2, 4)));
+        assertSame(udp, table.get(FlowKey.addressKey(1, 3), FlowKey.portKey(FlowKey.UDP, 2, 4)));
+    }
+}
@@ -9,7 +9,7 @@ import static org.junit.Assert.*;
 public class SessionTest {
     @Test
     public void setSendingData() {
-        final Session session = new Session(1, 2, 3, 4);
+        final Session session = new Session(1, 2, 3, 4, FlowKey.TCP);
         final byte[] test = "Hello, World.".getBytes();
 
         final ByteBuffer buffer = ByteBuffer.wrap(test);
@@ -24,4 +24,25 @@ public class SessionTest {
         final byte[] result = ", World.".getBytes();
         assertArrayEquals(result, actual);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void smallDataWaitsForMoreOrForTheDelay() {
+        final Session session = new Session(1, 2, 3, 4, FlowKey.TCP);
+        session.setSendingData(ByteBuffer.wrap(new byte[100]));
+        session.onDataBuffered(1000);
+
+        assertFalse(session.isDataForSendingReady(200, 5, 1004));
+        assertTrue(session.isDataForSendingReady(200, 5, 1005));
+
+        session.setSendingData(ByteBuffer.wrap(new byte[100]));
+        assertTrue(session.isDataForSendingReady(200, 5, 1001));
+
+        session.getSendingData();
+        session.onDataFlushed();
+        session.setSendingData(ByteBuffer.wrap(new byte[1]));
+        session.onDataBuffered(2000);
+        assertFalse(session.isDataForSendingReady(200, 5, 2001));
+        session.setDataForSendingReady(true);
+        assertTrue(session.isDataForSendingReady(200, 5, 2001));
+    }
+}
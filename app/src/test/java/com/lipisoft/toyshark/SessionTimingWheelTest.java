@@ -0,0 +1,79 @@
+package com.lipisoft.toyshark;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTimingWheelTest {
+    private static final long START = 5000;
+
+    @Test
+    public void sessionComesDueOnlyAfterItsDeadline() {
+        final SessionTimingWheel wheel = new SessionTimingWheel(8, 100, START);
+        final Session session = new Session(1, 2, 3, 4, FlowKey.TCP);
+        final Recorder recorder = new Recorder(0);
+        wheel.schedule(session, START + 250);
+
+        wheel.advance(START + 200, recorder);
+        assertTrue(recorder.due.isEmpty());
+        wheel.advance(START + 300, recorder);
+        assertEquals(1, recorder.due.size());
+        assertSame(session, recorder.due.get(0));
+        assertTrue(recorder.times.get(0) >= START + 250);
+    }
+
+    @Test
+    public void deadlineBeyondOneTurnComesByAgainUntilItIsReached() {
+        final SessionTimingWheel wheel = new SessionTimingWheel(8, 100, START);
+        final Session session = new Session(1, 2, 3, 4, FlowKey.UDP);
+        final long deadline = START + 2000;
+        // reschedules to the real deadline each time it comes by early
+        final Recorder recorder = new Recorder(deadline);
+        wheel.schedule(session, deadline);
+
+        for (long now = START + 100; now <= START + 2100; now += 100) {
+            wheel.advance(now, recorder);
+        }
+        // deadline is in slot 4 of 8, so it comes by at ticks 4, 12 and 20
+        assertEquals(3, recorder.times.size());
+        assertEquals(START + 2000, (long) recorder.times.get(2));
+        for (long time : recorder.times) {
+            assertTrue(time == START + 400 || time == START + 1200 || time == START + 2000);
+        }
+    }
+
+    @Test
+    public void advanceCatchesUpOnMissedTicks() {
+        final SessionTimingWheel wheel = new SessionTimingWheel(4, 100, START);
+        final Recorder recorder = new Recorder(0);
+        for (int i = 0; i < 10; i++) {
+            wheel.schedule(new Session(1, 2, 3, i, FlowKey.TCP), START + i * 100);
+        }
+        assertEquals(10, wheel.advance(START + 1000, recorder));
+        assertEquals(10, recorder.due.size());
+    }
+
+    private static final class Recorder implements SessionTimingWheel.Callback {
+        final List<Session> due = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+        private final long deadline;
+
+        Recorder(long deadline) {
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long onDue(@NonNull Session session, long now) {
+            due.add(session);
+            times.add(now);
+            return now < deadline ? deadline : 0;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.lipisoft.toyshark.packetRebuild;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BufferedPCapFileWriterTest {
+    @Test
+    public void outputMatchesPCapFileWriter() throws IOException {
+        final File expected = File.createTempFile("pcap", ".pcap");
+        final File actual = File.createTempFile("bpcap", ".pcap");
+        expected.deleteOnExit();
+        actual.deleteOnExit();
+
+        final PCapFileWriter plain = new PCapFileWriter(expected);
+        // small buffer so the file is written in many chunks
+        final BufferedPCapFileWriter buffered = new BufferedPCapFileWriter(actual,
+                PCapFileWriter.MAX_PACKET_SIZE + 1024, 32 * 1024, 1000);
+        final Random random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            final byte[] packet = new byte[1 + random.nextInt(1500)];
+            random.nextBytes(packet);
+            final long time = 1500000000000000000L + i * 1234567L;
+            plain.addPacket(ByteBuffer.wrap(packet), time);
+            buffered.addPacket(ByteBuffer.wrap(packet), time);
+        }
+        plain.close();
+        buffered.close();
+
+        assertTrue(buffered.getWriteCount() > 1);
+        assertEquals(500, buffered.getPacketCount());
+        assertEquals(actual.length(), buffered.getBytesWritten());
+        assertArrayEquals(readAll(expected), readAll(actual));
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
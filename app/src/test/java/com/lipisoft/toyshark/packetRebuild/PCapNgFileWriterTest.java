@@ -0,0 +1,75 @@
+package com.lipisoft.toyshark.packetRebuild;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PCapNgFileWriterTest {
+    @Test
+    public void blocksAreWellFormed() throws IOException {
+        final File file = File.createTempFile("pcapng", ".pcapng");
+        file.deleteOnExit();
+        final PCapNgFileWriter writer = new PCapNgFileWriter(file, "tun0");
+        final ByteBuffer[] packets = {
+                ByteBuffer.wrap(new byte[]{0x45, 1, 2}),
+                ByteBuffer.wrap(new byte[]{0x45, 1, 2, 3, 4, 5, 6, 7})
+        };
+        final long time = 1500000000123456789L;
+        writer.addPackets(packets, new long[]{time, time + 1},
+                new int[]{PCapNgFileWriter.DIRECTION_OUTBOUND, PCapNgFileWriter.DIRECTION_INBOUND}, 2);
+        writer.addPacket(new byte[]{0x45}, time + 2);
+        writer.close();
+
+        final ByteBuffer data = read(file);
+        assertEquals(0x0A0D0D0A, nextBlock(data).getInt(0));
+        final ByteBuffer idb = nextBlock(data);
+        assertEquals(1, idb.getInt(0));
+        assertEquals(PCapNgFileWriter.LINKTYPE_RAW, idb.getShort(8));
+
+        ByteBuffer epb = nextBlock(data);
+        assertEquals(6, epb.getInt(0));
+        assertEquals(time, ((long) epb.getInt(12) << 32) | (epb.getInt(16) & 0xFFFFFFFFL));
+        assertEquals(3, epb.getInt(20));
+        assertEquals(0x45, epb.get(28));
+        // epb_flags follows the data padded to 4 bytes
+        assertEquals(2, epb.getShort(32));
+        assertEquals(PCapNgFileWriter.DIRECTION_OUTBOUND, epb.getInt(36));
+
+        epb = nextBlock(data);
+        assertEquals(8, epb.getInt(20));
+        assertEquals(PCapNgFileWriter.DIRECTION_INBOUND, epb.getInt(40));
+
+        epb = nextBlock(data);
+        assertEquals(1, epb.getInt(20));
+        assertEquals(36, epb.limit());
+        assertFalse(data.hasRemaining());
+    }
+
+    private static ByteBuffer nextBlock(ByteBuffer data) {
+        final int length = data.getInt(data.position() + 4);
+        assertEquals(0, length % 4);
+        final ByteBuffer block = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        block.limit(length);
+        assertEquals(length, block.getInt(length - 4));
+        data.position(data.position() + length);
+        return block;
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            in.close();
+        }
+    }
+}
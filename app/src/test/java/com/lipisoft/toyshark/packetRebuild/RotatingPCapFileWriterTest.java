@@ -0,0 +1,54 @@
+package com.lipisoft.toyshark.packetRebuild;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RotatingPCapFileWriterTest {
+    @Test
+    public void ringOverwritesOldestFile() throws IOException {
+        final File dir = File.createTempFile("ring", "");
+        assertTrue(dir.delete() && dir.mkdir());
+
+        final int fileSize = RotatingPCapFileWriter.MIN_FILE_SIZE;
+        final RotatingPCapFileWriter writer = new RotatingPCapFileWriter(dir, "test", 3, fileSize, 0);
+        final byte[] packet = new byte[1000];
+        // enough packets to go around the ring more than once
+        final int packetsPerFile = (fileSize - PCapFileHeader.HEADER_SIZE) / (packet.length + 30);
+        for (int i = 0; i < packetsPerFile * 4 + 1; i++) {
+            packet[0] = (byte) i;
+            writer.addPacket(ByteBuffer.wrap(packet), 1000000000L * i);
+        }
+        writer.close();
+
+        assertEquals(5, writer.getRotations());
+        assertEquals(1, writer.getCurrentIndex());
+        final File[] files = dir.listFiles();
+        assertEquals(3, files.length);
+        for (File file : files) {
+            assertTrue(file.length() <= fileSize);
+            assertEquals(0, (file.length() - PCapFileHeader.HEADER_SIZE) % (packet.length + 30));
+            assertEquals(0xa1b2c3d4, readInt(file, 0));
+            file.deleteOnExit();
+        }
+        // the first file was overwritten by the fourth, which starts with packet packetsPerFile * 3
+        assertEquals(3, readInt(writer.getFile(0), PCapFileHeader.HEADER_SIZE) / packetsPerFile);
+        dir.deleteOnExit();
+    }
+
+    private static int readInt(File file, long offset) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(offset);
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.lipisoft.toyshark.socket;
+
+import com.lipisoft.toyshark.util.PacketBuffer;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PacketRingTest {
+    private static PacketBuffer packet(int value) {
+        return PacketBuffer.wrap(new byte[]{(byte) value});
+    }
+
+    @Test
+    public void dropNewest() {
+        final PacketRing ring = new PacketRing(2, PacketRing.OverflowPolicy.DROP_NEWEST);
+        final PacketBuffer first = packet(1);
+        assertTrue(ring.offer(first));
+        assertTrue(ring.offer(packet(2)));
+        assertFalse(ring.offer(packet(3)));
+        assertEquals(1, ring.getDroppedCount());
+        assertSame(first, ring.poll());
+    }
+
+    @Test
+    public void dropOldest() {
+        final PacketRing ring = new PacketRing(2, PacketRing.OverflowPolicy.DROP_OLDEST);
+        ring.offer(packet(1));
+        final PacketBuffer second = packet(2);
+        ring.offer(second);
+        final PacketBuffer third = packet(3);
+        assertTrue(ring.offer(third));
+        assertEquals(1, ring.getDroppedCount());
+        assertSame(second, ring.poll());
+        assertSame(third, ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void manyProducersOneConsumer() throws InterruptedException {
+        final PacketRing ring = new PacketRing(64, PacketRing.OverflowPolicy.BLOCK);
+        final int producers = 4;
+        final int perProducer = 20000;
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        ring.offer(packet(i));
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        final AtomicInteger received = new AtomicInteger();
+        while (received.get() < producers * perProducer) {
+            if (ring.poll() != null) {
+                received.incrementAndGet();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, ring.getDroppedCount());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void closeReleasesBlockedProducer() throws InterruptedException {
+        final PacketRing ring = new PacketRing(1, PacketRing.OverflowPolicy.BLOCK);
+        assertEquals(2, ring.capacity());
+        ring.offer(packet(1));
+        ring.offer(packet(2));
+        final AtomicInteger result = new AtomicInteger(-1);
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(ring.offer(packet(3)) ? 1 : 0);
+            }
+        });
+        producer.start();
+        Thread.sleep(20);
+        ring.close();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(0, result.get());
+        assertFalse(ring.offer(packet(4)));
+        //what was queued before can still be taken
+        assertEquals(2, ring.size());
+        assertEquals(1, ring.poll().getBuffer().get(0));
+        assertEquals(2, ring.poll().getBuffer().get(0));
+        assertNull(ring.poll());
+    }
+}
@@ -0,0 +1,56 @@
+package com.lipisoft.toyshark.socket;
+
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProtectedChannelPoolTest {
+    @Test
+    public void channelsComeProtectedAndFromThePoolOnceItIsFilled() throws Exception {
+        SocketProtector.getInstance().setProtector(new IProtectSocket() {
+            @Override
+            public void protectSocket(Socket socket) {
+            }
+
+            @Override
+            public void protectSocket(int socket) {
+            }
+
+            @Override
+            public void protectSocket(DatagramSocket socket) {
+            }
+        });
+        final ProtectedChannelPool pool = ProtectedChannelPool.getInstance();
+        final long hits = pool.getHits();
+        final long misses = pool.getMisses();
+
+        pool.start();
+        try {
+            // the first refill runs right away
+            final long deadline = System.currentTimeMillis() + 5000;
+            SocketChannel channel = null;
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+                if (pool.getIdleSocketChannels() > 0) {
+                    channel = pool.takeSocketChannel();
+                    break;
+                }
+            }
+            assertTrue(channel != null && channel.isOpen());
+            assertFalse(channel.isBlocking());
+            assertFalse(channel.isConnected());
+            channel.close();
+            assertEquals(hits + 1, pool.getHits());
+            assertEquals(misses, pool.getMisses());
+            assertTrue(pool.getSavedNanos() > 0);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.lipisoft.toyshark.transport.tcp;
+
+import com.lipisoft.toyshark.network.ip.IPPacketFactory;
+import com.lipisoft.toyshark.network.ip.IPv4Header;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TCPPacketFactoryTest {
+    private static final int CLIENT_IP = 0x0a000002;
+    private static final int SERVER_IP = 0x08080808;
+
+    @Test
+    public void rstForSynAcknowledgesIt() throws PacketHeaderException {
+        final ByteBuffer syn = ByteBuffer.allocate(40);
+        syn.put((byte) 0x45).put((byte) 0).putShort((short) 40).putShort((short) 7)
+                .putShort((short) 0x4000).put((byte) 64).put((byte) 6).putShort((short) 0)
+                .putInt(CLIENT_IP).putInt(SERVER_IP);
+        syn.putShort((short) 40000).putShort((short) 443).putInt(1000).putInt(0)
+                .put((byte) 0x50).put((byte) 0x02).putShort((short) 65535).putShort((short) 0).putShort((short) 0);
+        syn.flip();
+        final IPv4Header clientIp = IPPacketFactory.createIPv4Header(syn);
+        final TCPHeader clientTcp = TCPPacketFactory.createTCPHeader(syn);
+
+        // a client in SYN-SENT accepts a RST only if it acknowledges the SYN
+        final ByteBuffer rst = ByteBuffer.wrap(TCPPacketFactory.createRstData(clientIp, clientTcp, 1));
+        final IPv4Header ip = IPPacketFactory.createIPv4Header(rst);
+        final TCPHeader tcp = TCPPacketFactory.createTCPHeader(rst);
+        assertEquals(SERVER_IP, ip.getSourceIP());
+        assertEquals(CLIENT_IP, ip.getDestinationIP());
+        assertEquals(40000, tcp.getDestinationPort());
+        assertTrue(tcp.isRST() && tcp.isACK() && !tcp.isSYN());
+        assertEquals(1001L, tcp.getAckNumber());
+        assertEquals(0L, tcp.getSequenceNumber());
+    }
+
+    @Test
+    public void sackOptionWithBadLengthIsRejected() {
+        // NOP, NOP, SACK with a length byte that does not make whole blocks, padding
+        final byte[][] options = {
+                {1, 1, 5, (byte) 0xfa, 0, 0, 0, 0, 0, 0, 0, 0},
+                {1, 1, 5, 2, 0, 0, 0, 0, 0, 0, 0, 0},
+                {1, 1, 5, 13, 0, 0, 0, 0, 0, 0, 0, 0},
+                {1, 1, 5, 18, 0, 0, 0, 0, 0, 0, 0, 0},
+        };
+        for (byte[] option : options) {
+            final ByteBuffer segment = ByteBuffer.allocate(20 + option.length);
+            segment.putShort((short) 443).putShort((short) 40000).putInt(1).putInt(1)
+                    .put((byte) ((20 + option.length) / 4 << 4)).put((byte) 0x10)
+                    .putShort((short) 65535).putShort((short) 0).putShort((short) 0).put(option);
+            segment.flip();
+            boolean rejected = false;
+            try {
+                TCPPacketFactory.createTCPHeader(segment);
+            } catch (PacketHeaderException e) {
+                rejected = true;
+            }
+            assertTrue(rejected);
+        }
+    }
+
+    @Test
+    public void sackBlocksAreParsed() throws PacketHeaderException {
+        final ByteBuffer segment = ByteBuffer.allocate(32);
+        segment.putShort((short) 443).putShort((short) 40000).putInt(1).putInt(1)
+                .put((byte) (32 / 4 << 4)).put((byte) 0x10)
+                .putShort((short) 65535).putShort((short) 0).putShort((short) 0)
+                .put((byte) 1).put((byte) 1).put((byte) 5).put((byte) 10).putInt(100).putInt(200);
+        segment.flip();
+        final TCPHeader tcp = TCPPacketFactory.createTCPHeader(segment);
+        assertFalse(tcp.getSackBlocks() == null);
+        assertEquals(100L, tcp.getSackBlocks()[0]);
+        assertEquals(200L, tcp.getSackBlocks()[1]);
+    }
+}
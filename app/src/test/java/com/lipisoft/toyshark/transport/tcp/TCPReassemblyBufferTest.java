@@ -0,0 +1,79 @@
+package com.lipisoft.toyshark.transport.tcp;
+
+import com.lipisoft.toyshark.util.ChunkedByteQueue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TCPReassemblyBufferTest {
+    private static final long START = 0xfffffffaL;
+    private static final int WINDOW = 65535;
+
+    @Test
+    public void outOfOrderSegmentsAreReleasedInOrder() {
+        final byte[] stream = new byte[40];
+        for (int i = 0; i < stream.length; i++) {
+            stream[i] = (byte) i;
+        }
+        final TCPReassemblyBuffer buffer = new TCPReassemblyBuffer(1000);
+        final ChunkedByteQueue queue = new ChunkedByteQueue(1000);
+
+        assertEquals(10, buffer.add(START + 30, segment(stream, 30, 10), START, WINDOW));
+        assertEquals(10, buffer.add(START + 10, segment(stream, 10, 10), START, WINDOW));
+        //overlaps both held segments, only the bytes around them are new
+        assertEquals(15, buffer.add(START + 5, segment(stream, 5, 30), START, WINDOW));
+        assertEquals(0, buffer.drainTo(START, queue));
+
+        final long[] blocks = new long[6];
+        assertEquals(1, buffer.getSackBlocks(blocks, 3));
+        assertEquals((START + 5) & 0xFFFFFFFFL, blocks[0]);
+        assertEquals((START + 40) & 0xFFFFFFFFL, blocks[1]);
+
+        //the missing segment arrives in order and releases everything held
+        queue.write(stream, 0, 5);
+        assertEquals(35, buffer.drainTo(START + 5, queue));
+        assertTrue(buffer.isEmpty());
+        assertArrayEquals(stream, queue.read(100));
+    }
+
+    @Test
+    public void latestBlockIsReportedFirst() {
+        final TCPReassemblyBuffer buffer = new TCPReassemblyBuffer(1000);
+        buffer.add(100, ByteBuffer.allocate(10), 0, WINDOW);
+        buffer.add(300, ByteBuffer.allocate(10), 0, WINDOW);
+        buffer.add(200, ByteBuffer.allocate(10), 0, WINDOW);
+
+        final long[] blocks = new long[6];
+        assertEquals(3, buffer.getSackBlocks(blocks, 3));
+        assertArrayEquals(new long[]{200, 210, 100, 110, 300, 310}, blocks);
+    }
+
+    @Test
+    public void capacityIsNeverExceeded() {
+        final TCPReassemblyBuffer buffer = new TCPReassemblyBuffer(15);
+        assertEquals(10, buffer.add(100, ByteBuffer.allocate(10), 0, WINDOW));
+        assertEquals(5, buffer.add(200, ByteBuffer.allocate(10), 0, WINDOW));
+        assertEquals(0, buffer.add(300, ByteBuffer.allocate(10), 0, WINDOW));
+        assertEquals(15, buffer.size());
+    }
+
+    @Test
+    public void bytesBeyondTheWindowAreDropped() {
+        final TCPReassemblyBuffer buffer = new TCPReassemblyBuffer(1000);
+        assertEquals(0, buffer.add(START + 200, ByteBuffer.allocate(10), START, 200));
+        assertEquals(5, buffer.add(START + 195, ByteBuffer.allocate(10), START, 200));
+        assertEquals(5, buffer.size());
+    }
+
+    private static ByteBuffer segment(byte[] stream, int offset, int length) {
+        final ByteBuffer packet = ByteBuffer.allocate(length + 3);
+        packet.put(new byte[3]).put(stream, offset, length);
+        packet.position(3);
+        return packet;
+    }
+}
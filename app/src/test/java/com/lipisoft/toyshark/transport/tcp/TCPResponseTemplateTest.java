@@ -0,0 +1,103 @@
+package com.lipisoft.toyshark.transport.tcp;
+
+import com.lipisoft.toyshark.network.ip.IPPacketFactory;
+import com.lipisoft.toyshark.network.ip.IPv4Header;
+import com.lipisoft.toyshark.util.Checksum;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TCPResponseTemplateTest {
+    private static final int CLIENT_IP = 0x0a000002;
+    private static final int SERVER_IP = 0x08080808;
+
+    @Test
+    public void segmentFromTemplateIsValid() throws PacketHeaderException {
+        final ByteBuffer syn = clientSyn();
+        final IPv4Header clientIp = IPPacketFactory.createIPv4Header(syn);
+        final TCPHeader clientTcp = TCPPacketFactory.createTCPHeader(syn);
+        final TCPResponseTemplate template = TCPResponseTemplate.create(clientIp, clientTcp);
+        assertTrue(template.hasTimestamp());
+
+        final byte[] payload = {1, 2, 3, 4, 5, 6, 7};
+        final ByteBuffer out = ByteBuffer.allocate(1500);
+        template.write(out, TCPResponseTemplate.ACK | TCPResponseTemplate.PSH, 0xfffffff0L, 1234L,
+                0x11223344, 0x55667788, payload, 0, payload.length);
+
+        assertEquals(template.getHeaderLength() + payload.length, out.limit());
+        assertEquals(0, Checksum.finish(Checksum.add(out, 0, 20, 0)));
+        final long pseudoHeader = Checksum.pseudoHeader(SERVER_IP, CLIENT_IP, 6, out.limit() - 20);
+        assertEquals(0, Checksum.finish(Checksum.add(out, 20, out.limit() - 20, pseudoHeader)));
+
+        final IPv4Header ip = IPPacketFactory.createIPv4Header(out);
+        final TCPHeader tcp = TCPPacketFactory.createTCPHeader(out);
+        assertEquals(SERVER_IP, ip.getSourceIP());
+        assertEquals(CLIENT_IP, ip.getDestinationIP());
+        assertEquals(out.limit(), ip.getTotalLength());
+        assertEquals(443, tcp.getSourcePort());
+        assertEquals(40000, tcp.getDestinationPort());
+        assertEquals(0xfffffff0, (int) tcp.getSequenceNumber());
+        assertEquals(1234L, tcp.getAckNumber());
+        assertTrue(tcp.isACK() && tcp.isPSH() && !tcp.isSYN() && !tcp.isFIN());
+        assertEquals(0x11223344, tcp.getTimeStampSender());
+        assertEquals(0x55667788, tcp.getTimeStampReplyTo());
+        assertEquals(7, out.get(out.limit() - 1));
+    }
+
+    @Test
+    public void sackOptionIsAppendedToHeader() throws PacketHeaderException {
+        final ByteBuffer syn = clientSyn();
+        final TCPResponseTemplate template = TCPResponseTemplate.create(
+                IPPacketFactory.createIPv4Header(syn), TCPPacketFactory.createTCPHeader(syn));
+        assertTrue(template.isSackPermitted());
+        assertEquals(3, template.getMaxSackBlocks());
+
+        final long[] blocks = {0xfffffff0L, 0x10L, 3000, 4000};
+        final ByteBuffer out = ByteBuffer.allocate(1500);
+        template.write(out, TCPResponseTemplate.ACK, 1, 2, 3, 4, blocks, 2, null, 0, 0);
+
+        assertEquals(template.getHeaderLength() + 4 + 16, out.limit());
+        final long pseudoHeader = Checksum.pseudoHeader(SERVER_IP, CLIENT_IP, 6, out.limit() - 20);
+        assertEquals(0, Checksum.finish(Checksum.add(out, 20, out.limit() - 20, pseudoHeader)));
+
+        IPPacketFactory.createIPv4Header(out);
+        final TCPHeader tcp = TCPPacketFactory.createTCPHeader(out);
+        assertEquals(out.limit() - 20, tcp.getTCPHeaderLength());
+        assertEquals(3, tcp.getTimeStampSender());
+        assertArrayEquals(blocks, tcp.getSackBlocks());
+    }
+
+    @Test
+    public void windowFollowsRoomInSendingBuffer() throws PacketHeaderException {
+        final ByteBuffer syn = clientSyn();
+        final TCPResponseTemplate template = TCPResponseTemplate.create(
+                IPPacketFactory.createIPv4Header(syn), TCPPacketFactory.createTCPHeader(syn));
+        final ByteBuffer out = ByteBuffer.allocate(1500);
+        for (int window : new int[]{0, 1000, 1 << 20}) {
+            template.setWindow(window);
+            template.write(out, TCPResponseTemplate.ACK, 1, 2, 3, 4, null, 0, 0);
+            final long pseudoHeader = Checksum.pseudoHeader(SERVER_IP, CLIENT_IP, 6, out.limit() - 20);
+            assertEquals(0, Checksum.finish(Checksum.add(out, 20, out.limit() - 20, pseudoHeader)));
+            IPPacketFactory.createIPv4Header(out);
+            assertEquals(Math.min(window, 0xFFFF), TCPPacketFactory.createTCPHeader(out).getWindowSize() & 0xFFFF);
+        }
+    }
+
+    private static ByteBuffer clientSyn() {
+        final ByteBuffer syn = ByteBuffer.allocate(20 + 40);
+        syn.put((byte) 0x45).put((byte) 0).putShort((short) 60).putShort((short) 7)
+                .putShort((short) 0x4000).put((byte) 64).put((byte) 6).putShort((short) 0)
+                .putInt(CLIENT_IP).putInt(SERVER_IP);
+        syn.putShort((short) 40000).putShort((short) 443).putInt(1000).putInt(0)
+                .put((byte) 0xa0).put((byte) 0x02).putShort((short) 65535).putShort((short) 0).putShort((short) 0);
+        // MSS 1460, SACK permitted, timestamp, NOP, window scale 7
+        syn.put(new byte[]{2, 4, 0x05, (byte) 0xb4, 4, 2, 8, 10, 0, 0, 0, 1, 0, 0, 0, 0, 1, 3, 3, 7});
+        syn.flip();
+        return syn;
+    }
+}
@@ -0,0 +1,151 @@
+package com.lipisoft.toyshark.transport.tcp;
+
+import com.lipisoft.toyshark.util.PacketBuffer;
+import com.lipisoft.toyshark.util.PacketBufferPool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TCPSendWindowTest {
+    private final PacketBufferPool pool = new PacketBufferPool(64, 16);
+
+    @Test
+    public void scaledWindowLimitsDataInFlight() {
+        final TCPSendWindow window = new TCPSendWindow();
+        window.start(1000, 1000, 2);
+        assertEquals(1000, window.getUsableWindow());
+        assertTrue(window.add(pool.acquire(), 600, false, 0));
+        assertFalse(window.add(pool.acquire(), 400, false, 0));
+        assertTrue(window.isFull());
+
+        //window of 500 scaled by 4, counted from the acknowledged sequence
+        assertEquals(TCPSendWindow.ACK_NEW, window.acknowledge(1600, 500, null, true, 10));
+        assertEquals(2000 - 400, window.getUsableWindow());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void thirdDuplicateAckRetransmitsFirstSegment() {
+        final TCPSendWindow window = new TCPSendWindow();
+        window.start(0xfffffff0L, 60000, 0);
+        final PacketBuffer first = pool.acquire();
+        window.add(first, 100, false, 0);
+        window.add(pool.acquire(), 100, false, 0);
+        assertEquals(0xfffffff0L + 200 - 0x100000000L, window.getSendNext());
+
+        assertEquals(TCPSendWindow.ACK_DUPLICATE, window.acknowledge(0xfffffff0L, 60000, null, true, 1));
+        assertEquals(TCPSendWindow.ACK_DUPLICATE, window.acknowledge(0xfffffff0L, 60000, null, true, 2));
+        assertEquals(TCPSendWindow.ACK_FAST_RETRANSMIT, window.acknowledge(0xfffffff0L, 60000, null, true, 3));
+        final PacketBuffer retransmit = window.nextLost();
+        assertSame(first, retransmit);
+        retransmit.release();
+
+        //acknowledgement across the sequence number wrap
+        assertEquals(TCPSendWindow.ACK_NEW, window.acknowledge(window.getSendNext(), 60000, null, true, 4));
+        assertTrue(window.isEmpty());
+        assertEquals(-1, window.nextTimeout(4));
+    }
+
+    @Test
+    public void sackRetransmitsOnlyHoles() {
+        final TCPSendWindow window = new TCPSendWindow();
+        window.start(0, 60000, 0);
+        final PacketBuffer[] sent = new PacketBuffer[6];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = PacketBuffer.wrap(new byte[1]);
+            window.add(sent[i], 100, false, 0);
+        }
+        //segments 0 and 2 are lost, client holds 1, 3, 4 and 5
+        assertEquals(TCPSendWindow.ACK_DUPLICATE, window.acknowledge(0, 60000, new long[]{100, 200}, true, 1));
+        assertEquals(TCPSendWindow.ACK_FAST_RETRANSMIT,
+                window.acknowledge(0, 60000, new long[]{300, 600, 100, 200}, true, 2));
+        assertSame(sent[0], window.nextLost());
+        assertSame(sent[2], window.nextLost());
+        assertNull(window.nextLost());
+
+        //partial acknowledgement keeps recovery going, nothing is lost twice
+        assertEquals(TCPSendWindow.ACK_FAST_RETRANSMIT, window.acknowledge(200, 60000, null, true, 3));
+        assertNull(window.nextLost());
+        assertEquals(TCPSendWindow.ACK_NEW, window.acknowledge(600, 60000, null, true, 4));
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    public void timeoutBacksOffAndAckSamplesRtt() {
+        final TCPSendWindow window = new TCPSendWindow();
+        window.start(1, 60000, 0);
+        window.add(pool.acquire(), 100, false, 0);
+        assertEquals(TCPSendWindow.INITIAL_RTO, window.nextTimeout(0));
+        assertNull(window.expire(TCPSendWindow.INITIAL_RTO - 1));
+
+        final PacketBuffer retransmit = window.expire(TCPSendWindow.INITIAL_RTO);
+        retransmit.release();
+        assertEquals(2 * TCPSendWindow.INITIAL_RTO, window.getRto());
+        assertEquals(1, window.getRetransmissions());
+
+        //retransmitted segment is not sampled, a fresh one is
+        window.acknowledge(101, 60000, null, true, 2500);
+        window.add(pool.acquire(), 100, false, 3000);
+        window.acknowledge(201, 60000, null, true, 3050);
+        assertEquals(TCPSendWindow.MIN_RTO, window.getRto());
+        assertEquals(0, window.getRetransmissions());
+    }
+
+    @Test
+    public void finTakesOneSequenceNumber() {
+        final TCPSendWindow window = new TCPSendWindow();
+        window.start(1, 60000, 0);
+        window.add(pool.acquire(), 0, true, 0);
+        assertFalse(window.isFinAcknowledged());
+        window.acknowledge(2, 60000, null, true, 5);
+        assertTrue(window.isFinAcknowledged());
+    }
+
+    @Test
+    public void closedWindowIsProbedWithBackoffUntilItOpens() {
+        final TCPSendWindow window = new TCPSendWindow();
+        window.start(0, 60000, 0);
+        window.add(pool.acquire(), 100, false, 0);
+        //everything acknowledged, but the client has no room left
+        assertEquals(TCPSendWindow.ACK_NEW, window.acknowledge(100, 0, null, true, 10));
+        assertEquals(-1, window.nextTimeout(10));
+
+        assertTrue(window.startPersist(10));
+        assertFalse(window.startPersist(11));
+        final int generation = window.getTimerGeneration();
+        final long first = window.nextTimeout(10, generation);
+        assertTrue(first > 0);
+        assertFalse(window.probe(10 + first - 1));
+        assertTrue(window.probe(10 + first));
+        //next probe comes twice as late
+        assertEquals(2 * first, window.nextTimeout(10 + first, generation));
+
+        //window update stops the probes
+        window.acknowledge(100, 1000, null, true, 20 + first);
+        assertFalse(window.probe(10 + 10 * first));
+        assertEquals(-1, window.nextTimeout(10 + 10 * first, generation));
+    }
+
+    @Test
+    public void earlierTimerTakesOverFromLaterOne() {
+        final TCPSendWindow window = new TCPSendWindow();
+        window.start(0, 0, 0);
+        assertTrue(window.startPersist(0));
+        final int persist = window.getTimerGeneration();
+        window.nextTimeout(0, persist);
+        window.probe(TCPSendWindow.INITIAL_RTO);
+        window.nextTimeout(TCPSendWindow.INITIAL_RTO, persist);
+
+        //window opens, data sent before the persist timer is due must get its own timer
+        window.acknowledge(0, 1000, null, true, TCPSendWindow.INITIAL_RTO + 1);
+        assertTrue(window.add(pool.acquire(), 100, false, TCPSendWindow.INITIAL_RTO + 2));
+        //the replaced timer stops when it comes due
+        assertEquals(-1, window.nextTimeout(3 * TCPSendWindow.INITIAL_RTO, persist));
+        window.clear();
+    }
+}
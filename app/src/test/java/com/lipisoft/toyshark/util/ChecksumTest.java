@@ -0,0 +1,93 @@
+package com.lipisoft.toyshark.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChecksumTest {
+    @Test
+    public void rfc1071Example() {
+        final byte[] data = {0x00, 0x01, (byte) 0xf2, 0x03, (byte) 0xf4, (byte) 0xf5, (byte) 0xf6, (byte) 0xf7};
+        assertEquals(0xddf2, Checksum.fold(Checksum.add(data, 0, data.length, 0)));
+        assertEquals(0x220d, Checksum.finish(Checksum.add(data, 0, data.length, 0)));
+    }
+
+    @Test
+    public void matchesWordByWordSum() {
+        final Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            final byte[] data = new byte[1 + random.nextInt(1600)];
+            random.nextBytes(data);
+            final int offset = random.nextInt(data.length);
+            final int length = random.nextInt(data.length - offset + 1);
+            final int expected = reference(data, offset, length);
+
+            assertEquals(expected, Checksum.finish(Checksum.add(data, offset, length, 0)));
+            final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            assertEquals(expected, Checksum.finish(Checksum.add(direct, offset, length, 0)));
+        }
+    }
+
+    @Test
+    public void incrementalUpdateMatchesFullSum() {
+        final Random random = new Random(5);
+        for (int i = 0; i < 1000; i++) {
+            final byte[] data = new byte[40];
+            random.nextBytes(data);
+            data[16] = data[17] = 0;
+            final int checksum = Checksum.finish(Checksum.add(data, 0, data.length, 0));
+
+            final int oldSeq = readInt(data, 4);
+            final int newSeq = random.nextInt();
+            writeInt(data, 4, newSeq);
+            final int oldPort = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+            final int newPort = random.nextInt(0x10000);
+            data[0] = (byte) (newPort >> 8);
+            data[1] = (byte) newPort;
+
+            final int updated = Checksum.update16(Checksum.update32(checksum, oldSeq, newSeq), oldPort, newPort);
+            assertEquals(Checksum.finish(Checksum.add(data, 0, data.length, 0)), updated);
+        }
+    }
+
+    @Test
+    public void writtenTcpChecksumValidates() {
+        final byte[] packet = new byte[20 + 20 + 11];
+        new Random(9).nextBytes(packet);
+        packet[0] = 0x45;
+        Checksum.writeIPv4Checksum(packet, 0, 20);
+        Checksum.writeTCPChecksum(packet, 20, 31, 0x0a000001, 0x08080808);
+
+        assertEquals(0, Checksum.finish(Checksum.add(packet, 0, 20, 0)));
+        assertTrue(PacketUtil.isValidTCPChecksum(0x0a000001, 0x08080808, packet, (short) 31, 20));
+    }
+
+    private static int reference(byte[] data, int offset, int length) {
+        int sum = 0;
+        for (int i = offset; i < offset + length; i += 2) {
+            final int low = i + 1 < offset + length ? data[i + 1] & 0xFF : 0;
+            sum += ((data[i] & 0xFF) << 8) | low;
+        }
+        while ((sum >> 16) > 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
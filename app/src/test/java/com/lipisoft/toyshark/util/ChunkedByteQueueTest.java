@@ -0,0 +1,139 @@
+package com.lipisoft.toyshark.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedByteQueueTest {
+    @Test
+    public void largeDownloadDrainedInSegments() throws IOException {
+        final byte[] download = new byte[4 * 1024 * 1024 + 123];
+        new Random(11).nextBytes(download);
+        final ReadableByteChannel socket = Channels.newChannel(new ByteArrayInputStream(download));
+        final ChunkedByteQueue queue = new ChunkedByteQueue(256 * 1024);
+        final ByteArrayOutputStream client = new ByteArrayOutputStream();
+
+        while (queue.readFrom(socket) >= 0) {
+            while (!queue.isEmpty()) {
+                final int length = Math.min(queue.headLength(), 1400);
+                client.write(queue.headArray(), queue.headOffset(), length);
+                queue.skip(length);
+            }
+        }
+        assertArrayEquals(download, client.toByteArray());
+    }
+
+    @Test
+    public void writeStopsAtCapacity() {
+        final ChunkedByteQueue queue = new ChunkedByteQueue(ChunkedByteQueue.CHUNK_SIZE + 10);
+        final byte[] data = new byte[ChunkedByteQueue.CHUNK_SIZE * 2];
+        new Random(13).nextBytes(data);
+
+        assertEquals(ChunkedByteQueue.CHUNK_SIZE + 10, queue.write(ByteBuffer.wrap(data)));
+        assertEquals(0, queue.available());
+        assertEquals(0, queue.write(data, 0, 1));
+
+        final byte[] out = new byte[ChunkedByteQueue.CHUNK_SIZE + 10];
+        assertEquals(out.length, queue.read(out, 0, out.length));
+        for (int i = 0; i < out.length; i++) {
+            assertEquals(data[i], out[i]);
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void bytesInUseCountHeldChunks() {
+        final long before = ChunkedByteQueue.getBytesInUse();
+        final ChunkedByteQueue queue = new ChunkedByteQueue(ChunkedByteQueue.CHUNK_SIZE * 4);
+        queue.write(new byte[ChunkedByteQueue.CHUNK_SIZE + 1], 0, ChunkedByteQueue.CHUNK_SIZE + 1);
+        assertEquals(before + 2 * ChunkedByteQueue.CHUNK_SIZE, ChunkedByteQueue.getBytesInUse());
+        queue.skip(ChunkedByteQueue.CHUNK_SIZE);
+        assertEquals(before + ChunkedByteQueue.CHUNK_SIZE, ChunkedByteQueue.getBytesInUse());
+        queue.clear();
+        assertEquals(before, ChunkedByteQueue.getBytesInUse());
+    }
+
+    @Test
+    public void directBufferPositionIsKept() {
+        final ByteBuffer direct = ByteBuffer.allocateDirect(8);
+        direct.put(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        direct.position(5);
+        final ChunkedByteQueue queue = new ChunkedByteQueue(100);
+
+        assertEquals(3, queue.write(direct));
+        assertEquals(5, direct.position());
+        assertArrayEquals(new byte[]{6, 7, 8}, queue.read(100));
+    }
+
+    @Test
+    public void gatheringWriteKeepsWhatTheSocketDidNotTake() throws IOException {
+        final byte[] upload = new byte[ChunkedByteQueue.CHUNK_SIZE * 3 + 7];
+        new Random(5).nextBytes(upload);
+        final ChunkedByteQueue queue = new ChunkedByteQueue(upload.length);
+        queue.write(upload, 0, upload.length);
+        final SlowSocket socket = new SlowSocket(ChunkedByteQueue.CHUNK_SIZE + 100);
+
+        assertEquals(ChunkedByteQueue.CHUNK_SIZE + 100, queue.writeTo(socket));
+        assertEquals(1, socket.writes);
+        while (!queue.isEmpty()) {
+            queue.writeTo(socket);
+        }
+        assertArrayEquals(upload, socket.received.toByteArray());
+    }
+
+    /**
+     * accepts a limited number of bytes per write, like a socket with a full send buffer
+     */
+    private static final class SlowSocket implements GatheringByteChannel {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final int limit;
+        int writes = 0;
+
+        SlowSocket(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            writes++;
+            int accepted = 0;
+            for (int i = offset; i < offset + length && accepted < limit; i++) {
+                final int count = Math.min(sources[i].remaining(), limit - accepted);
+                received.write(sources[i].array(), sources[i].arrayOffset() + sources[i].position(), count);
+                sources[i].position(sources[i].position() + count);
+                accepted += count;
+            }
+            return accepted;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            return (int) write(new ByteBuffer[]{source});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
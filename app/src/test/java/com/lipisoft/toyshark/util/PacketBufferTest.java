@@ -0,0 +1,49 @@
+package com.lipisoft.toyshark.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class PacketBufferTest {
+    @Test
+    public void recycledOnlyAfterLastRelease() {
+        final PacketBufferPool pool = new PacketBufferPool(1500, 4);
+        final PacketBuffer packet = pool.acquire();
+        packet.retain();
+
+        packet.release();
+        assertEquals(0, pool.getIdleCount());
+        packet.release();
+        assertEquals(1, pool.getIdleCount());
+        assertSame(packet, pool.acquire());
+    }
+
+    @Test
+    public void viewDoesNotMoveOwnerPosition() {
+        final PacketBufferPool pool = new PacketBufferPool(16, 4);
+        final PacketBuffer packet = pool.acquire();
+        final ByteBuffer buffer = packet.getBuffer();
+        buffer.put(new byte[]{1, 2, 3, 4});
+        buffer.flip();
+        buffer.getShort();
+
+        final ByteBuffer view = packet.view();
+        assertEquals(0, view.position());
+        assertEquals(4, view.remaining());
+        assertEquals(2, buffer.position());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, packet.toByteArray());
+    }
+
+    @Test
+    public void wrapKeepsHeapArray() {
+        final byte[] data = {9, 8, 7};
+        final PacketBuffer packet = PacketBuffer.wrap(data);
+        assertSame(data, packet.toByteArray());
+        assertNotSame(data, PacketBuffer.wrap(new byte[]{9, 8, 7}).toByteArray());
+    }
+}